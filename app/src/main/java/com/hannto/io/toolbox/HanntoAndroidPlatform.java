@@ -0,0 +1,46 @@
+package com.hannto.io.toolbox;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.hannto.io.HanntoClock;
+import com.hannto.io.HanntoPlatform;
+import com.hannto.io.HanntoThreadPriority;
+
+import java.util.concurrent.Executor;
+
+/** Plugs the Android clock, thread priorities and main looper into {@link HanntoPlatform}. */
+public class HanntoAndroidPlatform {
+
+    private static boolean sInstalled = false;
+
+    /** Installs the Android hooks. Safe to call more than once. */
+    public static synchronized void install() {
+        if (sInstalled) {
+            return;
+        }
+        final Handler mainThread = new Handler(Looper.getMainLooper());
+        HanntoPlatform.install(
+                new HanntoClock() {
+                    @Override
+                    public long elapsedRealtime() {
+                        return SystemClock.elapsedRealtime();
+                    }
+                },
+                new HanntoThreadPriority() {
+                    @Override
+                    public void setBackgroundPriority() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    }
+                },
+                new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        mainThread.post(command);
+                    }
+                });
+        sInstalled = true;
+    }
+}
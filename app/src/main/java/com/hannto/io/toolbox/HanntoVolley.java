@@ -1,8 +1,10 @@
 package com.hannto.io.toolbox;
 
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.os.Build;
+import android.util.Log;
 
 import com.hannto.io.HanntoNetwork;
 import com.hannto.io.HanntoRequestQueue;
@@ -14,6 +16,11 @@ public class HanntoVolley {
     /** Default on-disk cache directory. */
     private static final String DEFAULT_CACHE_DIR = "volley";
 
+    /** Default size of the pool for response buffers, in bytes. */
+    private static final int DEFAULT_POOL_SIZE = 64 * 1024;
+
+    private static final String TAG = "HanntoVolley";
+
     /**
      * Creates a default instance of the worker pool and calls {@link HanntoRequestQueue#start()} on it.
      *
@@ -23,9 +30,10 @@ public class HanntoVolley {
      */
     public static HanntoRequestQueue newRequestQueue(Context context, HanntoStack stack) {
         HanntoBasicNetwork network;
+        HanntoByteArrayPool pool = newBufferPool(context);
         if (stack == null) {
 
-            network = new HanntoBasicNetwork(new HanntoBasicStack());
+            network = new HanntoBasicNetwork(new HanntoBasicStack(), pool);
 
 //            if (Build.VERSION.SDK_INT >= 9) {
 //                network = new BasicNetwork(new HurlStack());
@@ -48,12 +56,30 @@ public class HanntoVolley {
 //                                new HttpClientStack(AndroidHttpClient.newInstance(userAgent)));
 //            }
         } else {
-            network = new HanntoBasicNetwork(stack);
+            network = new HanntoBasicNetwork(stack, pool);
         }
 
         return newRequestQueue(context, network);
     }
 
+    /** Creates the response buffer pool, reporting unreleased buffers in debuggable builds. */
+    private static HanntoByteArrayPool newBufferPool(Context context) {
+        HanntoByteArrayPool pool = new HanntoByteArrayPool(DEFAULT_POOL_SIZE);
+        if ((context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            pool.setLeakListener(
+                    new HanntoByteArrayPool.LeakListener() {
+                        @Override
+                        public void onLeak(int size, Throwable leasedAt) {
+                            Log.w(
+                                    TAG,
+                                    "Pooled buffer of " + size + " bytes was never released",
+                                    leasedAt);
+                        }
+                    });
+        }
+        return pool;
+    }
+
 //    /**
 //     * Creates a default instance of the worker pool and calls {@link RequestQueue#start()} on it.
 //     *
@@ -73,8 +99,10 @@ public class HanntoVolley {
 //    }
 
     private static HanntoRequestQueue newRequestQueue(Context context, HanntoNetwork network) {
-//        File cacheDir = new File(context.getCacheDir(), DEFAULT_CACHE_DIR);
+        HanntoAndroidPlatform.install();
+        File cacheDir = new File(context.getCacheDir(), DEFAULT_CACHE_DIR);
         HanntoRequestQueue queue = new HanntoRequestQueue(network);
+        queue.setCache(new HanntoDiskBasedCache(cacheDir));
         queue.start();
         return queue;
     }
@@ -0,0 +1,96 @@
+package com.hannto.io;
+
+import com.hannto.io.benchmark.BenchmarkSupport;
+import com.hannto.io.benchmark.BenchmarkSupport.BenchRequest;
+import com.hannto.io.benchmark.BenchmarkSupport.InMemoryStack;
+import com.hannto.io.benchmark.BenchmarkSupport.PriorityMix;
+import com.hannto.io.toolbox.HanntoBasicNetwork;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded cost of the individual stages a request goes through. Lives in {@code
+ * com.hannto.io} so it can drive {@link HanntoNetworkDispatcher#processRequest(HanntoRequest)}
+ * directly.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HanntoHotPathBenchmark {
+
+    private static final int REQUEST_COUNT = 1024;
+
+    @Param({"1", "1024", "65536"})
+    public int payloadSize;
+
+    @Param({"NORMAL", "UNIFORM", "SKEWED"})
+    public PriorityMix priorityMix;
+
+    private BenchRequest[] mRequests;
+    private HanntoBasicNetwork mNetwork;
+    private HanntoNetworkDispatcher mDispatcher;
+    private HanntoExecutorDelivery mDelivery;
+    private HanntoResponse<byte[]> mResponse;
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        byte[] payload = new byte[payloadSize];
+        mRequests = new BenchRequest[REQUEST_COUNT];
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            mRequests[i] =
+                    new BenchRequest(
+                            payload, priorityMix.pick(i), null, BenchmarkSupport.FAIL_ON_ERROR);
+            mRequests[i].setSequence(i);
+        }
+        mNetwork = new HanntoBasicNetwork(new InMemoryStack(payloadSize));
+        mDelivery = new HanntoExecutorDelivery(BenchmarkSupport.DIRECT);
+        mDispatcher = new HanntoNetworkDispatcher(null, mNetwork, mDelivery);
+        mResponse = HanntoResponse.success(payload);
+    }
+
+    private BenchRequest next() {
+        BenchRequest request = mRequests[mIndex];
+        mIndex = (mIndex + 1) & (REQUEST_COUNT - 1);
+        return request;
+    }
+
+    @Benchmark
+    public int compareTo() {
+        BenchRequest left = next();
+        return left.compareTo(mRequests[(mIndex * 7) & (REQUEST_COUNT - 1)]);
+    }
+
+    @Benchmark
+    public HanntoNetworkResponse performRequest() throws HanntoError {
+        return mNetwork.performRequest(next());
+    }
+
+    @Benchmark
+    public void processRequest() {
+        mDispatcher.processRequest(next());
+    }
+
+    @Benchmark
+    public void postResponse(Blackhole blackhole) {
+        BenchRequest request = next();
+        mDelivery.postResponse(request, mResponse);
+        blackhole.consume(request);
+    }
+}
@@ -0,0 +1,83 @@
+package com.hannto.io;
+
+import com.hannto.io.benchmark.BenchmarkSupport;
+import com.hannto.io.benchmark.BenchmarkSupport.StreamingStack;
+import com.hannto.io.toolbox.HanntoBaseRequest;
+import com.hannto.io.toolbox.HanntoBasicNetwork;
+import com.hannto.io.toolbox.HanntoBufferRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of taking a response body that the network read into a pooled buffer, delivered as a copy
+ * by {@link HanntoBaseRequest} or as a view by {@link HanntoBufferRequest}. Run with the gc
+ * profiler to compare allocation per response.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseBodyBenchmark {
+
+    @Param({"1024", "65536"})
+    public int responseSize;
+
+    private HanntoNetworkDispatcher mDispatcher;
+    private byte[] mPayload;
+    private long mSum;
+
+    private final HanntoResponse.Listener<byte[]> mArrayListener =
+            new HanntoResponse.Listener<byte[]>() {
+                @Override
+                public void onResponse(byte[] response) {
+                    mSum += response.length;
+                }
+            };
+
+    private final HanntoResponse.Listener<ByteBuffer> mBufferListener =
+            new HanntoResponse.Listener<ByteBuffer>() {
+                @Override
+                public void onResponse(ByteBuffer response) {
+                    mSum += response.remaining();
+                }
+            };
+
+    @Setup
+    public void setUp() {
+        mPayload = new byte[] {1};
+        mDispatcher =
+                new HanntoNetworkDispatcher(
+                        null,
+                        new HanntoBasicNetwork(new StreamingStack(responseSize)),
+                        new HanntoExecutorDelivery(BenchmarkSupport.DIRECT));
+    }
+
+    @Benchmark
+    public long deliverCopy() {
+        mDispatcher.processRequest(
+                new HanntoBaseRequest(mPayload, mArrayListener, BenchmarkSupport.FAIL_ON_ERROR));
+        return mSum;
+    }
+
+    @Benchmark
+    public long deliverView() {
+        mDispatcher.processRequest(
+                new HanntoBufferRequest(mPayload, mBufferListener, BenchmarkSupport.FAIL_ON_ERROR));
+        return mSum;
+    }
+}
@@ -0,0 +1,130 @@
+package com.hannto.io.benchmark;
+
+import com.hannto.io.HanntoError;
+import com.hannto.io.HanntoPriorityLaneQueue;
+import com.hannto.io.HanntoRequest;
+import com.hannto.io.HanntoWorkStealingQueue;
+import com.hannto.io.HanntoResponse;
+import com.hannto.io.toolbox.HanntoBaseRequest;
+import com.hannto.io.toolbox.HanntoStack;
+import com.hannto.io.toolbox.RawResponse;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/** Shared fixtures for the benchmarks; nothing here touches a device. */
+public final class BenchmarkSupport {
+
+    private BenchmarkSupport() {}
+
+    /** Mix of priorities assigned to generated requests. */
+    public enum PriorityMix {
+        /** Every request is {@link HanntoRequest.Priority#NORMAL}. */
+        NORMAL,
+        /** Requests cycle evenly through all four priorities. */
+        UNIFORM,
+        /** Mostly LOW bulk traffic with a small share of IMMEDIATE control commands. */
+        SKEWED;
+
+        public HanntoRequest.Priority pick(int i) {
+            switch (this) {
+                case UNIFORM:
+                    return HanntoRequest.Priority.values()[i & 3];
+                case SKEWED:
+                    return i % 10 == 0
+                            ? HanntoRequest.Priority.IMMEDIATE
+                            : HanntoRequest.Priority.LOW;
+                default:
+                    return HanntoRequest.Priority.NORMAL;
+            }
+        }
+    }
+
+    /** Network queue implementation handed to the request queue. */
+    public enum QueueType {
+        PRIORITY_BLOCKING,
+        PRIORITY_LANES,
+        WORK_STEALING;
+
+        public BlockingQueue<HanntoRequest> create(int dispatchers) {
+            switch (this) {
+                case PRIORITY_LANES:
+                    return new HanntoPriorityLaneQueue();
+                case WORK_STEALING:
+                    return new HanntoWorkStealingQueue(dispatchers);
+                default:
+                    return new PriorityBlockingQueue<>();
+            }
+        }
+    }
+
+    /** Runs delivery on the dispatcher thread, so the benchmark only measures the engine. */
+    public static final Executor DIRECT =
+            new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    command.run();
+                }
+            };
+
+    /** A stack that answers every request with a preallocated body of a fixed size. */
+    public static class InMemoryStack implements HanntoStack {
+        private final byte[] mBody;
+
+        public InMemoryStack(int responseSize) {
+            mBody = new byte[responseSize];
+        }
+
+        @Override
+        public RawResponse executeRequest(HanntoRequest<?> request) {
+            return new RawResponse(mBody);
+        }
+    }
+
+    /**
+     * A stack that streams a preallocated body of a fixed size, so the network reads it into a
+     * pooled buffer as it would from a device.
+     */
+    public static class StreamingStack implements HanntoStack {
+        private final byte[] mBody;
+
+        public StreamingStack(int responseSize) {
+            mBody = new byte[responseSize];
+        }
+
+        @Override
+        public RawResponse executeRequest(HanntoRequest<?> request) {
+            return new RawResponse(new ByteArrayInputStream(mBody), mBody.length);
+        }
+    }
+
+    /** A byte[] request with a fixed priority. */
+    public static class BenchRequest extends HanntoBaseRequest {
+        private final Priority mPriority;
+
+        public BenchRequest(
+                byte[] data,
+                Priority priority,
+                HanntoResponse.Listener<byte[]> listener,
+                HanntoResponse.ErrorListener errorListener) {
+            super(data, listener, errorListener);
+            mPriority = priority;
+        }
+
+        @Override
+        public Priority getPriority() {
+            return mPriority;
+        }
+    }
+
+    /** Error listener that turns delivery errors into benchmark failures. */
+    public static final HanntoResponse.ErrorListener FAIL_ON_ERROR =
+            new HanntoResponse.ErrorListener() {
+                @Override
+                public void onErrorResponse(HanntoError error) {
+                    throw new IllegalStateException("Unexpected error in benchmark", error);
+                }
+            };
+}
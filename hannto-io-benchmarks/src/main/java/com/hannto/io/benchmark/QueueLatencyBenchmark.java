@@ -0,0 +1,142 @@
+package com.hannto.io.benchmark;
+
+import com.hannto.io.HanntoExecutorDelivery;
+import com.hannto.io.HanntoRequest;
+import com.hannto.io.HanntoRequestQueue;
+import com.hannto.io.HanntoResponse;
+import com.hannto.io.benchmark.BenchmarkSupport.BenchRequest;
+import com.hannto.io.benchmark.BenchmarkSupport.InMemoryStack;
+import com.hannto.io.benchmark.BenchmarkSupport.PriorityMix;
+import com.hannto.io.benchmark.BenchmarkSupport.QueueType;
+import com.hannto.io.toolbox.HanntoBasicNetwork;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Add-to-delivery latency of a single NORMAL probe request while {@code producers} background
+ * threads keep the queue loaded. Sample mode reports the p50/p99 percentiles.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueueLatencyBenchmark {
+
+    /** Requests each background producer keeps outstanding. */
+    private static final int WINDOW = 64;
+
+    @Param({"0", "4", "16"})
+    public int producers;
+
+    @Param({"1", "4", "32"})
+    public int dispatchers;
+
+    @Param({"1", "1024"})
+    public int payloadSize;
+
+    @Param({"NORMAL", "SKEWED"})
+    public PriorityMix priorityMix;
+
+    @Param({"PRIORITY_BLOCKING", "PRIORITY_LANES", "WORK_STEALING"})
+    public QueueType queueType;
+
+    private HanntoRequestQueue mQueue;
+    private Thread[] mLoad;
+    private volatile boolean mStopped;
+    private byte[] mPayload;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mPayload = new byte[payloadSize];
+        mQueue =
+                new HanntoRequestQueue(
+                        new HanntoBasicNetwork(new InMemoryStack(payloadSize)),
+                        dispatchers,
+                        new HanntoExecutorDelivery(BenchmarkSupport.DIRECT),
+                        queueType.create(dispatchers));
+        mQueue.start();
+        mStopped = false;
+        mLoad = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            mLoad[p] = new Thread(new LoadProducer(), "BenchLoad-" + p);
+            mLoad[p].setDaemon(true);
+            mLoad[p].start();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        mStopped = true;
+        for (Thread thread : mLoad) {
+            thread.interrupt();
+            thread.join();
+        }
+        mQueue.stop();
+    }
+
+    @Benchmark
+    public void probe() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mQueue.add(
+                new BenchRequest(
+                        mPayload,
+                        HanntoRequest.Priority.NORMAL,
+                        new HanntoResponse.Listener<byte[]>() {
+                            @Override
+                            public void onResponse(byte[] response) {
+                                done.countDown();
+                            }
+                        },
+                        BenchmarkSupport.FAIL_ON_ERROR));
+        done.await();
+    }
+
+    /** Closed-loop producer that keeps {@link #WINDOW} requests in the queue. */
+    private class LoadProducer implements Runnable {
+        private final Semaphore mPermits = new Semaphore(WINDOW);
+
+        private final HanntoResponse.Listener<byte[]> mListener =
+                new HanntoResponse.Listener<byte[]>() {
+                    @Override
+                    public void onResponse(byte[] response) {
+                        mPermits.release();
+                    }
+                };
+
+        @Override
+        public void run() {
+            int i = 0;
+            while (!mStopped) {
+                try {
+                    mPermits.acquire();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                mQueue.add(
+                        new BenchRequest(
+                                mPayload,
+                                priorityMix.pick(i++),
+                                mListener,
+                                BenchmarkSupport.FAIL_ON_ERROR));
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.hannto.io.benchmark;
+
+import com.hannto.io.HanntoExecutorDelivery;
+import com.hannto.io.HanntoRequestQueue;
+import com.hannto.io.HanntoResponse;
+import com.hannto.io.benchmark.BenchmarkSupport.BenchRequest;
+import com.hannto.io.benchmark.BenchmarkSupport.InMemoryStack;
+import com.hannto.io.benchmark.BenchmarkSupport.PriorityMix;
+import com.hannto.io.benchmark.BenchmarkSupport.QueueType;
+import com.hannto.io.toolbox.HanntoBasicNetwork;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end requests per second through {@link HanntoRequestQueue#add}, the dispatchers, the
+ * network and delivery. Each invocation spreads a batch over {@code producers} threads and waits
+ * for every response.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueueThroughputBenchmark {
+
+    private static final int BATCH = 4096;
+
+    @Param({"1", "4", "16"})
+    public int producers;
+
+    @Param({"1", "4", "32"})
+    public int dispatchers;
+
+    @Param({"1", "1024"})
+    public int payloadSize;
+
+    @Param({"NORMAL", "SKEWED"})
+    public PriorityMix priorityMix;
+
+    @Param({"PRIORITY_BLOCKING", "PRIORITY_LANES", "WORK_STEALING"})
+    public QueueType queueType;
+
+    private HanntoRequestQueue mQueue;
+    private ExecutorService mProducers;
+    private byte[] mPayload;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mPayload = new byte[payloadSize];
+        mQueue =
+                new HanntoRequestQueue(
+                        new HanntoBasicNetwork(new InMemoryStack(payloadSize)),
+                        dispatchers,
+                        new HanntoExecutorDelivery(BenchmarkSupport.DIRECT),
+                        queueType.create(dispatchers));
+        mQueue.start();
+        mProducers = Executors.newFixedThreadPool(producers);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mProducers.shutdownNow();
+        mQueue.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void addAndDeliver() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(BATCH);
+        final HanntoResponse.Listener<byte[]> listener =
+                new HanntoResponse.Listener<byte[]>() {
+                    @Override
+                    public void onResponse(byte[] response) {
+                        done.countDown();
+                    }
+                };
+        final int perProducer = BATCH / producers;
+        for (int p = 0; p < producers; p++) {
+            final int offset = p * perProducer;
+            mProducers.execute(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            for (int i = offset; i < offset + perProducer; i++) {
+                                mQueue.add(
+                                        new BenchRequest(
+                                                mPayload,
+                                                priorityMix.pick(i),
+                                                listener,
+                                                BenchmarkSupport.FAIL_ON_ERROR));
+                            }
+                        }
+                    });
+        }
+        done.await();
+    }
+}
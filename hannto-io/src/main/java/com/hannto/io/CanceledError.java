@@ -0,0 +1,11 @@
+package com.hannto.io;
+
+/**
+ * Indicates that a request was canceled while it was on the network, so its remaining attempts
+ * were abandoned rather than retried.
+ */
+public class CanceledError extends HanntoError {
+    public CanceledError() {
+        super("Request canceled");
+    }
+}
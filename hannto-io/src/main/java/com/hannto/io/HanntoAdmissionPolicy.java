@@ -0,0 +1,107 @@
+package com.hannto.io;
+
+/**
+ * Limits on the requests a {@link HanntoRequestQueue} holds at once, so that memory stays bounded
+ * when the device on the other end slows down or stops answering.
+ *
+ * <p>A request counts against the limits from the time it is added until it finishes, whether it
+ * is waiting in a queue or in flight. Its payload counts as the length of its {@link
+ * HanntoRequest#getData() data} or {@link HanntoRequestBody#contentLength() body}. A request
+ * larger than the byte limit is still admitted when the queue holds nothing else, so that it can
+ * be sent at all.
+ *
+ * <p>What happens to a request that does not fit is chosen by the {@link Overflow} policy. Refused
+ * and evicted requests are delivered a {@link QueueFullError}.
+ */
+public class HanntoAdmissionPolicy {
+
+    /** What to do with a request that does not fit. */
+    public enum Overflow {
+        /**
+         * Wait for room, up to {@link #getBlockTimeoutMs()}, then refuse the request. {@link
+         * HanntoRequestQueue#add} blocks the calling thread while waiting.
+         */
+        BLOCK,
+
+        /** Refuse the request. */
+        REJECT,
+
+        /**
+         * Evict the oldest {@link HanntoRequest.Priority#LOW} request that has not been sent yet,
+         * and refuse the request if there is none.
+         */
+        DROP_OLDEST_LOW,
+
+        /**
+         * Evict the oldest unsent request of the tag holding the most requests, so that one
+         * client flooding the queue pays for its own backlog. Refuse the request if nothing can be
+         * evicted.
+         */
+        SHED_BY_TAG
+    }
+
+    /** The maximum number of requests held at once. */
+    private final int mMaxRequests;
+
+    /** The maximum total payload of the requests held at once. */
+    private final long mMaxPayloadBytes;
+
+    /** What to do with a request that does not fit. */
+    private final Overflow mOverflow;
+
+    /** How long {@link Overflow#BLOCK} waits for room. */
+    private final long mBlockTimeoutMs;
+
+    /** The default time {@link Overflow#BLOCK} waits for room in milliseconds */
+    public static final long DEFAULT_BLOCK_TIMEOUT_MS = 5000;
+
+    /**
+     * Constructs a policy with the default block timeout.
+     *
+     * @param maxRequests The maximum number of requests held at once.
+     * @param maxPayloadBytes The maximum total payload of the requests held at once.
+     * @param overflow What to do with a request that does not fit.
+     */
+    public HanntoAdmissionPolicy(int maxRequests, long maxPayloadBytes, Overflow overflow) {
+        this(maxRequests, maxPayloadBytes, overflow, DEFAULT_BLOCK_TIMEOUT_MS);
+    }
+
+    /**
+     * Constructs a new admission policy.
+     *
+     * @param maxRequests The maximum number of requests held at once.
+     * @param maxPayloadBytes The maximum total payload of the requests held at once.
+     * @param overflow What to do with a request that does not fit.
+     * @param blockTimeoutMs How long {@link Overflow#BLOCK} waits for room.
+     */
+    public HanntoAdmissionPolicy(
+            int maxRequests, long maxPayloadBytes, Overflow overflow, long blockTimeoutMs) {
+        if (maxRequests < 1 || maxPayloadBytes < 0 || overflow == null || blockTimeoutMs < 0) {
+            throw new IllegalArgumentException("Invalid admission policy");
+        }
+        mMaxRequests = maxRequests;
+        mMaxPayloadBytes = maxPayloadBytes;
+        mOverflow = overflow;
+        mBlockTimeoutMs = blockTimeoutMs;
+    }
+
+    /** Returns the maximum number of requests held at once. */
+    public int getMaxRequests() {
+        return mMaxRequests;
+    }
+
+    /** Returns the maximum total payload of the requests held at once. */
+    public long getMaxPayloadBytes() {
+        return mMaxPayloadBytes;
+    }
+
+    /** Returns what is done with a request that does not fit. */
+    public Overflow getOverflow() {
+        return mOverflow;
+    }
+
+    /** Returns how long {@link Overflow#BLOCK} waits for room. */
+    public long getBlockTimeoutMs() {
+        return mBlockTimeoutMs;
+    }
+}
@@ -0,0 +1,25 @@
+package com.hannto.io;
+
+/**
+ * A {@link HanntoNetwork} that can also perform requests without blocking the calling thread.
+ */
+public interface HanntoAsyncNetwork extends HanntoNetwork {
+
+    /** Receives the outcome of {@link #performRequestAsync}. Exactly one method is called once. */
+    interface Callback {
+        /** Called with the response; same contract as the return value of performRequest. */
+        void onSuccess(HanntoNetworkResponse response);
+
+        /** Called when the request failed and the retry policy has given up. */
+        void onError(HanntoError error);
+    }
+
+    /**
+     * Starts the specified request and returns without waiting for it. Retries happen as
+     * continuations of the failed attempt.
+     *
+     * @param request Request to process
+     * @param callback Completed on whichever thread finishes the request, possibly the caller
+     */
+    void performRequestAsync(HanntoRequest<?> request, Callback callback);
+}
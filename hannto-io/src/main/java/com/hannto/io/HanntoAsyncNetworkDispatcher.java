@@ -0,0 +1,172 @@
+package com.hannto.io;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A network dispatcher that keeps up to a fixed number of requests in flight instead of blocking
+ * on each one. Requests are started with {@link HanntoAsyncNetwork#performRequestAsync} and are
+ * parsed and delivered on the thread that completes them.
+ */
+public class HanntoAsyncNetworkDispatcher extends HanntoNetworkDispatcher {
+
+    /** The network interface for processing requests. */
+    private final HanntoAsyncNetwork mAsyncNetwork;
+
+    /** One permit per request this dispatcher may still start. */
+    private final Semaphore mInFlight;
+
+    /**
+     * Creates a new asynchronous dispatcher thread. You must call {@link #start()} in order to
+     * begin processing.
+     *
+     * @param queue Queue of incoming requests for triage
+     * @param network Network interface to use for performing requests
+     * @param delivery Delivery interface to use for posting responses
+     * @param maxInFlight Maximum number of requests outstanding at once
+     */
+    public HanntoAsyncNetworkDispatcher(
+            BlockingQueue<HanntoRequest> queue,
+            HanntoAsyncNetwork network,
+            HanntoResponseDelivery delivery,
+            int maxInFlight) {
+        this(queue, network, null, delivery, maxInFlight);
+    }
+
+    /**
+     * Creates a new asynchronous dispatcher thread that writes responses to cache. You must call
+     * {@link #start()} in order to begin processing.
+     *
+     * @param queue Queue of incoming requests for triage
+     * @param network Network interface to use for performing requests
+     * @param cache Cache interface to use for writing responses to cache, or null
+     * @param delivery Delivery interface to use for posting responses
+     * @param maxInFlight Maximum number of requests outstanding at once
+     */
+    public HanntoAsyncNetworkDispatcher(
+            BlockingQueue<HanntoRequest> queue,
+            HanntoAsyncNetwork network,
+            HanntoCache cache,
+            HanntoResponseDelivery delivery,
+            int maxInFlight) {
+        this(queue, network, cache, delivery, newInFlightPermits(maxInFlight));
+    }
+
+    /**
+     * Creates a dispatcher that shares its in-flight limit with other dispatchers, such as those
+     * of one {@link HanntoLane}.
+     *
+     * @param inFlight One permit per request the dispatchers sharing it may still start
+     */
+    /* package */ HanntoAsyncNetworkDispatcher(
+            BlockingQueue<HanntoRequest> queue,
+            HanntoAsyncNetwork network,
+            HanntoCache cache,
+            HanntoResponseDelivery delivery,
+            Semaphore inFlight) {
+        super(queue, network, cache, delivery);
+        mAsyncNetwork = network;
+        mInFlight = inFlight;
+    }
+
+    private static Semaphore newInFlightPermits(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        return new Semaphore(maxInFlight);
+    }
+
+    @Override
+    void awaitCapacity() throws InterruptedException {
+        mInFlight.acquire();
+    }
+
+    @Override
+    void releaseCapacity() {
+        mInFlight.release();
+    }
+
+    @Override
+    void processRequest(HanntoRequest request) {
+        if (!request.markTaken()) {
+            releaseCapacity();
+            return;
+        }
+        long startTimeMs = HanntoPlatform.elapsedRealtime();
+        onRequestStarted();
+        request.addMarker("network-queue-take");
+        request.recordQueueWait();
+
+        // If the request was cancelled already, do not perform the
+        // network request.
+        if (request.isCanceled()) {
+            request.finish("network-discard-cancelled");
+            request.notifyListenerResponseNotUsable();
+            onRequestDone();
+            releaseCapacity();
+            return;
+        }
+
+        InFlightCallback callback = new InFlightCallback(request, startTimeMs);
+        try {
+            mAsyncNetwork.performRequestAsync(request, callback);
+        } catch (RuntimeException e) {
+            // The network failed before it could complete the callback.
+            callback.onFailure(e);
+        }
+    }
+
+    /** Finishes one in-flight request and hands its permit back. Completes at most once. */
+    private class InFlightCallback implements HanntoAsyncNetwork.Callback {
+        private final HanntoRequest mRequest;
+        private final long mStartTimeMs;
+        private final AtomicBoolean mCompleted = new AtomicBoolean();
+
+        InFlightCallback(HanntoRequest request, long startTimeMs) {
+            mRequest = request;
+            mStartTimeMs = startTimeMs;
+        }
+
+        @Override
+        public void onSuccess(HanntoNetworkResponse response) {
+            if (!mCompleted.compareAndSet(false, true)) {
+                return;
+            }
+            mRequest.addMarker("network-http-complete");
+            try {
+                handleNetworkResponse(mRequest, response);
+            } catch (Exception e) {
+                handleUnexpectedException(mRequest, e, mStartTimeMs);
+            } finally {
+                onRequestDone();
+                releaseCapacity();
+            }
+        }
+
+        @Override
+        public void onError(HanntoError error) {
+            if (!mCompleted.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                handleNetworkError(mRequest, error, mStartTimeMs);
+            } finally {
+                onRequestDone();
+                releaseCapacity();
+            }
+        }
+
+        void onFailure(RuntimeException e) {
+            if (!mCompleted.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                handleUnexpectedException(mRequest, e, mStartTimeMs);
+            } finally {
+                onRequestDone();
+                releaseCapacity();
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.hannto.io;
+
+/** An interface for a cache keyed by a String with a byte array as data. */
+public interface HanntoCache {
+
+    /**
+     * Retrieves an entry from the cache.
+     *
+     * @param key Cache key
+     * @return An {@link Entry} or null in the event of a cache miss
+     */
+    Entry get(String key);
+
+    /**
+     * Adds or replaces an entry to the cache.
+     *
+     * @param key Cache key
+     * @param entry Data to store and metadata for cache coherency, TTL, etc.
+     */
+    void put(String key, Entry entry);
+
+    /**
+     * Performs any potentially long-running actions needed to initialize the cache; will be called
+     * from a worker thread.
+     */
+    void initialize();
+
+    /**
+     * Invalidates an entry in the cache.
+     *
+     * @param key Cache key
+     * @param fullExpire True to fully expire the entry, false to soft expire
+     */
+    void invalidate(String key, boolean fullExpire);
+
+    /**
+     * Removes an entry from the cache.
+     *
+     * @param key Cache key
+     */
+    void remove(String key);
+
+    /** Empties the cache. */
+    void clear();
+
+    /**
+     * Data and metadata for an entry returned by the cache. Expiry times are wall-clock times, so
+     * they stay meaningful for entries persisted across restarts.
+     */
+    class Entry {
+        /** The data returned from cache. */
+        public byte[] data;
+
+        /** TTL for this record, as a {@link System#currentTimeMillis()} time. */
+        public long ttl;
+
+        /** Soft TTL for this record, as a {@link System#currentTimeMillis()} time. */
+        public long softTtl;
+
+        /** True if the entry is expired. */
+        public boolean isExpired() {
+            return this.ttl < System.currentTimeMillis();
+        }
+
+        /** True if a refresh is needed from the original data source. */
+        public boolean refreshNeeded() {
+            return this.softTtl < System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.hannto.io;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Provides a thread for performing cache triage on a queue of requests.
+ *
+ * <p>Requests added to the specified cache queue are resolved from cache. Any deliverable response
+ * is posted back to the caller via a {@link HanntoResponseDelivery}. Cache misses and responses
+ * that require refresh are sent on to the network dispatchers.
+ */
+public class HanntoCacheDispatcher extends Thread {
+
+    /** The queue of requests coming in for triage. */
+    private final BlockingQueue<HanntoRequest> mCacheQueue;
+
+    /** The request queue that owns the network dispatchers. */
+    private final HanntoRequestQueue mRequestQueue;
+
+    /** The cache to read from. */
+    private final HanntoCache mCache;
+
+    /** For posting responses. */
+    private final HanntoResponseDelivery mDelivery;
+
+    /** Used for telling us to die. */
+    private volatile boolean mQuit = false;
+
+    /**
+     * Creates a new cache triage dispatcher thread. You must call {@link #start()} in order to
+     * begin processing.
+     *
+     * @param cacheQueue Queue of incoming requests for triage
+     * @param requestQueue Queue to send requests to when they must go to the network
+     * @param cache Cache interface to use for resolution
+     * @param delivery Delivery interface to use for posting responses
+     */
+    /* package */ HanntoCacheDispatcher(
+            BlockingQueue<HanntoRequest> cacheQueue,
+            HanntoRequestQueue requestQueue,
+            HanntoCache cache,
+            HanntoResponseDelivery delivery) {
+        mCacheQueue = cacheQueue;
+        mRequestQueue = requestQueue;
+        mCache = cache;
+        mDelivery = delivery;
+    }
+
+    /**
+     * Forces this dispatcher to quit immediately. If any requests are still in the queue, they are
+     * not guaranteed to be processed.
+     */
+    public void quit() {
+        mQuit = true;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        HanntoPlatform.threadPriority().setBackgroundPriority();
+
+        // Make a blocking call to initialize the cache.
+        mCache.initialize();
+
+        while (true) {
+            try {
+                processRequest();
+            } catch (InterruptedException e) {
+                // We may have been interrupted because it was time to quit.
+                if (mQuit) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void processRequest() throws InterruptedException {
+        // Get a request from the cache triage queue, blocking until
+        // at least one is available.
+        final HanntoRequest<?> request = mCacheQueue.take();
+        processRequest(request);
+    }
+
+    // Visible for testing.
+    void processRequest(final HanntoRequest<?> request) {
+        // A request evicted by the admission policy has been finished already.
+        if (!request.markTaken()) {
+            return;
+        }
+        request.addMarker("cache-queue-take");
+
+        // If the request has been canceled, don't bother dispatching it.
+        if (request.isCanceled()) {
+            request.finish("cache-discard-canceled");
+            request.notifyListenerResponseNotUsable();
+            return;
+        }
+
+        // Attempt to retrieve this item from cache.
+        HanntoCache.Entry entry = mCache.get(request.getCacheKey());
+        if (entry == null) {
+            request.addMarker("cache-miss");
+            mRequestQueue.sendToNetwork(request);
+            return;
+        }
+
+        // If it is completely expired, just send it to the network.
+        if (entry.isExpired()) {
+            request.addMarker("cache-hit-expired");
+            request.setCacheEntry(entry);
+            mRequestQueue.sendToNetwork(request);
+            return;
+        }
+
+        // We have a cache hit; parse its data for delivery back to the request.
+        request.addMarker("cache-hit");
+        HanntoResponse<?> response;
+        try {
+            response = request.parseNetworkResponse(new HanntoNetworkResponse(entry.data, 0));
+        } catch (RuntimeException e) {
+            // An entry that no longer parses is as good as missing.
+            mCache.invalidate(request.getCacheKey(), true);
+            request.setCacheEntry(null);
+            mRequestQueue.sendToNetwork(request);
+            return;
+        }
+        request.addMarker("cache-hit-parsed");
+
+        if (!entry.refreshNeeded()) {
+            // Completely unexpired cache hit. Just deliver the response.
+            mDelivery.postResponse(request, response);
+            request.notifyListenerResponseReceived(response, null);
+        } else {
+            // Soft-expired cache hit. We can deliver the cached response,
+            // but we need to also send the request to the network for
+            // refreshing.
+            request.addMarker("cache-hit-refresh-needed");
+            request.setCacheEntry(entry);
+            // Mark the response as intermediate.
+            response.intermediate = true;
+
+            // Post the intermediate response back to the user and have
+            // the delivery then forward the request along to the network.
+            mDelivery.postResponse(
+                    request,
+                    response,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            mRequestQueue.sendToNetwork(request);
+                        }
+                    });
+        }
+    }
+}
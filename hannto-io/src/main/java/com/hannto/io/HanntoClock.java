@@ -0,0 +1,8 @@
+package com.hannto.io;
+
+/** Monotonic time source used for measuring request and network durations. */
+public interface HanntoClock {
+
+    /** Returns milliseconds since some fixed point, unaffected by wall-clock changes. */
+    long elapsedRealtime();
+}
@@ -0,0 +1,116 @@
+package com.hannto.io;
+
+/**
+ * Sizing rules for a {@link HanntoRequestQueue} whose dispatcher pool grows and shrinks with load.
+ *
+ * <p>The pool starts with {@link #getMinDispatchers()} dispatchers. When every dispatcher is busy
+ * and either the queue holds at least {@link #getQueueDepthThreshold()} requests or a request
+ * waited at least {@link #getQueueWaitThresholdMs()} before being taken, another dispatcher is
+ * started, up to {@link #getMaxDispatchers()}. A dispatcher that stays idle for {@link
+ * #getKeepAliveMs()} exits as long as the pool stays at or above the minimum.
+ */
+public class HanntoElasticPolicy {
+    /** The minimum number of dispatchers kept alive. */
+    private final int mMinDispatchers;
+
+    /** The maximum number of dispatchers. */
+    private final int mMaxDispatchers;
+
+    /** How long a surplus dispatcher may stay idle before it exits. */
+    private final long mKeepAliveMs;
+
+    /** Queue depth at which another dispatcher is started. */
+    private final int mQueueDepthThreshold;
+
+    /** Time spent queued at which another dispatcher is started. */
+    private final long mQueueWaitThresholdMs;
+
+    /** The default minimum number of dispatchers */
+    public static final int DEFAULT_MIN_DISPATCHERS = 1;
+
+    /** The default maximum number of dispatchers */
+    public static final int DEFAULT_MAX_DISPATCHERS = 8;
+
+    /** The default keep-alive for idle dispatchers in milliseconds */
+    public static final long DEFAULT_KEEP_ALIVE_MS = 30000;
+
+    /** The default queue depth that triggers growth */
+    public static final int DEFAULT_QUEUE_DEPTH_THRESHOLD = 4;
+
+    /** The default queue wait in milliseconds that triggers growth */
+    public static final long DEFAULT_QUEUE_WAIT_THRESHOLD_MS = 100;
+
+    /** Constructs a policy using the default sizes and thresholds. */
+    public HanntoElasticPolicy() {
+        this(DEFAULT_MIN_DISPATCHERS, DEFAULT_MAX_DISPATCHERS);
+    }
+
+    /**
+     * Constructs a policy with the default keep-alive and thresholds.
+     *
+     * @param minDispatchers Dispatchers kept alive when idle; may be 0.
+     * @param maxDispatchers Upper bound on the pool size.
+     */
+    public HanntoElasticPolicy(int minDispatchers, int maxDispatchers) {
+        this(
+                minDispatchers,
+                maxDispatchers,
+                DEFAULT_KEEP_ALIVE_MS,
+                DEFAULT_QUEUE_DEPTH_THRESHOLD,
+                DEFAULT_QUEUE_WAIT_THRESHOLD_MS);
+    }
+
+    /**
+     * Constructs a new elastic policy.
+     *
+     * @param minDispatchers Dispatchers kept alive when idle; may be 0.
+     * @param maxDispatchers Upper bound on the pool size.
+     * @param keepAliveMs How long a surplus dispatcher may stay idle before it exits.
+     * @param queueDepthThreshold Queue depth that triggers growth when no dispatcher is idle.
+     * @param queueWaitThresholdMs Queue wait that triggers growth when no dispatcher is idle.
+     */
+    public HanntoElasticPolicy(
+            int minDispatchers,
+            int maxDispatchers,
+            long keepAliveMs,
+            int queueDepthThreshold,
+            long queueWaitThresholdMs) {
+        if (minDispatchers < 0 || maxDispatchers < 1 || minDispatchers > maxDispatchers) {
+            throw new IllegalArgumentException(
+                    "Invalid dispatcher bounds " + minDispatchers + ".." + maxDispatchers);
+        }
+        if (keepAliveMs <= 0) {
+            throw new IllegalArgumentException("keepAliveMs must be positive");
+        }
+        mMinDispatchers = minDispatchers;
+        mMaxDispatchers = maxDispatchers;
+        mKeepAliveMs = keepAliveMs;
+        mQueueDepthThreshold = queueDepthThreshold;
+        mQueueWaitThresholdMs = queueWaitThresholdMs;
+    }
+
+    /** Returns the minimum number of dispatchers kept alive. */
+    public int getMinDispatchers() {
+        return mMinDispatchers;
+    }
+
+    /** Returns the maximum number of dispatchers. */
+    public int getMaxDispatchers() {
+        return mMaxDispatchers;
+    }
+
+    /** Returns how long a surplus dispatcher may stay idle before it exits. */
+    public long getKeepAliveMs() {
+        return mKeepAliveMs;
+    }
+
+    /** Returns the queue depth that triggers growth. */
+    public int getQueueDepthThreshold() {
+        return mQueueDepthThreshold;
+    }
+
+    /** Returns the queue wait in milliseconds that triggers growth. */
+    public long getQueueWaitThresholdMs() {
+        return mQueueWaitThresholdMs;
+    }
+}
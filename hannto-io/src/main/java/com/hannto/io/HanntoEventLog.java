@@ -0,0 +1,235 @@
+package com.hannto.io;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Records the stages each request passes through, such as "add-to-queue", "network-queue-take",
+ * "network-http-complete", "network-parse-complete", "post-response" and the tag it finishes
+ * with, for reconstructing where requests spend their time. See {@link
+ * com.hannto.io.toolbox.HanntoChromeTrace} for viewing the events on a timeline.
+ *
+ * <p>Recording is off until {@link #enable(int)} is called. While on, each thread writes to a
+ * ring buffer of its own, allocated when the thread first records an event, so recording takes
+ * no locks and allocates nothing. Once a thread's buffer is full its oldest events are
+ * overwritten; {@link #snapshot()} returns what is left. A thread that exits keeps its buffer
+ * until another thread first records an event, so that pools which retire and start threads do
+ * not accumulate buffers.
+ */
+public final class HanntoEventLog {
+
+    /** The default number of events kept per thread. */
+    public static final int DEFAULT_EVENTS_PER_THREAD = 4096;
+
+    /** A stage reached by a request. */
+    public static final class Event {
+        /** Identifies the request; see {@link HanntoRequest#getTraceId()}. */
+        public final long requestId;
+
+        /** The stage reached. */
+        public final String marker;
+
+        /** When the stage was reached, in nanoseconds from an arbitrary origin. */
+        public final long timeNanos;
+
+        /** The ID of the thread that recorded the event. */
+        public final long threadId;
+
+        /** The name the thread had when it first recorded an event. */
+        public final String threadName;
+
+        Event(long requestId, String marker, long timeNanos, long threadId, String threadName) {
+            this.requestId = requestId;
+            this.marker = marker;
+            this.timeNanos = timeNanos;
+            this.threadId = threadId;
+            this.threadName = threadName;
+        }
+    }
+
+    /** One thread's events. Only the owning thread writes to it. */
+    private static final class Ring {
+        final int mMask;
+        final long[] mRequestIds;
+        final String[] mMarkers;
+        final long[] mTimes;
+        final long mThreadId;
+        final String mThreadName;
+        final int mGeneration;
+
+        /** The owning thread, held weakly so that the ring does not keep it alive. */
+        final WeakReference<Thread> mOwner;
+
+        /**
+         * Total number of events ever written. Written after each event's fields, so that a
+         * reader who sees a count also sees the events before it.
+         */
+        volatile long mCount;
+
+        Ring(int capacity, int generation, Thread thread) {
+            mMask = capacity - 1;
+            mRequestIds = new long[capacity];
+            mMarkers = new String[capacity];
+            mTimes = new long[capacity];
+            mThreadId = thread.getId();
+            mThreadName = thread.getName();
+            mGeneration = generation;
+            mOwner = new WeakReference<>(thread);
+        }
+
+        boolean isOwnerAlive() {
+            Thread owner = mOwner.get();
+            return owner != null && owner.isAlive();
+        }
+
+        void add(long requestId, String marker, long timeNanos) {
+            long count = mCount;
+            int index = (int) count & mMask;
+            mRequestIds[index] = requestId;
+            mMarkers[index] = marker;
+            mTimes[index] = timeNanos;
+            mCount = count + 1;
+        }
+
+        /**
+         * Copies out the events that are not overwritten while being copied. The oldest slot is
+         * skipped, as the owner may be overwriting it already.
+         */
+        void copyTo(List<Event> events) {
+            int capacity = mMask + 1;
+            long end = mCount;
+            long start = Math.max(0, end - capacity + 1);
+            List<Event> copied = new ArrayList<>((int) (end - start));
+            for (long i = start; i < end; i++) {
+                int index = (int) i & mMask;
+                copied.add(
+                        new Event(
+                                mRequestIds[index],
+                                mMarkers[index],
+                                mTimes[index],
+                                mThreadId,
+                                mThreadName));
+            }
+            // The owner may have written more while we copied. Drop the slots it reached.
+            long overwritten = mCount - capacity + 1 - start;
+            if (overwritten > 0) {
+                copied = copied.subList((int) Math.min(overwritten, copied.size()), copied.size());
+            }
+            events.addAll(copied);
+        }
+    }
+
+    /** Rings of the current generation, registered as threads first record into them. */
+    private static final List<Ring> sRings = new CopyOnWriteArrayList<>();
+
+    private static final ThreadLocal<Ring> sThreadRing = new ThreadLocal<>();
+
+    /** Events kept per thread, or 0 while recording is off. */
+    private static volatile int sCapacity = 0;
+
+    /** Changes whenever recording is turned on or off, retiring the rings in use. */
+    private static volatile int sGeneration = 0;
+
+    private HanntoEventLog() {}
+
+    /** Starts recording with {@link #DEFAULT_EVENTS_PER_THREAD} events kept per thread. */
+    public static void enable() {
+        enable(DEFAULT_EVENTS_PER_THREAD);
+    }
+
+    /**
+     * Starts recording, discarding any events recorded so far.
+     *
+     * @param eventsPerThread Events kept per thread, at least; buffers are sized to a power of
+     *     two
+     */
+    public static synchronized void enable(int eventsPerThread) {
+        if (eventsPerThread < 1 || eventsPerThread >= (1 << 30)) {
+            throw new IllegalArgumentException("Invalid eventsPerThread " + eventsPerThread);
+        }
+        // One slot is left out of snapshots, as its owner may be writing it.
+        int capacity = 2;
+        while (capacity < eventsPerThread + 1) {
+            capacity <<= 1;
+        }
+        sRings.clear();
+        sGeneration++;
+        sCapacity = capacity;
+    }
+
+    /** Stops recording and discards the recorded events. */
+    public static synchronized void disable() {
+        sCapacity = 0;
+        sGeneration++;
+        sRings.clear();
+    }
+
+    /** Returns true while events are being recorded. */
+    public static boolean isEnabled() {
+        return sCapacity != 0;
+    }
+
+    /** Records that a request reached a stage, if recording is on. */
+    public static void record(long requestId, String marker) {
+        if (sCapacity == 0) {
+            return;
+        }
+        Ring ring = sThreadRing.get();
+        if (ring == null || ring.mGeneration != sGeneration) {
+            ring = register();
+            if (ring == null) {
+                return;
+            }
+        }
+        ring.add(requestId, marker, System.nanoTime());
+    }
+
+    /**
+     * Gives the calling thread a ring of the current generation, or returns null if off. Drops
+     * the rings of threads that have exited.
+     */
+    private static synchronized Ring register() {
+        if (sCapacity == 0) {
+            return null;
+        }
+        List<Ring> dead = new ArrayList<>();
+        for (Ring ring : sRings) {
+            if (!ring.isOwnerAlive()) {
+                dead.add(ring);
+            }
+        }
+        sRings.removeAll(dead);
+        Ring ring = new Ring(sCapacity, sGeneration, Thread.currentThread());
+        sThreadRing.set(ring);
+        sRings.add(ring);
+        return ring;
+    }
+
+    /** Returns the number of threads with a ring, for tests. */
+    /* package */ static int ringCount() {
+        return sRings.size();
+    }
+
+    /** Returns the recorded events, ordered by time. */
+    public static List<Event> snapshot() {
+        List<Event> events = new ArrayList<>();
+        for (Ring ring : sRings) {
+            ring.copyTo(events);
+        }
+        Collections.sort(
+                events,
+                new Comparator<Event>() {
+                    @Override
+                    public int compare(Event left, Event right) {
+                        return left.timeNanos < right.timeNanos
+                                ? -1
+                                : (left.timeNanos == right.timeNanos ? 0 : 1);
+                    }
+                });
+        return events;
+    }
+}
@@ -1,8 +1,7 @@
 package com.hannto.io;
 
-import android.os.Handler;
-
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 public class HanntoExecutorDelivery implements HanntoResponseDelivery {
     /** Used for posting responses, typically to the main thread. */
@@ -11,23 +10,8 @@ public class HanntoExecutorDelivery implements HanntoResponseDelivery {
     /**
      * Creates a new response delivery interface.
      *
-     * @param handler {@link Handler} to post responses on
-     */
-    public HanntoExecutorDelivery(final Handler handler) {
-        // Make an Executor that just wraps the handler.
-        mResponsePoster =
-                new Executor() {
-                    @Override
-                    public void execute(Runnable command) {
-                        handler.post(command);
-                    }
-                };
-    }
-
-    /**
-     * Creates a new response delivery interface, mockable version for testing.
-     *
-     * @param executor For running delivery tasks
+     * @param executor For running delivery tasks, typically {@link
+     *     HanntoPlatform#mainThreadExecutor()}
      */
     public HanntoExecutorDelivery(Executor executor) {
         mResponsePoster = executor;
@@ -41,13 +25,13 @@ public class HanntoExecutorDelivery implements HanntoResponseDelivery {
     @Override
     public void postResponse(HanntoRequest<?> request, HanntoResponse<?> response, Runnable runnable) {
         request.markDelivered();
-//        request.addMarker("post-response");
+        request.addMarker("post-response");
         mResponsePoster.execute(new ResponseDeliveryRunnable(request, response, runnable));
     }
 
     @Override
     public void postError(HanntoRequest<?> request, HanntoError error) {
-//        request.addMarker("post-error");
+        request.addMarker("post-error");
         HanntoResponse<?> response = HanntoResponse.error(error);
         mResponsePoster.execute(new ResponseDeliveryRunnable(request, response, null));
     }
@@ -58,6 +42,7 @@ public class HanntoExecutorDelivery implements HanntoResponseDelivery {
         private final HanntoRequest mRequest;
         private final HanntoResponse mResponse;
         private final Runnable mRunnable;
+        private final long mPostedNanos = System.nanoTime();
 
         public ResponseDeliveryRunnable(HanntoRequest request, HanntoResponse response, Runnable runnable) {
             mRequest = request;
@@ -68,6 +53,10 @@ public class HanntoExecutorDelivery implements HanntoResponseDelivery {
         @SuppressWarnings("unchecked")
         @Override
         public void run() {
+            mRequest.recordStage(
+                    HanntoMetrics.Stage.DELIVERY,
+                    TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - mPostedNanos));
+
             // NOTE: If cancel() is called off the thread that we're currently running in (by
             // default, the main thread), we cannot guarantee that deliverResponse()/deliverError()
             // won't be called, since it may be canceled after we check isCanceled() but before we
@@ -85,13 +74,14 @@ public class HanntoExecutorDelivery implements HanntoResponseDelivery {
             if (mResponse.isSuccess()) {
                 mRequest.deliverResponse(mResponse.result);
             } else {
+                mRequest.recordDeliveredError(mResponse.error);
                 mRequest.deliverError(mResponse.error);
             }
 
             // If this is an intermediate response, add a marker, otherwise we're done
             // and the request can be finished.
             if (mResponse.intermediate) {
-//                mRequest.addMarker("intermediate-response");
+                mRequest.addMarker("intermediate-response");
             } else {
                 mRequest.finish("done");
             }
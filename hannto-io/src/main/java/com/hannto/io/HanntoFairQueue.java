@@ -0,0 +1,434 @@
+package com.hannto.io;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An unbounded blocking queue of requests that shares dispatchers fairly between request tags,
+ * for queues serving several clients at once. Pass one to {@link HanntoRequestQueue} in place of
+ * the default network queue.
+ *
+ * <p>Requests are grouped into flows by {@link HanntoRequest#getTag()}; untagged requests form one
+ * flow of their own. Among requests of equal priority, flows take turns in proportion to their
+ * weight (see {@link #setWeight}), so a flow that queues thousands of requests delays the others
+ * by at most one request per turn instead of by its whole backlog. Within a flow, requests of
+ * equal priority come out in the order they were added.
+ *
+ * <p>Higher priorities still go first, but a waiting request is promoted one priority level for
+ * every aging interval it has spent in the queue, up to {@link HanntoRequest.Priority#IMMEDIATE}.
+ * Steady high priority traffic therefore delays low priority requests by a bounded time rather
+ * than forever.
+ *
+ * <p>Choosing the next request looks at the head of every priority in every flow, which is cheap
+ * for the handful of tags a queue typically serves but grows with the number of distinct tags
+ * queued at once.
+ */
+public class HanntoFairQueue extends AbstractQueue<HanntoRequest>
+        implements BlockingQueue<HanntoRequest> {
+
+    /** Default time a request waits before being promoted one priority level. */
+    public static final long DEFAULT_AGING_MS = 2000;
+
+    private static final HanntoRequest.Priority[] PRIORITIES = HanntoRequest.Priority.values();
+
+    private static final int HIGHEST_PRIORITY = PRIORITIES.length - 1;
+
+    /** Flow key of untagged requests. */
+    private static final Object UNTAGGED = new Object();
+
+    /** A queued request. */
+    private static class Entry {
+        final HanntoRequest request;
+        final Flow flow;
+        final int priority;
+        final long enqueuedAt;
+        final long sequence;
+
+        Entry(HanntoRequest request, Flow flow, int priority, long enqueuedAt, long sequence) {
+            this.request = request;
+            this.flow = flow;
+            this.priority = priority;
+            this.enqueuedAt = enqueuedAt;
+            this.sequence = sequence;
+        }
+    }
+
+    /** The queued requests of one tag, with one FIFO per priority. */
+    private static class Flow {
+        final Object key;
+        final ArrayDeque<Entry>[] queues;
+        int size;
+
+        /**
+         * Virtual time at which this flow is next due. Each request served advances it by the
+         * inverse of the flow's weight, so heavier flows fall behind more slowly.
+         */
+        double pass;
+
+        @SuppressWarnings("unchecked")
+        Flow(Object key, double pass) {
+            this.key = key;
+            this.pass = pass;
+            queues = new ArrayDeque[PRIORITIES.length];
+            for (int i = 0; i < queues.length; i++) {
+                queues[i] = new ArrayDeque<>();
+            }
+        }
+    }
+
+    private final long mAgingMs;
+
+    private final HanntoClock mClock;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    private final Condition mNotEmpty = mLock.newCondition();
+
+    /** Flows with queued requests, by tag. Guarded by mLock. */
+    private final Map<Object, Flow> mFlows = new LinkedHashMap<>();
+
+    /** Weights set with {@link #setWeight}, by tag. Guarded by mLock. */
+    private final Map<Object, Integer> mWeights = new HashMap<>();
+
+    /**
+     * Pass of the most recently served flow. A flow that becomes active starts here, so it cannot
+     * claim turns for the time it was idle. Guarded by mLock.
+     */
+    private double mVirtualTime;
+
+    /** Insertion counter used to keep FIFO order between flows. Guarded by mLock. */
+    private long mSequence;
+
+    /** Number of queued requests. Guarded by mLock. */
+    private int mCount;
+
+    /** Creates a queue that promotes waiting requests every {@link #DEFAULT_AGING_MS}. */
+    public HanntoFairQueue() {
+        this(DEFAULT_AGING_MS);
+    }
+
+    /**
+     * @param agingMs Time a request waits before being promoted one priority level, or 0 to never
+     *     promote requests
+     */
+    public HanntoFairQueue(long agingMs) {
+        this(agingMs, HanntoPlatform.clock());
+    }
+
+    /* package */ HanntoFairQueue(long agingMs, HanntoClock clock) {
+        if (agingMs < 0) {
+            throw new IllegalArgumentException("agingMs must not be negative");
+        }
+        mAgingMs = agingMs;
+        mClock = clock;
+    }
+
+    /**
+     * Sets the share of turns requests with the given tag get relative to other tags. A flow of
+     * weight 3 is served three requests for every one of a flow of weight 1 when both are busy.
+     * Tags have weight 1 unless set otherwise.
+     *
+     * @param tag Tag of the requests, or null for untagged requests
+     * @param weight Positive weight
+     */
+    public void setWeight(Object tag, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be positive");
+        }
+        mLock.lock();
+        try {
+            mWeights.put(keyOf(tag), weight);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private static Object keyOf(Object tag) {
+        return tag != null ? tag : UNTAGGED;
+    }
+
+    @Override
+    public boolean offer(HanntoRequest request) {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        Object key = keyOf(request.getTag());
+        int priority = request.getPriority().ordinal();
+        mLock.lock();
+        try {
+            Flow flow = mFlows.get(key);
+            if (flow == null) {
+                flow = new Flow(key, mVirtualTime);
+                mFlows.put(key, flow);
+            }
+            flow.queues[priority].add(
+                    new Entry(request, flow, priority, mClock.elapsedRealtime(), mSequence++));
+            flow.size++;
+            mCount++;
+            mNotEmpty.signal();
+        } finally {
+            mLock.unlock();
+        }
+        return true;
+    }
+
+    @Override
+    public void put(HanntoRequest request) {
+        offer(request);
+    }
+
+    @Override
+    public boolean offer(HanntoRequest request, long timeout, TimeUnit unit) {
+        return offer(request);
+    }
+
+    /**
+     * Returns the entry to serve next: the highest effective priority, then the flow that is due
+     * soonest, then the oldest request. Must be called with mLock held.
+     */
+    private Entry next() {
+        long now = mClock.elapsedRealtime();
+        Entry best = null;
+        int bestPriority = -1;
+        for (Flow flow : mFlows.values()) {
+            for (int i = HIGHEST_PRIORITY; i >= 0; i--) {
+                Entry head = flow.queues[i].peek();
+                if (head == null) {
+                    continue;
+                }
+                int priority = effectivePriority(head, now);
+                if (best == null
+                        || priority > bestPriority
+                        || (priority == bestPriority && isAhead(head, best))) {
+                    best = head;
+                    bestPriority = priority;
+                }
+            }
+        }
+        return best;
+    }
+
+    private int effectivePriority(Entry entry, long now) {
+        if (mAgingMs == 0 || entry.priority == HIGHEST_PRIORITY) {
+            return entry.priority;
+        }
+        long promotions = Math.max(0, now - entry.enqueuedAt) / mAgingMs;
+        return (int) Math.min(HIGHEST_PRIORITY, entry.priority + promotions);
+    }
+
+    private static boolean isAhead(Entry entry, Entry other) {
+        if (entry.flow.pass != other.flow.pass) {
+            return entry.flow.pass < other.flow.pass;
+        }
+        return entry.sequence < other.sequence;
+    }
+
+    /** Removes an entry from its flow. Must be called with mLock held. */
+    private void unlink(Entry entry, boolean served) {
+        Flow flow = entry.flow;
+        if (served) {
+            mVirtualTime = Math.max(mVirtualTime, flow.pass);
+            Integer weight = mWeights.get(flow.key);
+            flow.pass += 1.0 / (weight != null ? weight : 1);
+        }
+        mCount--;
+        if (--flow.size == 0) {
+            mFlows.remove(flow.key);
+        }
+    }
+
+    @Override
+    public HanntoRequest poll() {
+        mLock.lock();
+        try {
+            return pollLocked();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private HanntoRequest pollLocked() {
+        Entry entry = next();
+        if (entry == null) {
+            return null;
+        }
+        entry.flow.queues[entry.priority].poll();
+        unlink(entry, true);
+        return entry.request;
+    }
+
+    @Override
+    public HanntoRequest take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            HanntoRequest request;
+            while ((request = pollLocked()) == null) {
+                mNotEmpty.await();
+            }
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public HanntoRequest poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            HanntoRequest request;
+            while ((request = pollLocked()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = mNotEmpty.awaitNanos(nanos);
+            }
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public HanntoRequest peek() {
+        mLock.lock();
+        try {
+            Entry entry = next();
+            return entry != null ? entry.request : null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns the number of tags with queued requests. */
+    public int flowCount() {
+        mLock.lock();
+        try {
+            return mFlows.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof HanntoRequest)) {
+            return false;
+        }
+        mLock.lock();
+        try {
+            // The tag may have changed since the request was added, so look in every flow.
+            for (Flow flow : mFlows.values()) {
+                for (ArrayDeque<Entry> queue : flow.queues) {
+                    Iterator<Entry> it = queue.iterator();
+                    while (it.hasNext()) {
+                        Entry entry = it.next();
+                        if (entry.request == o) {
+                            it.remove();
+                            unlink(entry, false);
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super HanntoRequest> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super HanntoRequest> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        mLock.lock();
+        try {
+            int drained = 0;
+            HanntoRequest request;
+            while (drained < maxElements && (request = pollLocked()) != null) {
+                c.add(request);
+                drained++;
+            }
+            return drained;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Iterates over a snapshot of the queued requests, in no particular order. Removing through
+     * the iterator removes the request from the queue.
+     */
+    @Override
+    public Iterator<HanntoRequest> iterator() {
+        final List<HanntoRequest> snapshot = new ArrayList<>();
+        mLock.lock();
+        try {
+            for (Flow flow : mFlows.values()) {
+                for (ArrayDeque<Entry> queue : flow.queues) {
+                    for (Entry entry : queue) {
+                        snapshot.add(entry.request);
+                    }
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        return new Iterator<HanntoRequest>() {
+            private final Iterator<HanntoRequest> mSnapshot = snapshot.iterator();
+            private HanntoRequest mLast;
+
+            @Override
+            public boolean hasNext() {
+                return mSnapshot.hasNext();
+            }
+
+            @Override
+            public HanntoRequest next() {
+                mLast = mSnapshot.next();
+                return mLast;
+            }
+
+            @Override
+            public void remove() {
+                if (mLast == null) {
+                    throw new IllegalStateException();
+                }
+                HanntoFairQueue.this.remove(mLast);
+                mLast = null;
+            }
+        };
+    }
+}
@@ -0,0 +1,167 @@
+package com.hannto.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values, such as latencies in microseconds, with buckets whose width
+ * grows with the values they hold so that every value is kept to within 1/{@link #SUB_BUCKETS} of
+ * its size. Values up to {@link #SUB_BUCKETS} have a bucket each; above that, each power of two is
+ * split into {@link #SUB_BUCKETS} equal buckets. Values above {@link #MAX_VALUE} are counted as
+ * {@link #MAX_VALUE}.
+ *
+ * <p>Recording takes no locks and allocates nothing, so it is safe on any thread and on hot paths.
+ * A {@link Snapshot} taken while values are being recorded may include some of them and not
+ * others.
+ */
+public class HanntoHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /** Number of buckets each power of two is split into. */
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int MAX_EXPONENT = 36;
+
+    /** Largest value told apart from larger ones; about 38 hours in microseconds. */
+    public static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong mCount = new AtomicLong();
+
+    private final AtomicLong mSum = new AtomicLong();
+
+    private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+
+    private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+    /** Records a value. Negative values are counted as 0. */
+    public void record(long value) {
+        value = Math.min(Math.max(value, 0), MAX_VALUE);
+        mCounts.incrementAndGet(bucketOf(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long min;
+        while (value < (min = mMin.get()) && !mMin.compareAndSet(min, value)) {
+            // Lost a race with another thread; retry against its value.
+        }
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            // Lost a race with another thread; retry against its value.
+        }
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /** Returns the largest value counted in a bucket. */
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lowest = (1L << exponent) + (bucket % SUB_BUCKETS) * width;
+        return lowest + width - 1;
+    }
+
+    /** Returns a copy of the values recorded so far. */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return new Snapshot(counts, mCount.get(), mSum.get(), mMin.get(), mMax.get());
+    }
+
+    /** The values of a {@link HanntoHistogram} at one point in time. */
+    public static final class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSum;
+        private final long mMin;
+        private final long mMax;
+
+        Snapshot(long[] counts, long count, long sum, long min, long max) {
+            mCounts = counts;
+            mCount = count;
+            mSum = sum;
+            mMin = min;
+            mMax = max;
+        }
+
+        /** Returns the number of values recorded. */
+        public long getCount() {
+            return mCount;
+        }
+
+        /** Returns the sum of the values recorded. */
+        public long getSum() {
+            return mSum;
+        }
+
+        /** Returns the smallest value recorded, or 0 if there are none. */
+        public long getMin() {
+            return mCount == 0 ? 0 : mMin;
+        }
+
+        /** Returns the largest value recorded, or 0 if there are none. */
+        public long getMax() {
+            return mCount == 0 ? 0 : mMax;
+        }
+
+        /** Returns the mean of the values recorded, or 0 if there are none. */
+        public double getMean() {
+            return mCount == 0 ? 0 : (double) mSum / mCount;
+        }
+
+        /**
+         * Returns a value that the given percentage of recorded values are at or below, to within
+         * the histogram's precision, or 0 if there are none.
+         *
+         * @param percentile Percentage between 0 and 100
+         */
+        public long getValueAtPercentile(double percentile) {
+            long total = 0;
+            for (long count : mCounts) {
+                total += count;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), getMax());
+                }
+            }
+            return getMax();
+        }
+
+        /** Returns the number of buckets, for exporting the whole distribution. */
+        public int getBucketCount() {
+            return mCounts.length;
+        }
+
+        /** Returns the largest value counted in a bucket. */
+        public long getBucketUpperBound(int bucket) {
+            return upperBoundOf(bucket);
+        }
+
+        /** Returns the number of values counted in a bucket. */
+        public long getCountInBucket(int bucket) {
+            return mCounts[bucket];
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.hannto.io;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * A named lane of a {@link HanntoRequestQueue}: a queue with dispatchers of its own, so that
+ * requests in one lane never wait behind requests in another. A lane for short control commands
+ * keeps them moving while long transfers occupy the other dispatchers.
+ *
+ * <p>Requests choose a lane with {@link HanntoRequest#setLane(String)}; the rest go to the
+ * queue's main pool. Within a lane, requests are ordered by priority as usual.
+ *
+ * <p>At most {@link #getMaxConcurrent()} of a lane's requests are processed at once. For
+ * dispatchers that block on one request at a time this caps the number of dispatchers started;
+ * for asynchronous dispatchers it caps the requests in flight across the whole lane.
+ */
+public class HanntoLane {
+    /** The name requests use to choose this lane. */
+    private final String mName;
+
+    /** The number of dispatchers serving this lane. */
+    private final int mDispatchers;
+
+    /** The maximum number of this lane's requests processed at once. */
+    private final int mMaxConcurrent;
+
+    /** The queue of this lane's requests. */
+    private final BlockingQueue<HanntoRequest> mQueue;
+
+    /**
+     * Constructs a lane with a priority queue.
+     *
+     * @param name The name requests use to choose this lane
+     * @param dispatchers The number of dispatchers serving this lane
+     * @param maxConcurrent The maximum number of this lane's requests processed at once
+     */
+    public HanntoLane(String name, int dispatchers, int maxConcurrent) {
+        this(name, dispatchers, maxConcurrent, new PriorityBlockingQueue<HanntoRequest>());
+    }
+
+    /**
+     * Constructs a lane.
+     *
+     * @param name The name requests use to choose this lane
+     * @param dispatchers The number of dispatchers serving this lane
+     * @param maxConcurrent The maximum number of this lane's requests processed at once
+     * @param queue The queue of this lane's requests, ordered like the main network queue
+     */
+    public HanntoLane(
+            String name, int dispatchers, int maxConcurrent, BlockingQueue<HanntoRequest> queue) {
+        if (name == null || dispatchers < 1 || maxConcurrent < 1 || queue == null) {
+            throw new IllegalArgumentException("Invalid lane settings");
+        }
+        mName = name;
+        mDispatchers = dispatchers;
+        mMaxConcurrent = maxConcurrent;
+        mQueue = queue;
+    }
+
+    /** Returns the name requests use to choose this lane. */
+    public String getName() {
+        return mName;
+    }
+
+    /** Returns the number of dispatchers serving this lane. */
+    public int getDispatchers() {
+        return mDispatchers;
+    }
+
+    /** Returns the maximum number of this lane's requests processed at once. */
+    public int getMaxConcurrent() {
+        return mMaxConcurrent;
+    }
+
+    /** Returns the queue of this lane's requests. */
+    /* package */ BlockingQueue<HanntoRequest> getQueue() {
+        return mQueue;
+    }
+}
@@ -0,0 +1,214 @@
+package com.hannto.io;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latency histograms and load gauges of a {@link HanntoRequestQueue}, for finding where requests
+ * spend their time. See {@link HanntoRequestQueue#getMetrics()}.
+ *
+ * <p>Each {@link Stage} has a histogram of durations in microseconds, overall, per {@link
+ * HanntoRequest.Priority} and per request tag. Recording is lock-free and allocation-free. Only
+ * tags registered with {@link #trackTag(Object)} are broken down, and each is held until {@link
+ * #untrackTag(Object)}, so that tags such as screens can be tracked while they are shown.
+ *
+ * <p>{@link #snapshot()} copies the histograms and reads the gauges, for exporters that poll.
+ */
+public class HanntoMetrics {
+
+    /** A stage of a request's life that is timed. */
+    public enum Stage {
+        /** From being added to the queue until a network dispatcher takes it. */
+        QUEUE_WAIT,
+
+        /**
+         * Time spent on the network, including retries, as reported by {@link
+         * HanntoNetworkResponse#networkTimeMs} or {@link HanntoError#getNetworkTimeMs()}.
+         */
+        NETWORK,
+
+        /** Parsing the network response. */
+        PARSE,
+
+        /** From posting a response or error until the delivery executor runs it. */
+        DELIVERY
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private static final HanntoRequest.Priority[] PRIORITIES = HanntoRequest.Priority.values();
+
+    /** Reads the queue's load. */
+    /* package */ interface Gauges {
+        /** Returns the number of requests waiting in the cache and network queues. */
+        int queueDepth();
+
+        /** Returns the number of requests taken by network dispatchers and not yet done. */
+        int inFlight();
+
+        /** Returns the number of network dispatchers with at least one request in flight. */
+        int busyDispatchers();
+    }
+
+    private final Gauges mGauges;
+
+    /** Histograms by stage. */
+    private final HanntoHistogram[] mByStage = newStageHistograms();
+
+    /** Histograms by priority, then stage. */
+    private final HanntoHistogram[][] mByPriority = new HanntoHistogram[PRIORITIES.length][];
+
+    /** Histograms by tracked tag, then stage. */
+    private final ConcurrentHashMap<Object, HanntoHistogram[]> mByTag = new ConcurrentHashMap<>();
+
+    /* package */ HanntoMetrics(Gauges gauges) {
+        mGauges = gauges;
+        for (int i = 0; i < mByPriority.length; i++) {
+            mByPriority[i] = newStageHistograms();
+        }
+    }
+
+    private static HanntoHistogram[] newStageHistograms() {
+        HanntoHistogram[] histograms = new HanntoHistogram[STAGES.length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new HanntoHistogram();
+        }
+        return histograms;
+    }
+
+    /** Records how long a request spent in a stage. */
+    /* package */ void record(Stage stage, HanntoRequest<?> request, long durationUs) {
+        int index = stage.ordinal();
+        mByStage[index].record(durationUs);
+        mByPriority[request.getPriority().ordinal()][index].record(durationUs);
+        Object tag = request.getTag();
+        if (tag != null) {
+            HanntoHistogram[] byTag = mByTag.get(tag);
+            if (byTag != null) {
+                byTag[index].record(durationUs);
+            }
+        }
+    }
+
+    /**
+     * Starts breaking down requests with a tag, compared with {@link Object#equals(Object)}.
+     * Requests recorded before the call are not included. Does nothing if the tag is tracked.
+     */
+    public void trackTag(Object tag) {
+        if (tag == null) {
+            throw new IllegalArgumentException("tag must not be null");
+        }
+        mByTag.putIfAbsent(tag, newStageHistograms());
+    }
+
+    /** Stops breaking down requests with a tag, dropping its histograms and the tag itself. */
+    public void untrackTag(Object tag) {
+        mByTag.remove(tag);
+    }
+
+    /** Returns a copy of the histograms and the current gauges. */
+    public Snapshot snapshot() {
+        Map<Stage, HanntoHistogram.Snapshot> byStage = snapshotOf(mByStage);
+        Map<HanntoRequest.Priority, Map<Stage, HanntoHistogram.Snapshot>> byPriority =
+                new EnumMap<>(HanntoRequest.Priority.class);
+        for (HanntoRequest.Priority priority : PRIORITIES) {
+            byPriority.put(priority, snapshotOf(mByPriority[priority.ordinal()]));
+        }
+        Map<Object, Map<Stage, HanntoHistogram.Snapshot>> byTag = new HashMap<>();
+        for (Map.Entry<Object, HanntoHistogram[]> entry : mByTag.entrySet()) {
+            byTag.put(entry.getKey(), snapshotOf(entry.getValue()));
+        }
+        return new Snapshot(
+                HanntoPlatform.elapsedRealtime(),
+                byStage,
+                byPriority,
+                byTag,
+                mGauges.queueDepth(),
+                mGauges.inFlight(),
+                mGauges.busyDispatchers());
+    }
+
+    private static Map<Stage, HanntoHistogram.Snapshot> snapshotOf(HanntoHistogram[] histograms) {
+        Map<Stage, HanntoHistogram.Snapshot> snapshots = new EnumMap<>(Stage.class);
+        for (Stage stage : STAGES) {
+            snapshots.put(stage, histograms[stage.ordinal()].snapshot());
+        }
+        return snapshots;
+    }
+
+    /** The metrics of a queue at one point in time. Histogram values are in microseconds. */
+    public static final class Snapshot {
+        private final long mTimeMs;
+        private final Map<Stage, HanntoHistogram.Snapshot> mByStage;
+        private final Map<HanntoRequest.Priority, Map<Stage, HanntoHistogram.Snapshot>>
+                mByPriority;
+        private final Map<Object, Map<Stage, HanntoHistogram.Snapshot>> mByTag;
+        private final int mQueueDepth;
+        private final int mInFlight;
+        private final int mBusyDispatchers;
+
+        Snapshot(
+                long timeMs,
+                Map<Stage, HanntoHistogram.Snapshot> byStage,
+                Map<HanntoRequest.Priority, Map<Stage, HanntoHistogram.Snapshot>> byPriority,
+                Map<Object, Map<Stage, HanntoHistogram.Snapshot>> byTag,
+                int queueDepth,
+                int inFlight,
+                int busyDispatchers) {
+            mTimeMs = timeMs;
+            mByStage = byStage;
+            mByPriority = byPriority;
+            mByTag = byTag;
+            mQueueDepth = queueDepth;
+            mInFlight = inFlight;
+            mBusyDispatchers = busyDispatchers;
+        }
+
+        /** Returns when the snapshot was taken, per {@link HanntoPlatform#elapsedRealtime()}. */
+        public long getTimeMs() {
+            return mTimeMs;
+        }
+
+        /** Returns the histogram of a stage across all requests. */
+        public HanntoHistogram.Snapshot get(Stage stage) {
+            return mByStage.get(stage);
+        }
+
+        /** Returns the histogram of a stage for requests of one priority. */
+        public HanntoHistogram.Snapshot get(Stage stage, HanntoRequest.Priority priority) {
+            return mByPriority.get(priority).get(stage);
+        }
+
+        /**
+         * Returns the histogram of a stage for requests with one tag, or null if the tag was not
+         * tracked.
+         */
+        public HanntoHistogram.Snapshot getForTag(Stage stage, Object tag) {
+            Map<Stage, HanntoHistogram.Snapshot> byStage = mByTag.get(tag);
+            return byStage != null ? byStage.get(stage) : null;
+        }
+
+        /** Returns the tags tracked when the snapshot was taken. */
+        public Iterable<Object> getTags() {
+            return Collections.unmodifiableSet(mByTag.keySet());
+        }
+
+        /** Returns the number of requests waiting in the cache and network queues. */
+        public int getQueueDepth() {
+            return mQueueDepth;
+        }
+
+        /** Returns the number of requests taken by network dispatchers and not yet done. */
+        public int getInFlight() {
+            return mInFlight;
+        }
+
+        /** Returns the number of network dispatchers with at least one request in flight. */
+        public int getBusyDispatchers() {
+            return mBusyDispatchers;
+        }
+    }
+}
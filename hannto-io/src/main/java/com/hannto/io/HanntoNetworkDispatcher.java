@@ -0,0 +1,310 @@
+package com.hannto.io;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HanntoNetworkDispatcher extends Thread {
+
+    /** Hooks used by an elastic pool to watch and retire its dispatchers. */
+    /* package */ interface PoolListener {
+
+        /** Called when the dispatcher has taken a request, before processing it. */
+        void onRequestTaken(HanntoNetworkDispatcher dispatcher, HanntoRequest request);
+
+        /**
+         * Called when the dispatcher has been idle for its whole keep-alive. Returns true if the
+         * dispatcher should exit.
+         */
+        boolean onKeepAliveExpired(HanntoNetworkDispatcher dispatcher);
+    }
+
+    /** The queue of requests to service. */
+    private final BlockingQueue<HanntoRequest> mQueue;
+    /** The network interface for processing requests. */
+    private final HanntoNetwork mNetwork;
+    /** The cache to write to, or null. */
+    private final HanntoCache mCache;
+    /** For posting responses and errors. */
+    private final HanntoResponseDelivery mDelivery;
+    /** Used for telling us to die. */
+    private volatile boolean mQuit = false;
+    /** Pool hooks, or null for a dispatcher that lives until {@link #quit()}. */
+    private final PoolListener mPoolListener;
+    /** How long to wait for a request before asking the pool whether to exit. */
+    private final long mKeepAliveMs;
+    /** Set once the pool has let this dispatcher exit. */
+    private boolean mRetired = false;
+    /** True while this dispatcher is waiting for a request. */
+    private volatile boolean mWaiting = false;
+    /** Number of requests taken by this dispatcher and not yet done with the network. */
+    private final AtomicInteger mActiveRequests = new AtomicInteger();
+
+    /**
+     * Creates a new network dispatcher thread. You must call {@link #start()} in order to begin
+     * processing.
+     *
+     * @param queue Queue of incoming requests for triage
+     * @param network Network interface to use for performing requests
+     * @param delivery Delivery interface to use for posting responses
+     */
+    public HanntoNetworkDispatcher(
+            BlockingQueue<HanntoRequest> queue,
+            HanntoNetwork network,
+            HanntoResponseDelivery delivery) {
+        this(queue, network, null, delivery, null, 0);
+    }
+
+    /**
+     * Creates a new network dispatcher thread. You must call {@link #start()} in order to begin
+     * processing.
+     *
+     * @param queue Queue of incoming requests for triage
+     * @param network Network interface to use for performing requests
+     * @param cache Cache interface to use for writing responses to cache
+     * @param delivery Delivery interface to use for posting responses
+     */
+    public HanntoNetworkDispatcher(
+            BlockingQueue<HanntoRequest> queue,
+            HanntoNetwork network,
+            HanntoCache cache,
+            HanntoResponseDelivery delivery) {
+        this(queue, network, cache, delivery, null, 0);
+    }
+
+    /**
+     * Creates a dispatcher that belongs to an elastic pool.
+     *
+     * @param poolListener Pool hooks, or null
+     * @param keepAliveMs Idle time after which the pool is asked whether this dispatcher may exit
+     */
+    /* package */ HanntoNetworkDispatcher(
+            BlockingQueue<HanntoRequest> queue,
+            HanntoNetwork network,
+            HanntoCache cache,
+            HanntoResponseDelivery delivery,
+            PoolListener poolListener,
+            long keepAliveMs) {
+        mQueue = queue;
+        mNetwork = network;
+        mCache = cache;
+        mDelivery = delivery;
+        mPoolListener = poolListener;
+        mKeepAliveMs = keepAliveMs;
+    }
+
+    /**
+     * Forces this dispatcher to quit immediately. If any requests are still in the queue, they are
+     * not guaranteed to be processed.
+     */
+    public void quit() {
+        mQuit = true;
+        interrupt();
+    }
+
+//    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+//    private void addTrafficStatsTag(HanntoRequest request) {
+//        // Tag the request (if API >= 14)
+//        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+//            TrafficStats.setThreadStatsTag(request.getTrafficStatsTag());
+//        }
+//    }
+
+    @Override
+    public void run() {
+        HanntoPlatform.threadPriority().setBackgroundPriority();
+        while (!mRetired) {
+            try {
+                processRequest();
+            } catch (InterruptedException e) {
+                // We may have been interrupted because it was time to quit.
+                if (mQuit) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+//                VolleyLog.e(
+//                        "Ignoring spurious interrupt of NetworkDispatcher thread; "
+//                                + "use quit() to terminate it");
+            }
+        }
+    }
+
+    /**
+     * Blocks until this dispatcher can take on another request. Dispatchers that process one
+     * request at a time are always ready.
+     */
+    /* package */ void awaitCapacity() throws InterruptedException {}
+
+    /** Returns capacity claimed by {@link #awaitCapacity()} when no request was taken. */
+    /* package */ void releaseCapacity() {}
+
+    /** Returns the number of requests this dispatcher is processing. */
+    /* package */ int getActiveRequests() {
+        return mActiveRequests.get();
+    }
+
+    /** Counts a request as being processed, until {@link #onRequestDone()}. */
+    /* package */ void onRequestStarted() {
+        mActiveRequests.incrementAndGet();
+    }
+
+    /* package */ void onRequestDone() {
+        mActiveRequests.decrementAndGet();
+    }
+
+    /** Returns true if this dispatcher is waiting for a request rather than processing one. */
+    /* package */ boolean isWaiting() {
+        return mWaiting;
+    }
+
+    private void processRequest() throws InterruptedException {
+        awaitCapacity();
+        HanntoRequest request = null;
+        mWaiting = true;
+        try {
+            // Take a request from the queue.
+            if (mPoolListener == null) {
+                request = mQueue.take();
+            } else {
+                request = mQueue.poll(mKeepAliveMs, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            mWaiting = false;
+            if (request == null) {
+                releaseCapacity();
+            }
+        }
+        if (mPoolListener != null) {
+            if (request == null) {
+                mRetired = mPoolListener.onKeepAliveExpired(this);
+                return;
+            }
+            mPoolListener.onRequestTaken(this, request);
+        }
+        processRequest(request);
+    }
+
+    // Visible for testing.
+    void processRequest(HanntoRequest request) {
+        // A request evicted by the admission policy has been finished already.
+        if (!request.markTaken()) {
+            releaseCapacity();
+            return;
+        }
+        long startTimeMs = HanntoPlatform.elapsedRealtime();
+        onRequestStarted();
+        try {
+            request.addMarker("network-queue-take");
+            request.recordQueueWait();
+
+            // If the request was cancelled already, do not perform the
+            // network request.
+            if (request.isCanceled()) {
+                request.finish("network-discard-cancelled");
+                request.notifyListenerResponseNotUsable();
+                return;
+            }
+
+//            addTrafficStatsTag(request);
+
+            // Perform the network request.
+            HanntoNetworkResponse networkResponse = mNetwork.performRequest(request);
+            request.addMarker("network-http-complete");
+
+            handleNetworkResponse(request, networkResponse);
+        } catch (HanntoError hanntoError) {
+            handleNetworkError(request, hanntoError, startTimeMs);
+        } catch (Exception e) {
+            handleUnexpectedException(request, e, startTimeMs);
+        } finally {
+            onRequestDone();
+        }
+    }
+
+    /**
+     * Parses a response from the network and posts it back. Runs on whichever thread completed
+     * the network request.
+     */
+    /* package */ void handleNetworkResponse(
+            HanntoRequest request, HanntoNetworkResponse networkResponse) {
+        // If the server returned 304 AND we delivered a response already,
+        // we're done -- don't deliver a second identical response.
+//        if (networkResponse.notModified && request.hasHadResponseDelivered()) {
+//            request.finish("not-modified");
+//            request.notifyListenerResponseNotUsable();
+//            return;
+//        }
+
+        // Parse the response here on the worker thread. A pooled body stays valid until the
+        // request finishes, after delivery.
+        request.recordStage(
+                HanntoMetrics.Stage.NETWORK,
+                TimeUnit.MILLISECONDS.toMicros(networkResponse.networkTimeMs));
+        request.recordResponseBytes(networkResponse.contentLength);
+
+        // If the request was cancelled while on the network, drop the response unparsed.
+        if (request.isCanceled()) {
+            networkResponse.release();
+            request.finish("network-discard-cancelled");
+            request.notifyListenerResponseNotUsable();
+            return;
+        }
+        request.retainUntilFinished(networkResponse);
+        long parseStartNanos = System.nanoTime();
+        HanntoResponse response = request.parseNetworkResponse(networkResponse);
+        request.recordStage(
+                HanntoMetrics.Stage.PARSE,
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - parseStartNanos));
+        request.addMarker("network-parse-complete");
+
+        // Write to cache if applicable.
+        if (mCache != null && request.shouldCache() && response.cacheEntry != null) {
+            mCache.put(request.getCacheKey(), response.cacheEntry);
+            request.addMarker("network-cache-written");
+        }
+
+        // Post the response back. Hold the body meanwhile, since the request may finish and
+        // release it before coalesced requests sharing the result take holds of their own.
+        request.markDelivered();
+        boolean held = networkResponse.retain();
+        try {
+            mDelivery.postResponse(request, response);
+            request.notifyListenerResponseReceived(response, networkResponse);
+        } finally {
+            if (held) {
+                networkResponse.release();
+            }
+        }
+    }
+
+    /** Posts an error returned by the network. */
+    /* package */ void handleNetworkError(
+            HanntoRequest request, HanntoError hanntoError, long startTimeMs) {
+        hanntoError.setNetworkTimeMs(HanntoPlatform.elapsedRealtime() - startTimeMs);
+        request.recordStage(
+                HanntoMetrics.Stage.NETWORK,
+                TimeUnit.MILLISECONDS.toMicros(hanntoError.getNetworkTimeMs()));
+        // Nobody is listening for the error of a cancelled request.
+        if (request.isCanceled()) {
+            request.finish("network-discard-cancelled");
+        } else {
+            parseAndDeliverNetworkError(request, hanntoError);
+        }
+        request.notifyListenerResponseNotUsable();
+    }
+
+    /** Posts an error for an exception thrown while performing or parsing a request. */
+    /* package */ void handleUnexpectedException(
+            HanntoRequest request, Exception e, long startTimeMs) {
+//        VolleyLog.e(e, "Unhandled exception %s", e.toString());
+        HanntoError volleyError = new HanntoError(e);
+        volleyError.setNetworkTimeMs(HanntoPlatform.elapsedRealtime() - startTimeMs);
+        mDelivery.postError(request, volleyError);
+        request.notifyListenerResponseNotUsable();
+    }
+
+    private void parseAndDeliverNetworkError(HanntoRequest<?> request, HanntoError error) {
+        error = request.parseNetworkError(error);
+        mDelivery.postError(request, error);
+    }
+}
@@ -1,5 +1,8 @@
 package com.hannto.io;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
 
 /** Data and headers returned from {@link HanntoNetwork#performRequest(HanntoRequest)}. */
 public class HanntoNetworkResponse {
@@ -112,13 +115,121 @@ public class HanntoNetworkResponse {
 //        }
 //        this.notModified = notModified;
         this.networkTimeMs = networkTimeMs;
+        this.content = null;
+        this.contentLength = data != null ? data.length : 0;
+        mBody = data != null ? ByteBuffer.wrap(data) : null;
+        mReleaser = null;
+        this.spool = null;
+    }
+
+    /**
+     * Creates a response backed by a buffer, which may be on the heap, direct or mapped. Parsers
+     * read it through {@link #getBody()} without copying.
+     *
+     * @param body Response body, from its position to its limit. It must not be changed
+     *     afterwards.
+     * @param networkTimeMs Round-trip network time to receive network response
+     */
+    public HanntoNetworkResponse(ByteBuffer body, long networkTimeMs) {
+        mBody = body.slice();
+        this.data = wholeArray(mBody);
+        this.content = null;
+        this.contentLength = mBody.remaining();
+        this.networkTimeMs = networkTimeMs;
+        mReleaser = null;
+        this.spool = null;
+    }
+
+    /**
+     * Creates a response backed by a pooled buffer. The body is only valid until {@link
+     * #release()}, which the dispatcher calls once the request has finished, after delivery.
+     * {@link #data} is null, and {@link #getData()} returns a copy that outlives the buffer.
+     *
+     * @param body Response body, from its position to its limit
+     * @param releaser Returns the buffer to its pool
+     * @param networkTimeMs Round-trip network time to receive network response
+     */
+    public HanntoNetworkResponse(ByteBuffer body, Runnable releaser, long networkTimeMs) {
+        mBody = body.slice();
+        this.data = null;
+        this.content = null;
+        this.contentLength = mBody.remaining();
+        this.networkTimeMs = networkTimeMs;
+        mReleaser = releaser;
+        this.spool = null;
+    }
+
+    /**
+     * Creates a response whose body is read from a stream while the request parses it. See {@link
+     * HanntoRequest#isStreaming()}.
+     *
+     * @param content Response body, closed by the dispatcher once parsed
+     * @param contentLength Body length in bytes, or -1 if unknown
+     * @param networkTimeMs Time until the body started to arrive
+     */
+    public HanntoNetworkResponse(InputStream content, long contentLength, long networkTimeMs) {
+        this.data = null;
+        mBody = null;
+        mReleaser = null;
+        this.content = content;
+        this.spool = null;
+        this.contentLength = contentLength;
+        this.networkTimeMs = networkTimeMs;
+    }
+
+    /**
+     * Creates a response whose body was written to the request's spool because it was over the
+     * spool's threshold.
+     *
+     * @param spool Spool holding the body
+     * @param contentLength Body length in bytes
+     * @param networkTimeMs Round-trip network time to receive network response
+     */
+    public HanntoNetworkResponse(HanntoSpool spool, long contentLength, long networkTimeMs) {
+        this.data = null;
+        mBody = null;
+        mReleaser = null;
+        this.content = null;
+        this.spool = spool;
+        this.contentLength = contentLength;
+        this.networkTimeMs = networkTimeMs;
     }
 
 //    /** The HTTP status code. */
 //    public final int statusCode;
 
-    /** Raw data from this response. */
-    public final byte[] data;
+    /**
+     * Raw data from this response, or null if the body is streamed, pooled, spooled or a buffer
+     * that does not span a whole array.
+     *
+     * @deprecated Use {@link #getData()}, which works for every buffered body, or {@link
+     *     #getBody()} to read it without copying.
+     */
+    @Deprecated public final byte[] data;
+
+    /** Body as a buffer, or null if the body is streamed or absent. */
+    private final ByteBuffer mBody;
+
+    /** Copy of mBody made by getData() when there is no data array. */
+    // Guarded by this.
+    private byte[] mCopiedData;
+
+    /** Returns a pooled body to its pool, or null if the body is not pooled or was released. */
+    // Guarded by this.
+    private Runnable mReleaser;
+
+    /** Number of holders of a pooled body: its creator plus each {@link #retain()}. */
+    // Guarded by this.
+    private int mHolders = 1;
+
+    /** Streamed body of this response, or null if the body is buffered or spooled. */
+    public final InputStream content;
+
+    /** Spool holding the body, or null if the body is not spooled. */
+    public final HanntoSpool spool;
+
+    /** Length of the body in bytes, or -1 if unknown. */
+    public final long contentLength;
 
     /**
      * Response headers.
@@ -140,6 +251,70 @@ public class HanntoNetworkResponse {
     /** Network roundtrip time in milliseconds. */
     public final long networkTimeMs;
 
+    /**
+     * Returns a read-only view of the body, or null if it is streamed. Each call returns a new
+     * view with its own position.
+     */
+    public ByteBuffer getBody() {
+        return mBody != null ? mBody.asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * Returns the body as an array, or null if it is streamed. A body backed by a buffer that is
+     * not a whole array is copied out on the first call.
+     */
+    public byte[] getData() {
+        if (data != null || mBody == null) {
+            return data;
+        }
+        synchronized (this) {
+            if (mCopiedData == null) {
+                mCopiedData = new byte[mBody.remaining()];
+                mBody.duplicate().get(mCopiedData);
+            }
+            return mCopiedData;
+        }
+    }
+
+    /**
+     * Takes another hold on a pooled body, which then stays valid until every holder has called
+     * {@link #release()}. Returns false, taking no hold, for other bodies or once released.
+     */
+    /* package */ synchronized boolean retain() {
+        if (mReleaser == null) {
+            return false;
+        }
+        mHolders++;
+        return true;
+    }
+
+    /**
+     * Gives up a hold on a pooled body, returning it to its pool once no holder is left. The body
+     * must not be read by the caller afterwards. Does nothing for other bodies, or if already
+     * released.
+     */
+    public void release() {
+        Runnable releaser;
+        synchronized (this) {
+            if (mReleaser == null || --mHolders > 0) {
+                return;
+            }
+            releaser = mReleaser;
+            mReleaser = null;
+        }
+        releaser.run();
+    }
+
+    /** Returns the array behind the buffer if the buffer spans all of it, or null. */
+    private static byte[] wholeArray(ByteBuffer buffer) {
+        if (buffer.hasArray()
+                && buffer.arrayOffset() == 0
+                && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        return null;
+    }
+
 //    private static Map<String, String> toHeaderMap(List<Header> allHeaders) {
 //        if (allHeaders == null) {
 //            return null;
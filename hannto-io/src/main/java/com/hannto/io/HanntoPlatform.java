@@ -0,0 +1,105 @@
+package com.hannto.io;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host environment hooks used by the request engine.
+ *
+ * <p>The defaults only depend on the JVM, so the engine can run inside a plain Java process. An
+ * Android host should {@link #install} implementations backed by {@code SystemClock}, {@code
+ * Process.setThreadPriority} and the main {@code Looper} before creating any queue.
+ */
+public final class HanntoPlatform {
+
+    private static volatile HanntoClock sClock = new JvmClock();
+
+    private static volatile HanntoThreadPriority sThreadPriority = new JvmThreadPriority();
+
+    private static volatile Executor sMainThreadExecutor;
+
+    private HanntoPlatform() {}
+
+    /**
+     * Replaces the platform hooks. Any argument may be null to keep the current hook.
+     *
+     * @param clock Time source for measuring durations
+     * @param threadPriority Priority adjustment applied by dispatcher threads
+     * @param mainThreadExecutor Executor used for delivering responses by default
+     */
+    public static void install(
+            HanntoClock clock, HanntoThreadPriority threadPriority, Executor mainThreadExecutor) {
+        if (clock != null) {
+            sClock = clock;
+        }
+        if (threadPriority != null) {
+            sThreadPriority = threadPriority;
+        }
+        if (mainThreadExecutor != null) {
+            sMainThreadExecutor = mainThreadExecutor;
+        }
+    }
+
+    /** Returns the installed clock. */
+    public static HanntoClock clock() {
+        return sClock;
+    }
+
+    /** Shorthand for {@code clock().elapsedRealtime()}. */
+    public static long elapsedRealtime() {
+        return sClock.elapsedRealtime();
+    }
+
+    /** Returns the installed thread priority hook. */
+    public static HanntoThreadPriority threadPriority() {
+        return sThreadPriority;
+    }
+
+    /**
+     * Returns the executor responses are delivered on by default. On the JVM this is a single
+     * daemon thread, which keeps delivery serial the way the Android main thread does.
+     */
+    public static Executor mainThreadExecutor() {
+        Executor executor = sMainThreadExecutor;
+        if (executor == null) {
+            synchronized (HanntoPlatform.class) {
+                executor = sMainThreadExecutor;
+                if (executor == null) {
+                    executor = newDeliveryExecutor();
+                    sMainThreadExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    private static ExecutorService newDeliveryExecutor() {
+        return Executors.newSingleThreadExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "HanntoDelivery");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    private static class JvmClock implements HanntoClock {
+        @Override
+        public long elapsedRealtime() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        }
+    }
+
+    private static class JvmThreadPriority implements HanntoThreadPriority {
+        @Override
+        public void setBackgroundPriority() {
+            // Java thread priorities are only hints and are ignored by most JVMs on Linux; leave
+            // the dispatcher at the priority it inherited.
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.hannto.io;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An unbounded blocking queue of requests with one lock-free FIFO lane per {@link
+ * HanntoRequest.Priority}.
+ *
+ * <p>Ordering matches a {@link java.util.concurrent.PriorityBlockingQueue} of requests: higher
+ * priorities are taken first, and requests of equal priority come out in the order they were
+ * added. Producers never take a lock unless a consumer is parked waiting for work, and neither
+ * side pays for heap sifting or {@link HanntoRequest#compareTo} calls.
+ *
+ * <p>A request's priority is read once when it is inserted.
+ */
+public class HanntoPriorityLaneQueue extends AbstractQueue<HanntoRequest>
+        implements BlockingQueue<HanntoRequest> {
+
+    private static final HanntoRequest.Priority[] PRIORITIES = HanntoRequest.Priority.values();
+
+    /** One lane per priority, indexed by {@link HanntoRequest.Priority#ordinal()}. */
+    private final ConcurrentLinkedQueue<HanntoRequest>[] mLanes;
+
+    /** Number of queued requests across all lanes. */
+    private final AtomicInteger mCount = new AtomicInteger();
+
+    /** Number of consumers parked on {@link #mNotEmpty}. */
+    private final AtomicInteger mWaiters = new AtomicInteger();
+
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    private final Condition mNotEmpty = mLock.newCondition();
+
+    @SuppressWarnings("unchecked")
+    public HanntoPriorityLaneQueue() {
+        mLanes = new ConcurrentLinkedQueue[PRIORITIES.length];
+        for (int i = 0; i < mLanes.length; i++) {
+            mLanes[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    @Override
+    public boolean offer(HanntoRequest request) {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        mLanes[request.getPriority().ordinal()].offer(request);
+        mCount.incrementAndGet();
+        // A consumer registers as a waiter before its final scan of the lanes, so either it sees
+        // this request or we see it waiting and wake it up.
+        if (mWaiters.get() > 0) {
+            signalNotEmpty();
+        }
+        return true;
+    }
+
+    private void signalNotEmpty() {
+        mLock.lock();
+        try {
+            mNotEmpty.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void put(HanntoRequest request) {
+        offer(request);
+    }
+
+    @Override
+    public boolean offer(HanntoRequest request, long timeout, TimeUnit unit) {
+        return offer(request);
+    }
+
+    @Override
+    public HanntoRequest poll() {
+        for (int i = mLanes.length - 1; i >= 0; i--) {
+            HanntoRequest request = mLanes[i].poll();
+            if (request != null) {
+                mCount.decrementAndGet();
+                return request;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public HanntoRequest take() throws InterruptedException {
+        HanntoRequest request = poll();
+        if (request != null) {
+            return request;
+        }
+        mLock.lockInterruptibly();
+        mWaiters.incrementAndGet();
+        try {
+            while ((request = poll()) == null) {
+                mNotEmpty.await();
+            }
+        } finally {
+            mWaiters.decrementAndGet();
+            mLock.unlock();
+        }
+        signalIfMoreWork();
+        return request;
+    }
+
+    @Override
+    public HanntoRequest poll(long timeout, TimeUnit unit) throws InterruptedException {
+        HanntoRequest request = poll();
+        if (request != null) {
+            return request;
+        }
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        mWaiters.incrementAndGet();
+        try {
+            while ((request = poll()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = mNotEmpty.awaitNanos(nanos);
+            }
+        } finally {
+            mWaiters.decrementAndGet();
+            mLock.unlock();
+        }
+        signalIfMoreWork();
+        return request;
+    }
+
+    /**
+     * Passes a wake-up on to another parked consumer. Several producers may signal while only one
+     * consumer gets to run, so a woken consumer that leaves work behind hands the signal on.
+     */
+    private void signalIfMoreWork() {
+        if (mCount.get() > 0 && mWaiters.get() > 0) {
+            signalNotEmpty();
+        }
+    }
+
+    @Override
+    public HanntoRequest peek() {
+        for (int i = mLanes.length - 1; i >= 0; i--) {
+            HanntoRequest request = mLanes[i].peek();
+            if (request != null) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int size() {
+        return Math.max(0, mCount.get());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof HanntoRequest)) {
+            return false;
+        }
+        return removeFromLane(((HanntoRequest) o).getPriority().ordinal(), o);
+    }
+
+    private boolean removeFromLane(int lane, Object o) {
+        if (mLanes[lane].remove(o)) {
+            mCount.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /** Returns the number of requests queued at the given priority. */
+    public int size(HanntoRequest.Priority priority) {
+        return mLanes[priority.ordinal()].size();
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super HanntoRequest> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super HanntoRequest> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int drained = 0;
+        HanntoRequest request;
+        while (drained < maxElements && (request = poll()) != null) {
+            c.add(request);
+            drained++;
+        }
+        return drained;
+    }
+
+    /** Iterates from the highest priority lane down. The iterator is weakly consistent. */
+    @Override
+    public Iterator<HanntoRequest> iterator() {
+        return new LaneIterator();
+    }
+
+    private class LaneIterator implements Iterator<HanntoRequest> {
+        private int mLane = mLanes.length - 1;
+        private Iterator<HanntoRequest> mCurrent = mLanes[mLane].iterator();
+        private HanntoRequest mLast;
+        private int mLastLane;
+
+        @Override
+        public boolean hasNext() {
+            while (!mCurrent.hasNext()) {
+                if (mLane == 0) {
+                    return false;
+                }
+                mCurrent = mLanes[--mLane].iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public HanntoRequest next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            mLast = mCurrent.next();
+            mLastLane = mLane;
+            return mLast;
+        }
+
+        @Override
+        public void remove() {
+            if (mLast == null) {
+                throw new IllegalStateException();
+            }
+            removeFromLane(mLastLane, mLast);
+            mLast = null;
+        }
+    }
+}
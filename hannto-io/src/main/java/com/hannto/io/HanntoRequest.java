@@ -0,0 +1,779 @@
+package com.hannto.io;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public abstract class HanntoRequest<T> implements Comparable<HanntoRequest<T>> {
+
+    /** Callback to notify when the network request returns. */
+    /* package */ interface NetworkRequestCompleteListener {
+
+        /**
+         * Callback when a network response has been received. {@code networkResponse} is the
+         * response it was parsed from, or null if it came from the cache.
+         */
+        void onResponseReceived(
+                HanntoRequest request,
+                HanntoResponse response,
+                HanntoNetworkResponse networkResponse);
+
+        /** Callback when request returns from network without valid response. */
+        void onNoUsableResponseReceived(HanntoRequest request);
+    }
+
+    /** Aborts a request's I/O in progress. See {@link #setAbortHandle(AbortHandle)}. */
+    public interface AbortHandle {
+        /**
+         * Makes the I/O fail promptly, for example by waking and failing a blocked read. Called at
+         * most once, on the thread that canceled the request, so it must not block.
+         */
+        void abort();
+    }
+
+    /**
+     * Request data of this request.
+     */
+    private final byte[] mData;
+
+    /** Payload too large for mData, or null if the payload is in mData. */
+    private final HanntoRequestBody mBody;
+
+    /** Lock to guard state which can be mutated after a request is added to the queue. */
+    private final Object mLock = new Object();
+
+    /** Listener interface for errors. */
+    // Guarded by mLock.
+    private HanntoResponse.ErrorListener mErrorListener;
+
+
+    /** Sequence number of this request, used to enforce FIFO ordering. */
+    private int mSequence;
+
+    /** Whether {@link #setSequence(int)} has been called. */
+    private boolean mHasSequence = false;
+
+    /** When this request was added to its queue, per {@link HanntoPlatform#elapsedRealtime()}. */
+    private volatile long mEnqueueTimeMs;
+
+    /** When this request was added to its queue, per {@link System#nanoTime()}. */
+    private volatile long mEnqueueNanos;
+
+    /** What is collected for the {@link HanntoSlowRequestSampler}, or null if not sampled. */
+    private volatile HanntoSlowRequestSampler.Trace mSlowRequestTrace;
+
+    /** Where this request stands for eviction; see {@link HanntoRequestQueue#onTaken}. */
+    private final AtomicInteger mWaitState = new AtomicInteger(HanntoRequestQueue.NOT_WAITING);
+
+    /** Whether identical in-flight requests may share this request's response. */
+    private boolean mShouldCoalesce = true;
+
+    /** Name of the {@link HanntoLane} this request goes to, or null for the main pool. */
+    private String mLane;
+
+    /** Where a large response body goes instead of memory, or null to keep every body. */
+    private HanntoSpool mSpool;
+
+    /** Lazily computed key identifying requests with the same payload. */
+    private volatile String mCacheKey;
+
+    /** How long a cached response stays usable, in milliseconds; 0 disables caching. */
+    private long mCacheTtlMs = 0;
+
+    /** How long a cached response is served without a background refresh, in milliseconds. */
+    private long mCacheSoftTtlMs = 0;
+
+    /**
+     * When a request can be retrieved from cache but must be refreshed from the network, the cache
+     * entry will be stored here so that in the event of a "Not Modified" response, we can be sure
+     * it hasn't been evicted from cache.
+     */
+    private HanntoCache.Entry mCacheEntry = null;
+
+    /** The request queue this request is associated with. */
+    private HanntoRequestQueue mRequestQueue;
+
+    /** Whether or not this request has been canceled. */
+    // Guarded by mLock.
+    private boolean mCanceled = false;
+
+    /** Aborts the I/O in progress for this request, or null if there is none. */
+    // Guarded by mLock.
+    private AbortHandle mAbortHandle;
+
+    /** Whether or not a response has been delivered for this request yet. */
+    // Guarded by mLock.
+    private boolean mResponseDelivered = false;
+
+    /** The retry policy for this request. */
+    private HanntoRetryPolicy mRetryPolicy;
+
+    /** An opaque token tagging this request; used for bulk cancellation. */
+    private Object mTag;
+
+    /** Listener that will be notified when a response has been delivered. */
+    // Guarded by mLock.
+    private NetworkRequestCompleteListener mRequestCompleteListener;
+
+    /** Network response whose pooled body is released when this request finishes. */
+    // Guarded by mLock.
+    private HanntoNetworkResponse mRetainedResponse;
+
+    /** Source of {@link #mTraceId}s. */
+    private static final AtomicLong sNextTraceId = new AtomicLong();
+
+    /** Identifies this request in the {@link HanntoEventLog}, across all queues. */
+    private final long mTraceId = sNextTraceId.incrementAndGet();
+
+    public HanntoRequest(byte[] data, HanntoResponse.ErrorListener listener) {
+        mData = data;
+        mBody = null;
+        mErrorListener = listener;
+        setRetryPolicy(new HanntoDefaultRetryPolicy());
+
+    }
+
+    /**
+     * Creates a request whose payload is written from a body rather than held as a byte[], such
+     * as a print job read from a file. Such requests have no {@link #getData() data} and, unless a
+     * subclass overrides {@link #getCacheKey()}, no cache key, so they are neither cached nor
+     * coalesced.
+     */
+    public HanntoRequest(HanntoRequestBody body, HanntoResponse.ErrorListener listener) {
+        if (body == null) {
+            throw new IllegalArgumentException("body must not be null");
+        }
+        mData = null;
+        mBody = body;
+        mErrorListener = listener;
+        mShouldCoalesce = false;
+        setRetryPolicy(new HanntoDefaultRetryPolicy());
+    }
+
+    /** Return the method for this request.  */
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * Returns the payload as a body that stacks can write without holding it in memory. For
+     * requests built from a byte[], this wraps {@link #getData()}.
+     */
+    public HanntoRequestBody getBody() {
+        if (mBody != null) {
+            return mBody;
+        }
+        return HanntoRequestBody.create(mData != null ? mData : new byte[0]);
+    }
+
+    /** Returns true if the payload is a {@link HanntoRequestBody} rather than a byte[]. */
+    public boolean hasStreamedBody() {
+        return mBody != null;
+    }
+
+    /** Returns the length of the payload in bytes. */
+    /* package */ long getPayloadLength() {
+        if (mBody != null) {
+            return mBody.contentLength();
+        }
+        return mData != null ? mData.length : 0;
+    }
+
+    /**
+     * Returns the key identifying requests that may share a response: a hex encoding of {@link
+     * #getData()} by default. Subclasses whose payloads carry per-request noise, such as a
+     * transaction id, can override this to return a stable key.
+     *
+     * <p>Returns null for requests built from a {@link HanntoRequestBody}, whose payload is not
+     * read here; subclasses must override this to let them be cached or coalesced.
+     */
+    public String getCacheKey() {
+        if (mBody != null) {
+            return null;
+        }
+        String key = mCacheKey;
+        if (key == null) {
+            key = toHex(mData);
+            mCacheKey = key;
+        }
+        return key;
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static String toHex(byte[] data) {
+        if (data == null) {
+            return "";
+        }
+        char[] chars = new char[data.length * 2];
+        for (int i = 0; i < data.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(data[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX_DIGITS[data[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Set whether or not this request may share the response of an identical request already in
+     * flight, when the queue coalesces requests. Requests with side effects, such as commands that
+     * must run once per call, should pass false.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public final HanntoRequest setShouldCoalesce(boolean shouldCoalesce) {
+        mShouldCoalesce = shouldCoalesce;
+        return this;
+    }
+
+    /**
+     * Returns true if this request may share the response of an identical in-flight request.
+     * Always false for a request without a {@link #getCacheKey() cache key}, and for a {@link
+     * #isStreaming() streaming} request or one with a {@link #getSpool() spool}, whose body goes
+     * to a destination of its own.
+     */
+    public boolean shouldCoalesce() {
+        return mShouldCoalesce && !isStreaming() && getSpool() == null && getCacheKey() != null;
+    }
+
+    /**
+     * Sends this request to the named {@link HanntoLane} of its queue instead of the main pool.
+     * The lane must have been added to the queue before the request is.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public final HanntoRequest setLane(String lane) {
+        mLane = lane;
+        return this;
+    }
+
+    /** Returns the name of the lane this request goes to, or null for the main pool. */
+    public String getLane() {
+        return mLane;
+    }
+
+    /**
+     * Sets a spool that takes the response body if it is larger than the spool's threshold. The
+     * response then carries no data; its {@link HanntoNetworkResponse#spool} is set instead.
+     * Ignored by {@link #isStreaming() streaming} requests.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public final HanntoRequest setSpool(HanntoSpool spool) {
+        mSpool = spool;
+        return this;
+    }
+
+    /** Returns the spool for large response bodies, or null if there is none. */
+    public HanntoSpool getSpool() {
+        return mSpool;
+    }
+
+    /**
+     * Set how long responses to this request may be served from cache. Within {@code softTtlMs} a
+     * cached response is delivered as final; after that and within {@code ttlMs} it is delivered as
+     * an intermediate response while the request is refreshed from the network. A {@code ttlMs} of
+     * 0 disables caching for this request, which is the default.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public final HanntoRequest setCacheTtl(long softTtlMs, long ttlMs) {
+        if (ttlMs < 0 || softTtlMs < 0) {
+            throw new IllegalArgumentException("TTLs must not be negative");
+        }
+        mCacheTtlMs = ttlMs;
+        mCacheSoftTtlMs = Math.min(softTtlMs, ttlMs);
+        return this;
+    }
+
+    /**
+     * Returns true if responses to this request should be cached. Always false for a request
+     * without a {@link #getCacheKey() cache key}.
+     */
+    public boolean shouldCache() {
+        return mCacheTtlMs > 0 && getCacheKey() != null;
+    }
+
+    /**
+     * Annotates this request with an entry retrieved for it from cache. Used for cache coherency
+     * support.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public HanntoRequest setCacheEntry(HanntoCache.Entry entry) {
+        mCacheEntry = entry;
+        return this;
+    }
+
+    /** Returns the annotated cache entry, or null if there isn't one. */
+    public HanntoCache.Entry getCacheEntry() {
+        return mCacheEntry;
+    }
+
+    /**
+     * Builds the cache entry for a network response using this request's TTLs, for subclasses to
+     * pass to {@link HanntoResponse#success(Object, HanntoCache.Entry)} from {@link
+     * #parseNetworkResponse(HanntoNetworkResponse)}.
+     *
+     * @return The entry, or null if this request should not be cached
+     */
+    protected HanntoCache.Entry parseCacheEntry(HanntoNetworkResponse response) {
+        if (!shouldCache() || response.getData() == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        HanntoCache.Entry entry = new HanntoCache.Entry();
+        entry.data = response.getData();
+        entry.softTtl = now + mCacheSoftTtlMs;
+        entry.ttl = now + mCacheTtlMs;
+        return entry;
+    }
+
+    /**
+     * Set a tag on this request. Can be used to cancel all requests with this tag by {@link
+     * HanntoRequestQueue#cancelAll(Object)}.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public HanntoRequest setTag(Object tag) {
+        mTag = tag;
+        return this;
+    }
+
+    /**
+     * Returns this request's tag.
+     *
+     * @see HanntoRequest#setTag(Object)
+     */
+    public Object getTag() {
+        return mTag;
+    }
+
+    /** @return this request's {@link HanntoResponse.ErrorListener}. */
+    public HanntoResponse.ErrorListener getErrorListener() {
+        synchronized (mLock) {
+            return mErrorListener;
+        }
+    }
+
+    /**
+     * Sets the retry policy for this request.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public HanntoRequest setRetryPolicy(HanntoRetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+        return this;
+    }
+
+    /** Returns the ID identifying this request in the {@link HanntoEventLog}. */
+    public long getTraceId() {
+        return mTraceId;
+    }
+
+    /** Adds an event to this request's event log, if the {@link HanntoEventLog} is recording. */
+    public void addMarker(String tag) {
+        HanntoEventLog.record(mTraceId, tag);
+    }
+
+    /**
+     * Notifies the request queue that this request has finished (successfully or with error).
+     *
+     * <p>Also records the tag in the {@link HanntoEventLog}.
+     */
+    void finish(final String tag) {
+        addMarker(tag);
+        setAbortHandle(null);
+        HanntoSlowRequestSampler.Trace trace = mSlowRequestTrace;
+        if (trace != null) {
+            trace.finishTag = tag;
+        }
+        HanntoNetworkResponse retained;
+        synchronized (mLock) {
+            retained = mRetainedResponse;
+            mRetainedResponse = null;
+        }
+        if (retained != null) {
+            retained.release();
+        }
+        if (mRequestQueue != null) {
+            mRequestQueue.finish(this);
+        }
+    }
+
+    /**
+     * Keeps a network response until this request finishes, then releases its body. A pooled body
+     * may back the parsed result, so it must outlive delivery. Coalesced requests that share the
+     * result each keep a {@link HanntoNetworkResponse#retain() hold} of their own.
+     */
+    /* package */ void retainUntilFinished(HanntoNetworkResponse response) {
+        HanntoNetworkResponse previous;
+        synchronized (mLock) {
+            previous = mRetainedResponse;
+            mRetainedResponse = response;
+        }
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    /**
+     * Associates this request with the given queue. The request queue will be notified when this
+     * request has finished.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public HanntoRequest setRequestQueue(HanntoRequestQueue requestQueue) {
+        mRequestQueue = requestQueue;
+        return this;
+    }
+
+    /**
+     * Sets the sequence number of this request. Used by {@link HanntoRequestQueue}.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public final HanntoRequest setSequence(int sequence) {
+        mSequence = sequence;
+        mHasSequence = true;
+        return this;
+    }
+
+    /** Returns true once a sequence number has been set, normally by adding to a queue. */
+    public final boolean hasSequence() {
+        return mHasSequence;
+    }
+
+    /** Returns the sequence number of this request. */
+    public final int getSequence() {
+        if (!mHasSequence) {
+            throw new IllegalStateException("getSequence called before setSequence");
+        }
+        return mSequence;
+    }
+
+    /** Records when this request was added to its queue. Used by {@link HanntoRequestQueue}. */
+    /* package */ void setEnqueueTimeMs(long enqueueTimeMs) {
+        mEnqueueTimeMs = enqueueTimeMs;
+    }
+
+    /** Returns when this request was added to its queue, or 0 if it has not been added. */
+    /* package */ long getEnqueueTimeMs() {
+        return mEnqueueTimeMs;
+    }
+
+    /** Records when this request was added to its queue, for {@link HanntoMetrics}. */
+    /* package */ void setEnqueueNanos(long enqueueNanos) {
+        mEnqueueNanos = enqueueNanos;
+    }
+
+    /** Returns when this request was added to its queue, per {@link System#nanoTime()}. */
+    /* package */ long getEnqueueNanos() {
+        return mEnqueueNanos;
+    }
+
+    /** Returns the wait state, one of the constants in {@link HanntoRequestQueue}. */
+    /* package */ AtomicInteger getWaitState() {
+        return mWaitState;
+    }
+
+    /**
+     * Called by a dispatcher that has taken this request from its queue. Returns false if the
+     * request was evicted while waiting, in which case it must be dropped.
+     */
+    /* package */ boolean markTaken() {
+        HanntoRequestQueue queue = mRequestQueue;
+        return queue == null || queue.onTaken(this);
+    }
+
+    /** Starts collecting details of this request for the {@link HanntoSlowRequestSampler}. */
+    /* package */ void setSlowRequestTrace(HanntoSlowRequestSampler.Trace trace) {
+        mSlowRequestTrace = trace;
+    }
+
+    /** Returns what is collected for the slow request sampler, or null if not sampled. */
+    /* package */ HanntoSlowRequestSampler.Trace getSlowRequestTrace() {
+        return mSlowRequestTrace;
+    }
+
+    /**
+     * Records how long this request spent in a stage, in its queue's {@link HanntoMetrics} and, if
+     * sampled, for the {@link HanntoSlowRequestSampler}.
+     */
+    /* package */ void recordStage(HanntoMetrics.Stage stage, long durationUs) {
+        HanntoRequestQueue queue = mRequestQueue;
+        if (queue != null) {
+            queue.getMetrics().record(stage, this, durationUs);
+        }
+        HanntoSlowRequestSampler.Trace trace = mSlowRequestTrace;
+        if (trace != null) {
+            trace.stageUs[stage.ordinal()] += durationUs;
+        }
+    }
+
+    /** Records the length of the response body, if sampled for slow requests. */
+    /* package */ void recordResponseBytes(long responseBytes) {
+        HanntoSlowRequestSampler.Trace trace = mSlowRequestTrace;
+        if (trace != null) {
+            trace.responseBytes = responseBytes;
+        }
+    }
+
+    /** Records the error delivered to this request, if sampled for slow requests. */
+    /* package */ void recordDeliveredError(HanntoError error) {
+        HanntoSlowRequestSampler.Trace trace = mSlowRequestTrace;
+        if (trace != null) {
+            trace.error = error;
+        }
+    }
+
+    /** Records the time since this request was added to its queue as its queue wait. */
+    /* package */ void recordQueueWait() {
+        recordStage(
+                HanntoMetrics.Stage.QUEUE_WAIT,
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - mEnqueueNanos));
+    }
+
+    /**
+     * Mark this request as canceled.
+     *
+     * <p>No callback will be delivered as long as either:
+     *
+     * <ul>
+     *   <li>This method is called on the same thread as the {@link HanntoResponseDelivery} is running on.
+     *       By default, this is the main thread.
+     *   <li>The request subclass being used overrides cancel() and ensures that it does not invoke
+     *       the listener in {@link #deliverResponse} after cancel() has been called in a
+     *       thread-safe manner.
+     * </ul>
+     *
+     * <p>There are no guarantees if both of these conditions aren't met.
+     *
+     * <p>Subclasses overriding this method must call through to super.
+     */
+    public void cancel() {
+        AbortHandle abortHandle;
+        synchronized (mLock) {
+            mCanceled = true;
+            mErrorListener = null;
+            abortHandle = mAbortHandle;
+            mAbortHandle = null;
+        }
+        // Abort outside the lock; the I/O's failure may run callbacks that check isCanceled().
+        if (abortHandle != null) {
+            abortHandle.abort();
+        }
+    }
+
+    /**
+     * Sets what aborts this request's I/O if it is canceled while the I/O is in progress, or null
+     * once the I/O is done. Used by stacks, so that canceling a request frees the dispatcher
+     * running it instead of leaving it to wait out the I/O.
+     *
+     * @return false if the request has been canceled already, in which case the handle is not
+     *     kept and the I/O should not be started
+     */
+    public boolean setAbortHandle(AbortHandle abortHandle) {
+        synchronized (mLock) {
+            if (mCanceled) {
+                mAbortHandle = null;
+                return false;
+            }
+            mAbortHandle = abortHandle;
+            return true;
+        }
+    }
+
+    /** Returns true if this request has been canceled. */
+    public boolean isCanceled() {
+        synchronized (mLock) {
+            return mCanceled;
+        }
+    }
+
+    /**
+     * Priority values. Requests will be processed from higher priorities to lower priorities, in
+     * FIFO order.
+     */
+    public enum Priority {
+        LOW,
+        NORMAL,
+        HIGH,
+        IMMEDIATE
+    }
+
+    /** Returns the {@link HanntoRequest.Priority} of this request; {@link HanntoRequest.Priority#NORMAL} by default. */
+    public HanntoRequest.Priority getPriority() {
+        return HanntoRequest.Priority.NORMAL;
+    }
+
+    /**
+     * Returns the socket timeout in milliseconds per retry attempt. (This value can be changed per
+     * retry attempt if a backoff is specified via backoffTimeout()). If there are no retry attempts
+     * remaining, this will cause delivery of a {@link TimeoutError} error.
+     */
+    public final int getTimeoutMs() {
+        return getRetryPolicy().getCurrentTimeout();
+    }
+
+    /** Returns the retry policy that should be used for this request. */
+    public HanntoRetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    /**
+     * Mark this request as having a response delivered on it. This can be used later in the
+     * request's lifetime for suppressing identical responses.
+     */
+    public void markDelivered() {
+        synchronized (mLock) {
+            mResponseDelivered = true;
+        }
+    }
+
+    /** Returns true if this request has had a response delivered for it. */
+    public boolean hasHadResponseDelivered() {
+        synchronized (mLock) {
+            return mResponseDelivered;
+        }
+    }
+
+    /**
+     * Subclasses must implement this to parse the raw network response and return an appropriate
+     * response type. This method will be called from a worker thread. The response will not be
+     * delivered if you return null.
+     *
+     * @param response Response from the network
+     * @return The parsed response, or null in the case of an error
+     */
+    protected abstract HanntoResponse<T> parseNetworkResponse(HanntoNetworkResponse response);
+
+    /**
+     * Returns true if this request consumes its response body as a stream rather than as one
+     * array, which requests do by extending {@link HanntoStreamingRequest}. Stacks that support it
+     * then hand over the body while it is still arriving, so it never has to fit in memory whole.
+     */
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Delivers a partial result to this request's listener ahead of the final response, e.g. while
+     * a {@link HanntoStreamingRequest} reads its body. Has no effect once the request is canceled
+     * or if it is not in a queue.
+     */
+    protected final void postIntermediate(T partial) {
+        HanntoRequestQueue queue = mRequestQueue;
+        if (queue == null || isCanceled()) {
+            return;
+        }
+        HanntoResponse<T> response = HanntoResponse.success(partial);
+        response.intermediate = true;
+        queue.postIntermediate(this, response);
+    }
+
+    /**
+     * Subclasses can override this method to parse 'networkError' and return a more specific error.
+     *
+     * <p>The default implementation just returns the passed 'networkError'.
+     *
+     * @param volleyError the error retrieved from the network
+     * @return an NetworkError augmented with additional information
+     */
+    protected HanntoError parseNetworkError(HanntoError volleyError) {
+        return volleyError;
+    }
+
+    /**
+     * Subclasses must implement this to perform delivery of the parsed response to their listeners.
+     * The given response is guaranteed to be non-null; responses that fail to parse are not
+     * delivered.
+     *
+     * @param response The parsed response returned by {@link
+     *     #parseNetworkResponse(HanntoNetworkResponse)}
+     */
+    protected abstract void deliverResponse(T response);
+
+    /**
+     * Delivers error message to the ErrorListener that the Request was initialized with.
+     *
+     * @param error Error details
+     */
+    public void deliverError(HanntoError error) {
+        HanntoResponse.ErrorListener listener;
+        synchronized (mLock) {
+            listener = mErrorListener;
+        }
+        if (listener != null) {
+            listener.onErrorResponse(error);
+        }
+    }
+
+    /**
+     * {@link NetworkRequestCompleteListener} that will receive callbacks when the request returns
+     * from the network.
+     */
+    /* package */ void setNetworkRequestCompleteListener(
+            NetworkRequestCompleteListener requestCompleteListener) {
+        synchronized (mLock) {
+            mRequestCompleteListener = requestCompleteListener;
+        }
+    }
+
+    /**
+     * Notify NetworkRequestCompleteListener that a valid response has been received which can be
+     * used for other, waiting requests.
+     *
+     * @param response received from the network
+     */
+    /* package */ void notifyListenerResponseReceived(
+            HanntoResponse<?> response, HanntoNetworkResponse networkResponse) {
+        NetworkRequestCompleteListener listener;
+        synchronized (mLock) {
+            listener = mRequestCompleteListener;
+        }
+        if (listener != null) {
+            listener.onResponseReceived(this, response, networkResponse);
+        }
+    }
+
+    /**
+     * Notify NetworkRequestCompleteListener that the network request did not result in a response
+     * which can be used for other, waiting requests.
+     */
+    /* package */ void notifyListenerResponseNotUsable() {
+        NetworkRequestCompleteListener listener;
+        synchronized (mLock) {
+            listener = mRequestCompleteListener;
+        }
+        if (listener != null) {
+            listener.onNoUsableResponseReceived(this);
+        }
+    }
+
+    /**
+     * Our comparator sorts from high to low priority, and secondarily by sequence number to provide
+     * FIFO ordering.
+     */
+    @Override
+    public int compareTo(HanntoRequest<T> other) {
+        Priority left = this.getPriority();
+        Priority right = other.getPriority();
+
+        // High-priority requests are "lesser" so they are sorted to the front.
+        // Equal priorities are sorted by sequence number to provide FIFO ordering.
+        return left == right ? this.mSequence - other.mSequence : right.ordinal() - left.ordinal();
+    }
+
+    @Override
+    public String toString() {
+//        String trafficStatsTag = "0x" + Integer.toHexString(getTrafficStatsTag());
+        return (isCanceled() ? "[X] " : "[ ] ")
+//                + getUrl()
+//                + " "
+//                + trafficStatsTag
+//                + " "
+                + getPriority()
+                + " "
+                + mSequence;
+    }
+}
@@ -0,0 +1,212 @@
+package com.hannto.io;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The payload of a request, for payloads too large to hold as a byte[]: a region of a file, a
+ * {@link ByteBuffer}, or a {@link Source} that produces the bytes on demand.
+ *
+ * <p>A body is written through a {@link Writer}, one per attempt, which always starts from the
+ * beginning of the body, so a retry resends it whole. Writers work with non-blocking channels:
+ * each call writes what the channel accepts, and the caller waits for the channel to become
+ * writable before calling again. File regions are written with {@link FileChannel#transferTo},
+ * which lets the kernel copy straight from the file to a socket.
+ */
+public abstract class HanntoRequestBody {
+
+    /** Produces the bytes of a generated body. */
+    public interface Source {
+        /**
+         * Returns a new stream of the body from its beginning. Called once per attempt; the
+         * stream is closed when the attempt is done with it.
+         */
+        InputStream open() throws IOException;
+    }
+
+    /** Writes one attempt's copy of a body. */
+    public interface Writer extends Closeable {
+        /**
+         * Writes as much of the rest of the body as the channel accepts.
+         *
+         * @return true once the whole body has been written
+         */
+        boolean writeTo(WritableByteChannel channel) throws IOException;
+    }
+
+    /** Size of the chunks read from a {@link Source}. */
+    private static final int CHUNK_SIZE = 8192;
+
+    /** Returns the length of the body in bytes. */
+    public abstract long contentLength();
+
+    /** Returns a writer that starts from the beginning of the body. */
+    public abstract Writer newWriter() throws IOException;
+
+    /** Writes the whole body to a blocking stream. */
+    public void writeTo(OutputStream out) throws IOException {
+        WritableByteChannel channel = Channels.newChannel(out);
+        Writer writer = newWriter();
+        try {
+            while (!writer.writeTo(channel)) {
+                // A blocking channel accepts everything it is given; keep going.
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /** Returns a body holding the given bytes, which must not be changed afterwards. */
+    public static HanntoRequestBody create(byte[] data) {
+        return create(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Returns a body holding the buffer's bytes from its position to its limit. The buffer's
+     * contents must not be changed afterwards; its position is left alone.
+     */
+    public static HanntoRequestBody create(ByteBuffer buffer) {
+        final ByteBuffer body = buffer.slice();
+        return new HanntoRequestBody() {
+            @Override
+            public long contentLength() {
+                return body.remaining();
+            }
+
+            @Override
+            public Writer newWriter() {
+                final ByteBuffer remaining = body.duplicate();
+                return new Writer() {
+                    @Override
+                    public boolean writeTo(WritableByteChannel channel) throws IOException {
+                        channel.write(remaining);
+                        return !remaining.hasRemaining();
+                    }
+
+                    @Override
+                    public void close() {}
+                };
+            }
+        };
+    }
+
+    /**
+     * Returns a body made of part of a file. The file is opened by each attempt, and must not
+     * shrink while the request is in flight.
+     *
+     * @param file File to send
+     * @param offset Offset of the first byte to send
+     * @param length Number of bytes to send
+     */
+    public static HanntoRequestBody create(final File file, final long offset, final long length) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid file region");
+        }
+        return new HanntoRequestBody() {
+            @Override
+            public long contentLength() {
+                return length;
+            }
+
+            @Override
+            public Writer newWriter() throws IOException {
+                final FileChannel channel = new FileInputStream(file).getChannel();
+                return new Writer() {
+                    private long mPosition = offset;
+
+                    @Override
+                    public boolean writeTo(WritableByteChannel target) throws IOException {
+                        long end = offset + length;
+                        if (mPosition < end) {
+                            long written = channel.transferTo(mPosition, end - mPosition, target);
+                            if (written == 0 && channel.size() < end) {
+                                throw new EOFException("File shorter than its request body");
+                            }
+                            mPosition += written;
+                        }
+                        return mPosition == end;
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        channel.close();
+                    }
+                };
+            }
+        };
+    }
+
+    /** Returns a body made of the whole file. */
+    public static HanntoRequestBody create(File file) {
+        return create(file, 0, file.length());
+    }
+
+    /**
+     * Returns a body generated by a source.
+     *
+     * @param length Exact number of bytes each stream from the source produces
+     * @param source Opens a new stream of the body for each attempt
+     */
+    public static HanntoRequestBody create(final long length, final Source source) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Invalid length " + length);
+        }
+        return new HanntoRequestBody() {
+            @Override
+            public long contentLength() {
+                return length;
+            }
+
+            @Override
+            public Writer newWriter() throws IOException {
+                final InputStream in = source.open();
+                final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+                chunk.flip();
+                return new Writer() {
+                    private long mRead = 0;
+
+                    @Override
+                    public boolean writeTo(WritableByteChannel channel) throws IOException {
+                        while (true) {
+                            if (chunk.hasRemaining()) {
+                                channel.write(chunk);
+                                if (chunk.hasRemaining()) {
+                                    // The channel is full.
+                                    return false;
+                                }
+                            }
+                            if (mRead == length) {
+                                return true;
+                            }
+                            chunk.clear();
+                            int count =
+                                    in.read(
+                                            chunk.array(),
+                                            0,
+                                            (int) Math.min(chunk.capacity(), length - mRead));
+                            if (count == -1) {
+                                throw new EOFException("Source ended before its length");
+                            }
+                            mRead += count;
+                            chunk.limit(count);
+                        }
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        in.close();
+                    }
+                };
+            }
+        };
+    }
+}
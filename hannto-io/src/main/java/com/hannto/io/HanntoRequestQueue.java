@@ -0,0 +1,1025 @@
+package com.hannto.io;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HanntoRequestQueue {
+
+    /** Callback interface for completed requests. */
+    public interface RequestFinishedListener<T> {
+        /** Called when a request has finished processing. */
+        void onRequestFinished(HanntoRequest<T> request);
+    }
+
+    /** Used for generating monotonically-increasing sequence numbers for requests. */
+    private final AtomicInteger mSequenceGenerator = new AtomicInteger();
+
+    /**
+     * All requests currently being processed by this RequestQueue, indexed by tag. A Request will
+     * be here if it is waiting in any queue or currently being processed by any dispatcher.
+     */
+    private final HanntoRequestRegistry mCurrentRequests = new HanntoRequestRegistry();
+
+    /**
+     * Held while admitting a request under an admission policy, and notified when a request
+     * finishes. Without a policy, adding and finishing requests take no queue-wide lock.
+     */
+    private final Object mAdmissionLock = new Object();
+
+    /** Limits on the requests held at once, or null for no limits. */
+    private volatile HanntoAdmissionPolicy mAdmissionPolicy;
+
+    /** Wait state of a request not waiting in a queue for eviction purposes. */
+    /* package */ static final int NOT_WAITING = 0;
+
+    /** Wait state of a request waiting in a queue, which an admission policy may evict. */
+    /* package */ static final int WAITING = 1;
+
+    /** Wait state of a request evicted while waiting. Dispatchers drop it when they take it. */
+    /* package */ static final int EVICTED = 2;
+
+    /**
+     * Low priority requests waiting in a queue, oldest first, for {@link
+     * HanntoAdmissionPolicy.Overflow#DROP_OLDEST_LOW}. Guarded by mAdmissionLock.
+     */
+    private final Set<HanntoRequest<?>> mWaitingLow = new LinkedHashSet<>();
+
+    /**
+     * Tagged requests waiting in a queue by tag, oldest first, for {@link
+     * HanntoAdmissionPolicy.Overflow#SHED_BY_TAG}. Tags are compared by identity, as in {@link
+     * #cancelAll(Object)}. Guarded by mAdmissionLock.
+     */
+    private final Map<Object, Set<HanntoRequest<?>>> mWaitingByTag = new IdentityHashMap<>();
+
+    /** Keeps details of slow requests, or null to keep none. */
+    private volatile HanntoSlowRequestSampler mSlowRequestSampler;
+
+    /** The cache triage queue. */
+    private final PriorityBlockingQueue<HanntoRequest> mCacheQueue = new PriorityBlockingQueue<>();
+
+    /** The queue of requests that are actually going out to the network. */
+    private final BlockingQueue<HanntoRequest> mNetworkQueue;
+
+    /** Number of network request dispatcher threads to start. */
+    private static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
+
+    /** Cache interface for retrieving and storing responses, or null to skip the cache. */
+    private volatile HanntoCache mCache;
+
+    /** Network interface for performing requests. */
+    private final HanntoNetwork mNetwork;
+
+    /** Response delivery mechanism. */
+    private final HanntoResponseDelivery mDelivery;
+
+    /** The network dispatchers. Slots are null when no dispatcher runs there. */
+    private final HanntoNetworkDispatcher[] mDispatchers;
+
+    /** Sizing rules for an elastic pool, or null for a fixed pool. */
+    private final HanntoElasticPolicy mElasticPolicy;
+
+    /**
+     * Requests each dispatcher keeps in flight through {@link HanntoAsyncNetwork}, or 0 for
+     * dispatchers that block on one request at a time.
+     */
+    private final int mMaxInFlightPerDispatcher;
+
+    /** Number of running dispatchers. Written while holding the mDispatchers lock. */
+    private volatile int mPoolSize = 0;
+
+    /** True between {@link #start()} and {@link #stop()}. Guarded by the mDispatchers lock. */
+    private boolean mRunning = false;
+
+    /** The cache dispatcher. */
+    private HanntoCacheDispatcher mCacheDispatcher;
+
+    private final List<RequestFinishedListener> mFinishedListeners = new ArrayList<>();
+
+    /** Whether identical requests share one in-flight network request. */
+    private volatile boolean mCoalescing = false;
+
+    /** Tracks in-flight requests by cache key when coalescing. */
+    private final SingleFlightManager mSingleFlightManager = new SingleFlightManager();
+
+    /** Lanes by name, each with its own queue and dispatchers. */
+    private final Map<String, LaneDispatchers> mLanes = new ConcurrentHashMap<>();
+
+    /** Latency histograms and load gauges. */
+    private final HanntoMetrics mMetrics =
+            new HanntoMetrics(
+                    new HanntoMetrics.Gauges() {
+                        @Override
+                        public int queueDepth() {
+                            int depth = mCacheQueue.size() + mNetworkQueue.size();
+                            for (LaneDispatchers lane : mLanes.values()) {
+                                depth += lane.mLane.getQueue().size();
+                            }
+                            return depth;
+                        }
+
+                        @Override
+                        public int inFlight() {
+                            int inFlight = 0;
+                            for (HanntoNetworkDispatcher dispatcher : allDispatchers()) {
+                                inFlight += dispatcher.getActiveRequests();
+                            }
+                            return inFlight;
+                        }
+
+                        @Override
+                        public int busyDispatchers() {
+                            int busy = 0;
+                            for (HanntoNetworkDispatcher dispatcher : allDispatchers()) {
+                                if (dispatcher.getActiveRequests() > 0) {
+                                    busy++;
+                                }
+                            }
+                            return busy;
+                        }
+                    });
+
+    /**
+     * Creates the worker pool. Processing will not begin until {@link #start()} is called.
+     *
+//     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param threadPoolSize Number of network dispatcher threads to create
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     * @param networkQueue The queue dispatchers take requests from. It must hand out requests from
+     *     higher to lower priority, FIFO within a priority, e.g. {@link HanntoPriorityLaneQueue}
+     */
+    public HanntoRequestQueue(
+            HanntoNetwork network,
+            int threadPoolSize,
+            HanntoResponseDelivery delivery,
+            BlockingQueue<HanntoRequest> networkQueue) {
+        this(network, threadPoolSize, null, 0, delivery, networkQueue);
+    }
+
+    /**
+     * Creates a worker pool of asynchronous dispatchers, each of which keeps several requests in
+     * flight instead of blocking on one. Processing will not begin until {@link #start()} is
+     * called.
+     *
+     * @param network A Network interface that can perform requests asynchronously
+     * @param threadPoolSize Number of network dispatcher threads to create
+     * @param maxInFlightPerDispatcher Requests each dispatcher may keep outstanding at once
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     * @param networkQueue The queue dispatchers take requests from
+     */
+    public HanntoRequestQueue(
+            HanntoAsyncNetwork network,
+            int threadPoolSize,
+            int maxInFlightPerDispatcher,
+            HanntoResponseDelivery delivery,
+            BlockingQueue<HanntoRequest> networkQueue) {
+        this(network, threadPoolSize, null, maxInFlightPerDispatcher, delivery, networkQueue);
+        if (maxInFlightPerDispatcher < 1) {
+            throw new IllegalArgumentException("maxInFlightPerDispatcher must be positive");
+        }
+    }
+
+    /**
+     * Creates a worker pool whose dispatcher count follows the load. Processing will not begin
+     * until {@link #start()} is called.
+     *
+     * @param network A Network interface for performing HTTP requests
+     * @param elasticPolicy Bounds and thresholds for growing and shrinking the pool
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     * @param networkQueue The queue dispatchers take requests from. Growth checks read its size,
+     *     so a queue with a cheap {@code size()} such as {@link HanntoPriorityLaneQueue} is best
+     */
+    public HanntoRequestQueue(
+            HanntoNetwork network,
+            HanntoElasticPolicy elasticPolicy,
+            HanntoResponseDelivery delivery,
+            BlockingQueue<HanntoRequest> networkQueue) {
+        this(network, elasticPolicy.getMaxDispatchers(), elasticPolicy, 0, delivery, networkQueue);
+    }
+
+    private HanntoRequestQueue(
+            HanntoNetwork network,
+            int threadPoolSize,
+            HanntoElasticPolicy elasticPolicy,
+            int maxInFlightPerDispatcher,
+            HanntoResponseDelivery delivery,
+            BlockingQueue<HanntoRequest> networkQueue) {
+//        mCache = cache;
+        mNetwork = network;
+        mDispatchers = new HanntoNetworkDispatcher[threadPoolSize];
+        mElasticPolicy = elasticPolicy;
+        mMaxInFlightPerDispatcher = maxInFlightPerDispatcher;
+        mDelivery = delivery;
+        mNetworkQueue = networkQueue;
+    }
+
+    /**
+     * Creates the worker pool. Processing will not begin until {@link #start()} is called.
+     *
+//     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param threadPoolSize Number of network dispatcher threads to create
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     */
+    public HanntoRequestQueue(HanntoNetwork network, int threadPoolSize, HanntoResponseDelivery delivery) {
+        this(network, threadPoolSize, delivery, new PriorityBlockingQueue<HanntoRequest>());
+    }
+
+    /**
+     * Creates the worker pool. Processing will not begin until {@link #start()} is called.
+     *
+//     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param threadPoolSize Number of network dispatcher threads to create
+     */
+    public HanntoRequestQueue(HanntoNetwork network, int threadPoolSize) {
+        this(
+                network,
+                threadPoolSize,
+                new HanntoExecutorDelivery(HanntoPlatform.mainThreadExecutor()));
+    }
+
+    /**
+     * Creates the worker pool. Processing will not begin until {@link #start()} is called.
+     *
+//     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     */
+    public HanntoRequestQueue(HanntoNetwork network) {
+        this(network, DEFAULT_NETWORK_THREAD_POOL_SIZE);
+    }
+
+    /** Starts the dispatchers in this queue. */
+    public void start() {
+        stop(); // Make sure any currently running dispatchers are stopped.
+        // Create the cache dispatcher and start it.
+        if (mCache != null) {
+            mCacheDispatcher = new HanntoCacheDispatcher(mCacheQueue, this, mCache, mDelivery);
+            mCacheDispatcher.start();
+        }
+
+        // Create network dispatchers (and corresponding threads) up to the pool size, or the
+        // minimum size for an elastic pool.
+        synchronized (mDispatchers) {
+            mRunning = true;
+            int initialSize =
+                    mElasticPolicy != null
+                            ? mElasticPolicy.getMinDispatchers()
+                            : mDispatchers.length;
+            for (int i = 0; i < initialSize; i++) {
+                startDispatcher(i);
+            }
+            for (LaneDispatchers lane : mLanes.values()) {
+                lane.start();
+            }
+        }
+    }
+
+    /** Starts a dispatcher in the given slot. Must hold the mDispatchers lock. */
+    private void startDispatcher(int index) {
+        HanntoNetworkDispatcher networkDispatcher;
+        if (mMaxInFlightPerDispatcher > 0) {
+            networkDispatcher =
+                    new HanntoAsyncNetworkDispatcher(
+                            dispatcherQueue(index),
+                            (HanntoAsyncNetwork) mNetwork,
+                            mCache,
+                            mDelivery,
+                            mMaxInFlightPerDispatcher);
+        } else if (mElasticPolicy == null) {
+            networkDispatcher =
+                    new HanntoNetworkDispatcher(
+                            dispatcherQueue(index), mNetwork, mCache, mDelivery);
+        } else {
+            networkDispatcher =
+                    new HanntoNetworkDispatcher(
+                            dispatcherQueue(index),
+                            mNetwork,
+                            mCache,
+                            mDelivery,
+                            mElasticPoolListener,
+                            mElasticPolicy.getKeepAliveMs());
+        }
+        mDispatchers[index] = networkDispatcher;
+        mPoolSize++;
+        networkDispatcher.start();
+    }
+
+    /** Returns the number of network dispatchers currently running. */
+    public int getDispatcherPoolSize() {
+        return mPoolSize;
+    }
+
+    /** Returns the queue the dispatcher at the given index should take requests from. */
+    private BlockingQueue<HanntoRequest> dispatcherQueue(int index) {
+        return dispatcherQueue(mNetworkQueue, index);
+    }
+
+    /** Returns the view of a shared queue that the dispatcher at the given index should use. */
+    private static BlockingQueue<HanntoRequest> dispatcherQueue(
+            BlockingQueue<HanntoRequest> queue, int index) {
+        if (queue instanceof HanntoWorkStealingQueue) {
+            return ((HanntoWorkStealingQueue) queue).dispatcherQueue(index);
+        }
+        return queue;
+    }
+
+    /** Stops the cache and network dispatchers. */
+    public void stop() {
+        if (mCacheDispatcher != null) {
+            mCacheDispatcher.quit();
+            mCacheDispatcher = null;
+        }
+        synchronized (mDispatchers) {
+            mRunning = false;
+            for (int i = 0; i < mDispatchers.length; i++) {
+                if (mDispatchers[i] != null) {
+                    mDispatchers[i].quit();
+                    mDispatchers[i] = null;
+                }
+            }
+            mPoolSize = 0;
+            for (LaneDispatchers lane : mLanes.values()) {
+                lane.stop();
+            }
+        }
+    }
+
+    /**
+     * Adds a lane with its own queue and dispatchers. Requests choose it with {@link
+     * HanntoRequest#setLane(String)}. A lane added while the queue is running starts at once.
+     *
+     * @throws IllegalArgumentException if a lane with the same name was already added
+     */
+    public void addLane(HanntoLane lane) {
+        synchronized (mDispatchers) {
+            if (mLanes.containsKey(lane.getName())) {
+                throw new IllegalArgumentException("Duplicate lane " + lane.getName());
+            }
+            LaneDispatchers dispatchers = new LaneDispatchers(lane);
+            mLanes.put(lane.getName(), dispatchers);
+            if (mRunning) {
+                dispatchers.start();
+            }
+        }
+    }
+
+    /**
+     * The dispatchers of one lane. Started and stopped while holding the mDispatchers lock,
+     * along with the main pool.
+     */
+    private class LaneDispatchers {
+        final HanntoLane mLane;
+        final HanntoNetworkDispatcher[] mLaneDispatchers;
+
+        LaneDispatchers(HanntoLane lane) {
+            mLane = lane;
+            int count = lane.getDispatchers();
+            if (mMaxInFlightPerDispatcher == 0) {
+                // Blocking dispatchers each process one request, so the limit caps their number.
+                count = Math.min(count, lane.getMaxConcurrent());
+            }
+            mLaneDispatchers = new HanntoNetworkDispatcher[count];
+        }
+
+        void start() {
+            Semaphore inFlight = new Semaphore(mLane.getMaxConcurrent());
+            for (int i = 0; i < mLaneDispatchers.length; i++) {
+                BlockingQueue<HanntoRequest> queue = dispatcherQueue(mLane.getQueue(), i);
+                if (mMaxInFlightPerDispatcher > 0) {
+                    mLaneDispatchers[i] =
+                            new HanntoAsyncNetworkDispatcher(
+                                    queue,
+                                    (HanntoAsyncNetwork) mNetwork,
+                                    mCache,
+                                    mDelivery,
+                                    inFlight);
+                } else {
+                    mLaneDispatchers[i] =
+                            new HanntoNetworkDispatcher(queue, mNetwork, mCache, mDelivery);
+                }
+                mLaneDispatchers[i].start();
+            }
+        }
+
+        void stop() {
+            for (int i = 0; i < mLaneDispatchers.length; i++) {
+                if (mLaneDispatchers[i] != null) {
+                    mLaneDispatchers[i].quit();
+                    mLaneDispatchers[i] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts another dispatcher in an elastic pool if every running one is busy and the queue is
+     * backing up, or if no dispatcher is running at all.
+     *
+     * @param waitMs How long the request that triggered this check spent queued
+     */
+    private void maybeGrowPool(long waitMs) {
+        int size = mPoolSize;
+        if (size >= mElasticPolicy.getMaxDispatchers()) {
+            return;
+        }
+        if (size > 0 && !isBackingUp(waitMs)) {
+            return;
+        }
+        synchronized (mDispatchers) {
+            if (!mRunning || mPoolSize >= mElasticPolicy.getMaxDispatchers()) {
+                return;
+            }
+            if (mPoolSize > 0 && !isBackingUp(waitMs)) {
+                return;
+            }
+            for (int i = 0; i < mDispatchers.length; i++) {
+                if (mDispatchers[i] == null) {
+                    startDispatcher(i);
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean isBackingUp(long waitMs) {
+        for (HanntoNetworkDispatcher dispatcher : mDispatchers) {
+            if (dispatcher != null && dispatcher.isWaiting()) {
+                return false;
+            }
+        }
+        return waitMs >= mElasticPolicy.getQueueWaitThresholdMs()
+                || mNetworkQueue.size() >= mElasticPolicy.getQueueDepthThreshold();
+    }
+
+    /** Grows the elastic pool under load and retires dispatchers that stay idle. */
+    private final HanntoNetworkDispatcher.PoolListener mElasticPoolListener =
+            new HanntoNetworkDispatcher.PoolListener() {
+                @Override
+                public void onRequestTaken(
+                        HanntoNetworkDispatcher dispatcher, HanntoRequest request) {
+                    long waitMs = HanntoPlatform.elapsedRealtime() - request.getEnqueueTimeMs();
+                    if (waitMs >= mElasticPolicy.getQueueWaitThresholdMs()) {
+                        maybeGrowPool(waitMs);
+                    }
+                }
+
+                @Override
+                public boolean onKeepAliveExpired(HanntoNetworkDispatcher dispatcher) {
+                    synchronized (mDispatchers) {
+                        int index = -1;
+                        for (int i = 0; i < mDispatchers.length; i++) {
+                            if (mDispatchers[i] == dispatcher) {
+                                index = i;
+                                break;
+                            }
+                        }
+                        if (index < 0) {
+                            // Already stopped.
+                            return true;
+                        }
+                        if (mPoolSize <= mElasticPolicy.getMinDispatchers()) {
+                            return false;
+                        }
+                        mDispatchers[index] = null;
+                        mPoolSize--;
+                        // add() only starts a dispatcher for an empty pool if it sees the pool
+                        // empty; if a request slipped in as we were leaving, stay.
+                        if (mPoolSize == 0 && !mNetworkQueue.isEmpty()) {
+                            mDispatchers[index] = dispatcher;
+                            mPoolSize++;
+                            return false;
+                        }
+                        return true;
+                    }
+                }
+            };
+
+    /**
+     * Turns request coalescing on or off. While on, a request whose {@link
+     * HanntoRequest#getCacheKey()} matches one already in flight does not go to the network; it
+     * waits for the in-flight request and is delivered the same response. See {@link
+     * HanntoRequest#setShouldCoalesce(boolean)} to exclude individual requests.
+     */
+    public void setCoalescing(boolean coalescing) {
+        mCoalescing = coalescing;
+    }
+
+    /**
+     * Sets the cache that responses are served from and written to. Only requests that opt in
+     * with {@link HanntoRequest#setCacheTtl(long, long)} use it. Must be called before {@link
+     * #start()}; pass null to send every request straight to the network, which is the default.
+     */
+    public void setCache(HanntoCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Sets the limits on the requests this queue holds at once, or null to hold any number, which
+     * is the default. Must be called before any request is added.
+     */
+    public void setAdmissionPolicy(HanntoAdmissionPolicy admissionPolicy) {
+        mAdmissionPolicy = admissionPolicy;
+    }
+
+    /**
+     * Sets the sampler that keeps details of slow requests, or null to keep none, which is the
+     * default. Applies to requests added after the call.
+     */
+    public void setSlowRequestSampler(HanntoSlowRequestSampler sampler) {
+        mSlowRequestSampler = sampler;
+    }
+
+    /** Returns the slow request sampler, or null if none is set. */
+    public HanntoSlowRequestSampler getSlowRequestSampler() {
+        return mSlowRequestSampler;
+    }
+
+    /** Returns the latency histograms and load gauges of this queue. */
+    public HanntoMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /** Returns the running network dispatchers of the main pool and every lane. */
+    private List<HanntoNetworkDispatcher> allDispatchers() {
+        List<HanntoNetworkDispatcher> dispatchers = new ArrayList<>();
+        synchronized (mDispatchers) {
+            addRunning(dispatchers, mDispatchers);
+            for (LaneDispatchers lane : mLanes.values()) {
+                addRunning(dispatchers, lane.mLaneDispatchers);
+            }
+        }
+        return dispatchers;
+    }
+
+    private static void addRunning(
+            List<HanntoNetworkDispatcher> running, HanntoNetworkDispatcher[] dispatchers) {
+        for (HanntoNetworkDispatcher dispatcher : dispatchers) {
+            if (dispatcher != null) {
+                running.add(dispatcher);
+            }
+        }
+    }
+
+    /** Gets the {@link HanntoCache} instance being used, or null if there is none. */
+    public HanntoCache getCache() {
+        return mCache;
+    }
+
+    /** Gets a sequence number. */
+    public int getSequenceNumber() {
+        return mSequenceGenerator.incrementAndGet();
+    }
+
+    /**
+     * A simple predicate or filter interface for Requests, for use by {@link
+     * HanntoRequestQueue#cancelAll(RequestFilter)}.
+     */
+    public interface RequestFilter {
+        boolean apply(HanntoRequest<?> request);
+    }
+
+    /**
+     * Cancels all requests in this queue for which the given filter applies.
+     *
+     * @param filter The filtering function to use
+     */
+    public void cancelAll(RequestFilter filter) {
+        for (HanntoRequest<?> request : mCurrentRequests.requests()) {
+            if (filter.apply(request)) {
+                request.cancel();
+            }
+        }
+    }
+
+    /**
+     * Cancels all requests in this queue with the given tag. Tag must be non-null and equality is
+     * by identity. Takes time in proportion to the number of requests with the tag.
+     */
+    public void cancelAll(Object tag) {
+        if (tag == null) {
+            throw new IllegalArgumentException("Cannot cancelAll with a null tag");
+        }
+        for (HanntoRequest<?> request : mCurrentRequests.get(HanntoRequestRegistry.TAG, tag)) {
+            if (request.getTag() == tag) {
+                request.cancel();
+            }
+        }
+    }
+
+    /**
+     * Cancels all requests in this queue whose key in the given index equals the given key. Takes
+     * time in proportion to the number of matching requests.
+     *
+     * @param index An index added with {@link #addIndex(HanntoRequestRegistry.Index)}, or {@link
+     *     HanntoRequestRegistry#TAG}
+     */
+    public void cancelAll(HanntoRequestRegistry.Index index, Object key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Cannot cancelAll with a null key");
+        }
+        for (HanntoRequest<?> request : mCurrentRequests.get(index, key)) {
+            request.cancel();
+        }
+    }
+
+    /**
+     * Indexes the requests in this queue by another key, such as the device they are sent to, so
+     * that they can be found and canceled without scanning every request. Must be called before
+     * any request is added.
+     */
+    public void addIndex(HanntoRequestRegistry.Index index) {
+        mCurrentRequests.addIndex(index);
+    }
+
+    /** Returns the requests this queue is processing, by index. */
+    public HanntoRequestRegistry getCurrentRequests() {
+        return mCurrentRequests;
+    }
+
+    /**
+     * Adds a Request to the dispatch queue.
+     *
+     * <p>If the queue has an {@link HanntoAdmissionPolicy} and no room for the request, this may
+     * block or evict another request as the policy says. A request that is refused is delivered a
+     * {@link QueueFullError}.
+     *
+     * @param request The request to service
+     * @return The passed-in request
+     */
+    public <T> HanntoRequest<T> add(HanntoRequest<T> request) {
+        checkLane(request);
+        // Tag the request as belonging to this queue.
+        request.setRequestQueue(this);
+        if (!admit(request, true)) {
+            mDelivery.postError(request, new QueueFullError("Request queue full"));
+            return request;
+        }
+        enqueue(request);
+        return request;
+    }
+
+    /**
+     * Adds a Request to the dispatch queue if there is room for it without waiting. Policies that
+     * evict requests still do so to make room. Unlike {@link #add}, nothing is delivered to a
+     * request that is not added.
+     *
+     * @param request The request to service
+     * @return true if the request was added
+     */
+    public <T> boolean tryAdd(HanntoRequest<T> request) {
+        checkLane(request);
+        if (!admit(request, false)) {
+            return false;
+        }
+        request.setRequestQueue(this);
+        enqueue(request);
+        return true;
+    }
+
+    private void checkLane(HanntoRequest<?> request) {
+        if (request.getLane() != null && !mLanes.containsKey(request.getLane())) {
+            throw new IllegalArgumentException("Unknown lane " + request.getLane());
+        }
+    }
+
+    /**
+     * Adds a request to the set of current requests if the admission policy has room for it,
+     * evicting or waiting as the policy says.
+     *
+     * @param mayBlock Whether to wait for room under {@link HanntoAdmissionPolicy.Overflow#BLOCK}
+     * @return true if the request was admitted
+     */
+    private boolean admit(HanntoRequest<?> request, boolean mayBlock) {
+        HanntoAdmissionPolicy policy = mAdmissionPolicy;
+        if (policy == null) {
+            // Process requests in the order they are added.
+            request.setSequence(getSequenceNumber());
+            mCurrentRequests.add(request);
+            return true;
+        }
+        long payloadBytes = request.getPayloadLength();
+        List<HanntoRequest<?>> evicted = new ArrayList<>();
+        boolean admitted = false;
+        synchronized (mAdmissionLock) {
+            long deadline = HanntoPlatform.elapsedRealtime() + policy.getBlockTimeoutMs();
+            while (!admitted) {
+                if (hasRoom(policy, payloadBytes)) {
+                    request.setSequence(getSequenceNumber());
+                    mCurrentRequests.add(request);
+                    admitted = true;
+                } else if (policy.getOverflow() == HanntoAdmissionPolicy.Overflow.BLOCK) {
+                    long remaining = deadline - HanntoPlatform.elapsedRealtime();
+                    if (!mayBlock || remaining <= 0) {
+                        break;
+                    }
+                    try {
+                        mAdmissionLock.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                } else {
+                    HanntoRequest<?> victim =
+                            policy.getOverflow() == HanntoAdmissionPolicy.Overflow.REJECT
+                                    ? null
+                                    : evict(policy.getOverflow());
+                    if (victim == null) {
+                        break;
+                    }
+                    evicted.add(victim);
+                }
+            }
+        }
+        for (HanntoRequest<?> victim : evicted) {
+            // Free the victim's slot and payload now rather than when a dispatcher next gets to
+            // it, which could be never while the device stalls. Outside mAdmissionLock as it takes
+            // time in proportion to the queue; a dispatcher that takes the victim first drops it.
+            if (!mCacheQueue.remove(victim)) {
+                networkQueueOf(victim).remove(victim);
+            }
+            // Let a coalesced request waiting on the victim go to the network in its place.
+            victim.notifyListenerResponseNotUsable();
+            mDelivery.postError(
+                    victim, new QueueFullError("Evicted to make room for a newer request"));
+        }
+        return admitted;
+    }
+
+    /** Must be called with mAdmissionLock held. */
+    private boolean hasRoom(HanntoAdmissionPolicy policy, long payloadBytes) {
+        if (mCurrentRequests.size() == 0) {
+            return true;
+        }
+        return mCurrentRequests.size() < policy.getMaxRequests()
+                && mCurrentRequests.getPayloadBytes() + payloadBytes
+                        <= policy.getMaxPayloadBytes();
+    }
+
+    /**
+     * Takes a request that has not been sent yet out of the set of current requests, choosing it
+     * as the overflow policy says. The caller then takes it out of its queue. Must be called with
+     * mAdmissionLock held.
+     *
+     * @return The evicted request, or null if no request could be evicted
+     */
+    private HanntoRequest<?> evict(HanntoAdmissionPolicy.Overflow overflow) {
+        while (true) {
+            Set<HanntoRequest<?>> waiting =
+                    overflow == HanntoAdmissionPolicy.Overflow.DROP_OLDEST_LOW
+                            ? mWaitingLow
+                            : busiestTag();
+            if (waiting == null || waiting.isEmpty()) {
+                return null;
+            }
+            HanntoRequest<?> oldest = waiting.iterator().next();
+            forgetWaiting(oldest);
+            // A dispatcher may have taken it meanwhile; it is being processed then.
+            if (oldest.getWaitState().compareAndSet(WAITING, EVICTED)) {
+                mCurrentRequests.remove(oldest);
+                return oldest;
+            }
+        }
+    }
+
+    /**
+     * Returns the waiting requests of the tag with the most of them, ties going to the tag with
+     * the oldest, or null if no tagged request is waiting. Must be called with mAdmissionLock held.
+     */
+    private Set<HanntoRequest<?>> busiestTag() {
+        Set<HanntoRequest<?>> busiest = null;
+        for (Set<HanntoRequest<?>> waiting : mWaitingByTag.values()) {
+            if (busiest == null
+                    || waiting.size() > busiest.size()
+                    || (waiting.size() == busiest.size()
+                            && waiting.iterator().next().getSequence()
+                                    < busiest.iterator().next().getSequence())) {
+                busiest = waiting;
+            }
+        }
+        return busiest;
+    }
+
+    /**
+     * Marks a request as waiting in a queue, where the admission policy may evict it. Must be
+     * called before the request is put in the queue so that no dispatcher can take it first.
+     */
+    private void markWaiting(HanntoRequest<?> request) {
+        HanntoAdmissionPolicy policy = mAdmissionPolicy;
+        if (policy == null
+                || (policy.getOverflow() != HanntoAdmissionPolicy.Overflow.DROP_OLDEST_LOW
+                        && policy.getOverflow() != HanntoAdmissionPolicy.Overflow.SHED_BY_TAG)) {
+            return;
+        }
+        synchronized (mAdmissionLock) {
+            if (request.getPriority() == HanntoRequest.Priority.LOW) {
+                mWaitingLow.add(request);
+            }
+            Object tag = request.getTag();
+            if (tag != null) {
+                Set<HanntoRequest<?>> waiting = mWaitingByTag.get(tag);
+                if (waiting == null) {
+                    waiting = new LinkedHashSet<>();
+                    mWaitingByTag.put(tag, waiting);
+                }
+                waiting.add(request);
+            }
+            request.getWaitState().set(WAITING);
+        }
+    }
+
+    /** Must be called with mAdmissionLock held. */
+    private void forgetWaiting(HanntoRequest<?> request) {
+        if (request.getPriority() == HanntoRequest.Priority.LOW) {
+            mWaitingLow.remove(request);
+        }
+        Object tag = request.getTag();
+        if (tag != null) {
+            Set<HanntoRequest<?>> waiting = mWaitingByTag.get(tag);
+            if (waiting != null && waiting.remove(request) && waiting.isEmpty()) {
+                mWaitingByTag.remove(tag);
+            }
+        }
+    }
+
+    /**
+     * Called when a request leaves its queue, taken by a dispatcher or finished. Returns false if
+     * the request was evicted while waiting.
+     */
+    /* package */ boolean onTaken(HanntoRequest<?> request) {
+        if (request.getWaitState().compareAndSet(WAITING, NOT_WAITING)) {
+            synchronized (mAdmissionLock) {
+                forgetWaiting(request);
+            }
+            return true;
+        }
+        return request.getWaitState().get() != EVICTED;
+    }
+
+    /** Sends an admitted request to the cache or network. */
+    private void enqueue(HanntoRequest<?> request) {
+        request.setEnqueueTimeMs(HanntoPlatform.elapsedRealtime());
+        request.setEnqueueNanos(System.nanoTime());
+        HanntoSlowRequestSampler sampler = mSlowRequestSampler;
+        if (sampler != null) {
+            request.setSlowRequestTrace(sampler.maybeStartTrace());
+        }
+        request.addMarker("add-to-queue");
+
+        // If an identical request is already in flight, wait for its response instead.
+        if (mCoalescing
+                && request.shouldCoalesce()
+                && mSingleFlightManager.maybeAddToWaitingRequests(request)) {
+            return;
+        }
+
+        // If the request is uncacheable, skip the cache queue and go straight to the network.
+        if (mCache == null || !request.shouldCache()) {
+            sendToNetwork(request);
+            return;
+        }
+        markWaiting(request);
+        mCacheQueue.add(request);
+    }
+
+    /** Returns the queue the network dispatchers serving a request take it from. */
+    private BlockingQueue<HanntoRequest> networkQueueOf(HanntoRequest<?> request) {
+        if (request.getLane() != null) {
+            return mLanes.get(request.getLane()).mLane.getQueue();
+        }
+        return mNetworkQueue;
+    }
+
+    /** Queues a request for the network dispatchers. */
+    /* package */ void sendToNetwork(HanntoRequest<?> request) {
+        markWaiting(request);
+        networkQueueOf(request).add(request);
+        if (request.getLane() == null && mElasticPolicy != null) {
+            maybeGrowPool(0);
+        }
+    }
+
+    /** Posts a partial result for a request still being processed. */
+    /* package */ void postIntermediate(HanntoRequest<?> request, HanntoResponse<?> response) {
+        mDelivery.postResponse(request, response);
+    }
+
+    /**
+     * Lets requests with the same cache key share a single network request. The first one goes to
+     * the network; the rest wait and receive its response. If it fails, the next waiting request
+     * goes to the network in its place.
+     */
+    private class SingleFlightManager implements HanntoRequest.NetworkRequestCompleteListener {
+
+        /**
+         * In-flight cache keys, mapped to the requests waiting on them. A key maps to an empty
+         * list while its request is in flight without waiters.
+         */
+        private final Map<String, List<HanntoRequest<?>>> mWaitingRequests = new HashMap<>();
+
+        /**
+         * Returns true if the request was attached to an identical in-flight request. Otherwise
+         * the request becomes the in-flight one for its key and false is returned.
+         */
+        synchronized boolean maybeAddToWaitingRequests(HanntoRequest<?> request) {
+            String cacheKey = request.getCacheKey();
+            List<HanntoRequest<?>> waiting = mWaitingRequests.get(cacheKey);
+            if (waiting != null) {
+                waiting.add(request);
+                request.addMarker("waiting-for-response");
+                return true;
+            }
+            mWaitingRequests.put(cacheKey, new ArrayList<HanntoRequest<?>>());
+            request.setNetworkRequestCompleteListener(this);
+            return false;
+        }
+
+        @Override
+        public void onResponseReceived(
+                HanntoRequest request,
+                HanntoResponse response,
+                HanntoNetworkResponse networkResponse) {
+            List<HanntoRequest<?>> waiting;
+            synchronized (this) {
+                waiting = mWaitingRequests.remove(request.getCacheKey());
+            }
+            if (waiting != null) {
+                for (HanntoRequest<?> waitingRequest : waiting) {
+                    // The result may be a view of a pooled body, which must outlive delivery.
+                    if (networkResponse != null && networkResponse.retain()) {
+                        waitingRequest.retainUntilFinished(networkResponse);
+                    }
+                    mDelivery.postResponse(waitingRequest, response);
+                }
+            }
+        }
+
+        @Override
+        public void onNoUsableResponseReceived(HanntoRequest request) {
+            HanntoRequest<?> nextInLine = null;
+            synchronized (this) {
+                String cacheKey = request.getCacheKey();
+                List<HanntoRequest<?>> waiting = mWaitingRequests.remove(cacheKey);
+                if (waiting != null && !waiting.isEmpty()) {
+                    nextInLine = waiting.remove(0);
+                    mWaitingRequests.put(cacheKey, waiting);
+                    nextInLine.setNetworkRequestCompleteListener(this);
+                }
+            }
+            if (nextInLine != null) {
+                sendToNetwork(nextInLine);
+            }
+        }
+    }
+
+
+    /**
+     * Called from {@link HanntoRequest#finish(String)}, indicating that processing of the given request
+     * has finished.
+     */
+    @SuppressWarnings("unchecked") // see above note on RequestFinishedListener
+     void finish(HanntoRequest request) {
+        // Remove from the set of requests currently being processed.
+        // Requests evicted by the admission policy were removed already.
+        onTaken(request);
+        if (mCurrentRequests.remove(request) && mAdmissionPolicy != null) {
+            synchronized (mAdmissionLock) {
+                mAdmissionLock.notifyAll();
+            }
+        }
+        HanntoSlowRequestSampler.Trace trace = request.getSlowRequestTrace();
+        HanntoSlowRequestSampler sampler = mSlowRequestSampler;
+        if (trace != null && sampler != null) {
+            request.setSlowRequestTrace(null);
+            sampler.onFinished(request, trace);
+        }
+        synchronized (mFinishedListeners) {
+            for (RequestFinishedListener listener : mFinishedListeners) {
+                listener.onRequestFinished(request);
+            }
+        }
+    }
+
+    public <T> void addRequestFinishedListener(RequestFinishedListener<T> listener) {
+        synchronized (mFinishedListeners) {
+            mFinishedListeners.add(listener);
+        }
+    }
+
+    /** Remove a RequestFinishedListener. Has no effect if listener was not previously added. */
+    public <T> void removeRequestFinishedListener(RequestFinishedListener<T> listener) {
+        synchronized (mFinishedListeners) {
+            mFinishedListeners.remove(listener);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.hannto.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The requests a {@link HanntoRequestQueue} is processing, indexed by keys such as their tag so
+ * that finding the requests with a key takes time in proportion to the matches rather than to all
+ * requests.
+ *
+ * <p>Adding and removing requests takes no global lock: the requests are held in a concurrent map,
+ * and each key of an index has its own lock. Indexes beyond {@link #TAG} are added with {@link
+ * HanntoRequestQueue#addIndex(Index)}.
+ */
+public final class HanntoRequestRegistry {
+
+    /** Extracts the key a request is indexed under. */
+    public interface Index {
+        /** Returns the request's key, or null to leave it out of this index. */
+        Object keyOf(HanntoRequest<?> request);
+    }
+
+    /** Indexes requests by {@link HanntoRequest#getTag()}. */
+    public static final Index TAG =
+            new Index() {
+                @Override
+                public Object keyOf(HanntoRequest<?> request) {
+                    return request.getTag();
+                }
+            };
+
+    /** The requests with one key. Once dead it has been unlinked from its index. */
+    private static final class Bucket {
+        final Set<HanntoRequest<?>> requests = new HashSet<>();
+        boolean dead;
+    }
+
+    /** Buckets of one index by key. */
+    private static final class Buckets {
+        final Index index;
+        final ConcurrentHashMap<Object, Bucket> byKey = new ConcurrentHashMap<>();
+
+        Buckets(Index index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * Current requests, each with its keys in the order of mIndexes. Declared as a ConcurrentMap
+     * so that keySet() links against the method Android has had since API 1.
+     */
+    private final ConcurrentMap<HanntoRequest<?>, Object[]> mRequests =
+            new ConcurrentHashMap<>();
+
+    private final List<Buckets> mIndexes = new CopyOnWriteArrayList<>();
+
+    private final AtomicInteger mSize = new AtomicInteger();
+
+    private final AtomicLong mPayloadBytes = new AtomicLong();
+
+    /* package */ HanntoRequestRegistry() {
+        addIndex(TAG);
+    }
+
+    /** Adds an index. Requests already registered are not in it. */
+    /* package */ void addIndex(Index index) {
+        for (Buckets buckets : mIndexes) {
+            if (buckets.index == index) {
+                return;
+            }
+        }
+        mIndexes.add(new Buckets(index));
+    }
+
+    /** Registers a request. Returns false if it was registered already. */
+    /* package */ boolean add(HanntoRequest<?> request) {
+        List<Buckets> indexes = mIndexes;
+        Object[] keys = new Object[indexes.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = indexes.get(i).index.keyOf(request);
+        }
+        if (mRequests.putIfAbsent(request, keys) != null) {
+            return false;
+        }
+        mSize.incrementAndGet();
+        mPayloadBytes.addAndGet(request.getPayloadLength());
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                link(indexes.get(i), keys[i], request);
+            }
+        }
+        return true;
+    }
+
+    /** Unregisters a request. Returns false if it was not registered. */
+    /* package */ boolean remove(HanntoRequest<?> request) {
+        Object[] keys = mRequests.remove(request);
+        if (keys == null) {
+            return false;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                unlink(mIndexes.get(i), keys[i], request);
+            }
+        }
+        mPayloadBytes.addAndGet(-request.getPayloadLength());
+        mSize.decrementAndGet();
+        return true;
+    }
+
+    private static void link(Buckets buckets, Object key, HanntoRequest<?> request) {
+        while (true) {
+            Bucket bucket = buckets.byKey.get(key);
+            if (bucket == null) {
+                Bucket created = new Bucket();
+                bucket = buckets.byKey.putIfAbsent(key, created);
+                if (bucket == null) {
+                    bucket = created;
+                }
+            }
+            synchronized (bucket) {
+                // A bucket emptied and unlinked by remove() must not be reused.
+                if (!bucket.dead) {
+                    bucket.requests.add(request);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void unlink(Buckets buckets, Object key, HanntoRequest<?> request) {
+        Bucket bucket = buckets.byKey.get(key);
+        if (bucket == null) {
+            return;
+        }
+        synchronized (bucket) {
+            bucket.requests.remove(request);
+            if (bucket.requests.isEmpty()) {
+                bucket.dead = true;
+                buckets.byKey.remove(key, bucket);
+            }
+        }
+    }
+
+    /** Returns the number of requests registered. */
+    public int size() {
+        return mSize.get();
+    }
+
+    /** Returns the total payload of the requests registered, in bytes. */
+    public long getPayloadBytes() {
+        return mPayloadBytes.get();
+    }
+
+    /**
+     * Returns the requests registered under a key of an index, which are compared with {@link
+     * Object#equals(Object)}. Takes time in proportion to the number of matches.
+     */
+    public List<HanntoRequest<?>> get(Index index, Object key) {
+        for (Buckets buckets : mIndexes) {
+            if (buckets.index == index) {
+                Bucket bucket = buckets.byKey.get(key);
+                if (bucket == null) {
+                    return Collections.emptyList();
+                }
+                synchronized (bucket) {
+                    return new ArrayList<HanntoRequest<?>>(bucket.requests);
+                }
+            }
+        }
+        throw new IllegalArgumentException("Unknown index " + index);
+    }
+
+    /** Returns the number of keys in an index, for tests. */
+    /* package */ int keyCount(Index index) {
+        for (Buckets buckets : mIndexes) {
+            if (buckets.index == index) {
+                return buckets.byKey.size();
+            }
+        }
+        throw new IllegalArgumentException("Unknown index " + index);
+    }
+
+    /** Returns the requests registered. Iteration is weakly consistent and takes no lock. */
+    /* package */ Iterable<HanntoRequest<?>> requests() {
+        return mRequests.keySet();
+    }
+}
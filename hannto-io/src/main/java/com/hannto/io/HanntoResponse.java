@@ -19,7 +19,12 @@ public class HanntoResponse<T> {
 
     /** Returns a successful response containing the parsed result. */
     public static <T> HanntoResponse<T> success(T result) {
-        return new HanntoResponse<>(result);
+        return new HanntoResponse<>(result, null);
+    }
+
+    /** Returns a successful response containing the parsed result and its cache metadata. */
+    public static <T> HanntoResponse<T> success(T result, HanntoCache.Entry cacheEntry) {
+        return new HanntoResponse<>(result, cacheEntry);
     }
 
     /**
@@ -33,8 +38,8 @@ public class HanntoResponse<T> {
     /** Parsed response, or null in the case of error. */
     public final T result;
 
-//    /** Cache metadata for this response, or null in the case of error. */
-//    public final Cache.Entry cacheEntry;
+    /** Cache metadata for this response, or null in the case of error. */
+    public final HanntoCache.Entry cacheEntry;
 
     /** Detailed error information if <code>errorCode != OK</code>. */
     public final HanntoError error;
@@ -47,15 +52,15 @@ public class HanntoResponse<T> {
         return error == null;
     }
 
-    private HanntoResponse(T result) {
+    private HanntoResponse(T result, HanntoCache.Entry cacheEntry) {
         this.result = result;
-//        this.cacheEntry = cacheEntry;
+        this.cacheEntry = cacheEntry;
         this.error = null;
     }
 
     private HanntoResponse(HanntoError error) {
         this.result = null;
-//        this.cacheEntry = null;
+        this.cacheEntry = null;
         this.error = error;
     }
 
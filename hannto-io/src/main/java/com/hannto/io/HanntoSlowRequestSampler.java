@@ -0,0 +1,225 @@
+package com.hannto.io;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the details of recent slow requests, for investigating outliers on devices in the field.
+ * See {@link HanntoRequestQueue#setSlowRequestSampler(HanntoSlowRequestSampler)}.
+ *
+ * <p>Sampling is decided when a request is added: one request in {@link #getSampleOneIn()} is
+ * picked at random and has its stage timings, response size and error collected as it goes.
+ * Requests that are not picked cost one random draw. A picked request whose lifetime, from being
+ * added until it finishes, is at least {@link #getThresholdMs()} is kept as a {@link Sample}; the
+ * sampler holds the newest {@link #getCapacity()} of them.
+ */
+public class HanntoSlowRequestSampler {
+
+    /** The default lifetime at which a request counts as slow, in milliseconds. */
+    public static final long DEFAULT_THRESHOLD_MS = 3000;
+
+    /** The default share of requests sampled: one in this many. */
+    public static final int DEFAULT_SAMPLE_ONE_IN = 16;
+
+    /** The default number of slow requests kept. */
+    public static final int DEFAULT_CAPACITY = 32;
+
+    private static final HanntoMetrics.Stage[] STAGES = HanntoMetrics.Stage.values();
+
+    /** What a sampled request collects while it is processed. */
+    /* package */ static final class Trace {
+        final long[] stageUs = new long[STAGES.length];
+        volatile long responseBytes = -1;
+        volatile HanntoError error;
+        volatile String finishTag;
+    }
+
+    /** The details of one slow request. */
+    public static final class Sample {
+        private final String mRequest;
+        private final HanntoRequest.Priority mPriority;
+        private final Object mTag;
+        private final long mPayloadBytes;
+        private final long mResponseBytes;
+        private final int mRetryCount;
+        private final long mLifetimeMs;
+        private final long[] mStageUs;
+        private final String mFinishTag;
+        private final HanntoError mError;
+
+        Sample(HanntoRequest<?> request, Trace trace, long lifetimeMs) {
+            mRequest = request.toString();
+            mPriority = request.getPriority();
+            mTag = request.getTag();
+            mPayloadBytes = request.getPayloadLength();
+            mResponseBytes = trace.responseBytes;
+            mRetryCount = request.getRetryPolicy().getCurrentRetryCount();
+            mLifetimeMs = lifetimeMs;
+            mStageUs = trace.stageUs.clone();
+            mFinishTag = trace.finishTag;
+            mError = trace.error;
+        }
+
+        /** Returns a description of the request, from its {@link HanntoRequest#toString()}. */
+        public String getRequest() {
+            return mRequest;
+        }
+
+        public HanntoRequest.Priority getPriority() {
+            return mPriority;
+        }
+
+        /** Returns the request's tag, or null if it had none. */
+        public Object getTag() {
+            return mTag;
+        }
+
+        /** Returns the length of the request's payload in bytes. */
+        public long getPayloadBytes() {
+            return mPayloadBytes;
+        }
+
+        /** Returns the length of the response body in bytes, or -1 if unknown or not received. */
+        public long getResponseBytes() {
+            return mResponseBytes;
+        }
+
+        /** Returns the number of retries the request took. */
+        public int getRetryCount() {
+            return mRetryCount;
+        }
+
+        /** Returns the time from the request being added until it finished. */
+        public long getLifetimeMs() {
+            return mLifetimeMs;
+        }
+
+        /** Returns the time the request spent in a stage, in microseconds; 0 if never reached. */
+        public long getStageUs(HanntoMetrics.Stage stage) {
+            return mStageUs[stage.ordinal()];
+        }
+
+        /** Returns the tag the request finished with, such as "done". */
+        public String getFinishTag() {
+            return mFinishTag;
+        }
+
+        /** Returns the error delivered to the request, or null if it succeeded. */
+        public HanntoError getError() {
+            return mError;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder =
+                    new StringBuilder()
+                            .append(mRequest)
+                            .append(" [lifetime=")
+                            .append(mLifetimeMs)
+                            .append("ms] [size=")
+                            .append(mPayloadBytes)
+                            .append('/')
+                            .append(mResponseBytes)
+                            .append("] [retryCount=")
+                            .append(mRetryCount)
+                            .append("] [tag=")
+                            .append(mTag)
+                            .append(']');
+            for (HanntoMetrics.Stage stage : STAGES) {
+                builder.append(" [")
+                        .append(stage.name().toLowerCase())
+                        .append('=')
+                        .append(getStageUs(stage))
+                        .append("us]");
+            }
+            if (mError != null) {
+                builder.append(" [error=").append(mError.getClass().getSimpleName()).append(']');
+            }
+            return builder.append(" [").append(mFinishTag).append(']').toString();
+        }
+    }
+
+    private final long mThresholdMs;
+
+    private final int mSampleOneIn;
+
+    private final int mCapacity;
+
+    /** Newest samples last. Guarded by itself. */
+    private final ArrayDeque<Sample> mSamples;
+
+    /** Constructs a sampler with the default threshold, sampling rate and capacity. */
+    public HanntoSlowRequestSampler() {
+        this(DEFAULT_THRESHOLD_MS, DEFAULT_SAMPLE_ONE_IN, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs a new slow request sampler.
+     *
+     * @param thresholdMs Lifetime at which a sampled request is kept
+     * @param sampleOneIn Share of requests sampled: one in this many, or 1 for every request
+     * @param capacity Number of slow requests kept
+     */
+    public HanntoSlowRequestSampler(long thresholdMs, int sampleOneIn, int capacity) {
+        if (thresholdMs < 0 || sampleOneIn < 1 || capacity < 1) {
+            throw new IllegalArgumentException("Invalid sampler settings");
+        }
+        mThresholdMs = thresholdMs;
+        mSampleOneIn = sampleOneIn;
+        mCapacity = capacity;
+        mSamples = new ArrayDeque<>(capacity);
+    }
+
+    public long getThresholdMs() {
+        return mThresholdMs;
+    }
+
+    public int getSampleOneIn() {
+        return mSampleOneIn;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /** Returns a trace for a request picked for sampling, or null if it was not picked. */
+    /* package */ Trace maybeStartTrace() {
+        if (mSampleOneIn > 1 && ThreadLocalRandom.current().nextInt(mSampleOneIn) != 0) {
+            return null;
+        }
+        return new Trace();
+    }
+
+    /** Keeps a sampled request if it was slow. */
+    /* package */ void onFinished(HanntoRequest<?> request, Trace trace) {
+        long lifetimeMs =
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - request.getEnqueueNanos());
+        if (lifetimeMs < mThresholdMs) {
+            return;
+        }
+        Sample sample = new Sample(request, trace, lifetimeMs);
+        synchronized (mSamples) {
+            if (mSamples.size() == mCapacity) {
+                mSamples.removeFirst();
+            }
+            mSamples.addLast(sample);
+        }
+    }
+
+    /** Returns the slow requests kept, oldest first. */
+    public List<Sample> getSamples() {
+        synchronized (mSamples) {
+            return new ArrayList<>(mSamples);
+        }
+    }
+
+    /** Discards the slow requests kept. */
+    public void clear() {
+        synchronized (mSamples) {
+            mSamples.clear();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.hannto.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A file that takes a response body once it grows past a threshold, so that large bodies such
+ * as scans and device logs go straight to disk instead of memory. Bodies up to the threshold stay
+ * in memory as usual. See {@link HanntoRequest#setSpool(HanntoSpool)}.
+ *
+ * <p>Each attempt writes the body from the spool's start, replacing whatever an earlier attempt
+ * wrote, and the file is truncated where the body ends.
+ */
+public class HanntoSpool {
+
+    /** Largest number of bytes moved from the network to the file in one call. */
+    private static final long TRANSFER_CHUNK_BYTES = 64 * 1024;
+
+    private final File mFile;
+
+    private final FileChannel mChannel;
+
+    private final long mPosition;
+
+    private final int mThresholdBytes;
+
+    /**
+     * @param file File to write large bodies to, created if needed
+     * @param thresholdBytes Largest body kept in memory
+     */
+    public HanntoSpool(File file, int thresholdBytes) {
+        this(file, null, 0, thresholdBytes);
+    }
+
+    /**
+     * @param channel Channel to write large bodies to. The caller owns it and closes it.
+     * @param position Where in the channel the body starts; at most the channel's size
+     * @param thresholdBytes Largest body kept in memory
+     */
+    public HanntoSpool(FileChannel channel, long position, int thresholdBytes) {
+        this(null, channel, position, thresholdBytes);
+    }
+
+    private HanntoSpool(File file, FileChannel channel, long position, int thresholdBytes) {
+        if (position < 0 || thresholdBytes < 0 || thresholdBytes == Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid spool settings");
+        }
+        mFile = file;
+        mChannel = channel;
+        mPosition = position;
+        mThresholdBytes = thresholdBytes;
+    }
+
+    /** Returns the file bodies are written to, or null if the spool is a channel. */
+    public File getFile() {
+        return mFile;
+    }
+
+    /** Returns the channel bodies are written to, or null if the spool is a file. */
+    public FileChannel getChannel() {
+        return mChannel;
+    }
+
+    /** Returns where in the file or channel the body starts. */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    /** Returns the largest body kept in memory. */
+    public int getThresholdBytes() {
+        return mThresholdBytes;
+    }
+
+    /**
+     * Writes a body to the spool from its start.
+     *
+     * @param head Start of the body, already read
+     * @param rest Rest of the body, or null if head holds all of it. Not closed.
+     * @return Length of the body written
+     */
+    public long write(ByteBuffer head, InputStream rest) throws IOException {
+        FileChannel channel =
+                mChannel != null ? mChannel : new RandomAccessFile(mFile, "rw").getChannel();
+        try {
+            long position = mPosition;
+            while (head.hasRemaining()) {
+                position += channel.write(head, position);
+            }
+            if (rest != null) {
+                ReadableByteChannel source = Channels.newChannel(rest);
+                long transferred;
+                while ((transferred = channel.transferFrom(source, position, TRANSFER_CHUNK_BYTES))
+                        > 0) {
+                    position += transferred;
+                }
+            }
+            channel.truncate(position);
+            return position - mPosition;
+        } finally {
+            if (mChannel == null) {
+                channel.close();
+            }
+        }
+    }
+}
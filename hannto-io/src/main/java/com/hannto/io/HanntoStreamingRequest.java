@@ -0,0 +1,61 @@
+package com.hannto.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A request that consumes its response body as a stream through {@link
+ * #parseNetworkStream(InputStream, long)} rather than as one array. Stacks that support it hand
+ * over the body while it is still arriving, so it never has to fit in memory whole; bodies from
+ * other stacks or from the cache are streamed from memory.
+ */
+public abstract class HanntoStreamingRequest<T> extends HanntoRequest<T> {
+
+    public HanntoStreamingRequest(byte[] data, HanntoResponse.ErrorListener listener) {
+        super(data, listener);
+    }
+
+    public HanntoStreamingRequest(HanntoRequestBody body, HanntoResponse.ErrorListener listener) {
+        super(body, listener);
+    }
+
+    @Override
+    public final boolean isStreaming() {
+        return true;
+    }
+
+    /**
+     * Subclasses must implement this to consume the response body chunk by chunk, optionally
+     * posting partial results with {@link #postIntermediate(Object)}. Called from a worker thread
+     * while the body is arriving; the stream is closed afterwards. A failure part way through is
+     * delivered as an error, not retried.
+     *
+     * @param body Response body
+     * @param contentLength Body length in bytes, or -1 if unknown
+     * @return The parsed response, or null in the case of an error
+     */
+    protected abstract HanntoResponse<T> parseNetworkStream(InputStream body, long contentLength)
+            throws IOException;
+
+    /** Hands the body to {@link #parseNetworkStream(InputStream, long)}. */
+    @Override
+    protected final HanntoResponse<T> parseNetworkResponse(HanntoNetworkResponse response) {
+        InputStream body =
+                response.content != null
+                        ? response.content
+                        : new ByteArrayInputStream(
+                                response.getData() != null ? response.getData() : new byte[0]);
+        try {
+            return parseNetworkStream(body, response.contentLength);
+        } catch (IOException e) {
+            return HanntoResponse.error(new HanntoError(e));
+        } finally {
+            try {
+                body.close();
+            } catch (IOException e) {
+                // Ignored; the body has been consumed.
+            }
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.hannto.io;
+
+/** Adjusts the scheduling priority of the calling thread. */
+public interface HanntoThreadPriority {
+
+    /** Lowers the priority of the calling thread so it does not compete with the UI thread. */
+    void setBackgroundPriority();
+}
@@ -0,0 +1,435 @@
+package com.hannto.io;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A network queue split into one partition per dispatcher, for pools with many dispatchers.
+ *
+ * <p>Each partition holds one lock-free FIFO lane per {@link HanntoRequest.Priority}. New requests
+ * go to the shorter of two randomly chosen partitions. A dispatcher that takes from {@link
+ * #dispatcherQueue(int)} serves its own partition first and steals from the others, one priority
+ * level at a time, so a higher-priority request anywhere in the queue is taken before a lower one
+ * in the dispatcher's own partition. FIFO order holds within each lane of a partition.
+ *
+ * <p>Idle dispatchers park individually and there is no lock or condition shared by all of them. A
+ * producer wakes at most one parked dispatcher, and only when no other woken dispatcher is still
+ * looking for work.
+ *
+ * <p>Pass an instance to {@link HanntoRequestQueue#HanntoRequestQueue(HanntoNetwork, int,
+ * HanntoResponseDelivery, BlockingQueue)}; the request queue hands every dispatcher its own view.
+ */
+public class HanntoWorkStealingQueue extends AbstractQueue<HanntoRequest>
+        implements BlockingQueue<HanntoRequest> {
+
+    private static final int PRIORITY_COUNT = HanntoRequest.Priority.values().length;
+
+    private final Partition[] mPartitions;
+
+    /** Dispatcher threads currently parked waiting for work. */
+    private final ConcurrentLinkedQueue<Thread> mIdle = new ConcurrentLinkedQueue<>();
+
+    /** 1 while a dispatcher woken by {@link #wakeOne()} has yet to look for work, else 0. */
+    private final AtomicInteger mSearching = new AtomicInteger();
+
+    /** @param partitions Number of partitions, normally the number of dispatchers */
+    public HanntoWorkStealingQueue(int partitions) {
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("partitions must be positive");
+        }
+        mPartitions = new Partition[partitions];
+        for (int i = 0; i < partitions; i++) {
+            mPartitions[i] = new Partition();
+        }
+    }
+
+    /** Returns the number of partitions. */
+    public int getPartitionCount() {
+        return mPartitions.length;
+    }
+
+    /**
+     * Returns the view a single dispatcher should take requests from. Dispatchers beyond the
+     * partition count share partitions; partitions without a dispatcher are drained by stealing.
+     */
+    public BlockingQueue<HanntoRequest> dispatcherQueue(int dispatcherIndex) {
+        return new DispatcherView(dispatcherIndex % mPartitions.length);
+    }
+
+    @Override
+    public boolean offer(HanntoRequest request) {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        Partition partition = choosePartition();
+        partition.mLanes[request.getPriority().ordinal()].offer(request);
+        partition.mCount.incrementAndGet();
+        // A dispatcher registers as idle before its final scan, so either it sees this request or
+        // we see it in mIdle and unpark it.
+        wakeOne();
+        return true;
+    }
+
+    private Partition choosePartition() {
+        int n = mPartitions.length;
+        if (n == 1) {
+            return mPartitions[0];
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Partition a = mPartitions[random.nextInt(n)];
+        Partition b = mPartitions[random.nextInt(n)];
+        return a.mCount.get() <= b.mCount.get() ? a : b;
+    }
+
+    /**
+     * Unparks one idle dispatcher, unless another woken dispatcher is already looking for work.
+     * The woken dispatcher owns the single "searching" slot until it has looked at the queue, which
+     * stops a burst of producers from waking every dispatcher for a handful of requests.
+     */
+    private void wakeOne() {
+        if (mSearching.get() != 0 || !mSearching.compareAndSet(0, 1)) {
+            return;
+        }
+        Thread idle = mIdle.poll();
+        if (idle != null) {
+            LockSupport.unpark(idle);
+            return;
+        }
+        releaseSearch();
+    }
+
+    /**
+     * Gives up the searching slot. Producers skip waking anyone while the slot is taken, so check
+     * whether something was queued in the meantime.
+     */
+    private void releaseSearch() {
+        mSearching.decrementAndGet();
+        if (!mIdle.isEmpty() && !isEmpty()) {
+            wakeOne();
+        }
+    }
+
+    @Override
+    public void put(HanntoRequest request) {
+        offer(request);
+    }
+
+    @Override
+    public boolean offer(HanntoRequest request, long timeout, TimeUnit unit) {
+        return offer(request);
+    }
+
+    @Override
+    public HanntoRequest poll() {
+        return poll(homeForCurrentThread());
+    }
+
+    @Override
+    public HanntoRequest take() throws InterruptedException {
+        return take(homeForCurrentThread());
+    }
+
+    @Override
+    public HanntoRequest poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return poll(homeForCurrentThread(), unit.toNanos(timeout));
+    }
+
+    private int homeForCurrentThread() {
+        return (int) (Thread.currentThread().getId() % mPartitions.length);
+    }
+
+    /**
+     * Takes the highest-priority request, preferring the home partition among partitions that hold
+     * requests of that priority.
+     */
+    private HanntoRequest poll(int home) {
+        int n = mPartitions.length;
+        for (int p = PRIORITY_COUNT - 1; p >= 0; p--) {
+            for (int i = 0; i < n; i++) {
+                Partition partition = mPartitions[(home + i) % n];
+                if (partition.mCount.get() == 0) {
+                    continue;
+                }
+                HanntoRequest request = partition.mLanes[p].poll();
+                if (request != null) {
+                    partition.mCount.decrementAndGet();
+                    return request;
+                }
+            }
+        }
+        return null;
+    }
+
+    private HanntoRequest take(int home) throws InterruptedException {
+        return poll(home, -1);
+    }
+
+    /**
+     * Polls, parking for up to {@code nanos} when there is no work. A negative timeout waits
+     * forever.
+     */
+    private HanntoRequest poll(int home, long nanos) throws InterruptedException {
+        HanntoRequest request = poll(home);
+        if (request != null) {
+            return request;
+        }
+        final boolean timed = nanos >= 0;
+        final long deadline = timed ? System.nanoTime() + nanos : 0;
+        Thread current = Thread.currentThread();
+        while (true) {
+            // Register as idle before the final scan, so either we see a new request or its
+            // producer sees us.
+            mIdle.offer(current);
+            request = poll(home);
+            if (request == null && !current.isInterrupted()) {
+                if (timed) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining > 0) {
+                        LockSupport.parkNanos(this, remaining);
+                    }
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+            if (!mIdle.remove(current)) {
+                // A producer took us off the idle list to look for work, handing us the
+                // searching slot.
+                releaseSearch();
+            }
+            if (request != null) {
+                return request;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            request = poll(home);
+            if (request != null) {
+                return request;
+            }
+            if (timed && deadline - System.nanoTime() <= 0) {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public HanntoRequest peek() {
+        for (int p = PRIORITY_COUNT - 1; p >= 0; p--) {
+            for (Partition partition : mPartitions) {
+                HanntoRequest request = partition.mLanes[p].peek();
+                if (request != null) {
+                    return request;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Partition partition : mPartitions) {
+            size += partition.mCount.get();
+        }
+        return Math.max(0, size);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof HanntoRequest)) {
+            return false;
+        }
+        int lane = ((HanntoRequest) o).getPriority().ordinal();
+        for (Partition partition : mPartitions) {
+            if (partition.remove(lane, o)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super HanntoRequest> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super HanntoRequest> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int drained = 0;
+        HanntoRequest request;
+        while (drained < maxElements && (request = poll(0)) != null) {
+            c.add(request);
+            drained++;
+        }
+        return drained;
+    }
+
+    /** Iterates partition by partition, highest priority lane first. Weakly consistent. */
+    @Override
+    public Iterator<HanntoRequest> iterator() {
+        return new PartitionIterator();
+    }
+
+    private static class Partition {
+        final ConcurrentLinkedQueue<HanntoRequest>[] mLanes;
+
+        final AtomicInteger mCount = new AtomicInteger();
+
+        @SuppressWarnings("unchecked")
+        Partition() {
+            mLanes = new ConcurrentLinkedQueue[PRIORITY_COUNT];
+            for (int i = 0; i < PRIORITY_COUNT; i++) {
+                mLanes[i] = new ConcurrentLinkedQueue<>();
+            }
+        }
+
+        boolean remove(int lane, Object o) {
+            if (mLanes[lane].remove(o)) {
+                mCount.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private class PartitionIterator implements Iterator<HanntoRequest> {
+        private int mPartition = 0;
+        private int mLane = PRIORITY_COUNT - 1;
+        private Iterator<HanntoRequest> mCurrent = mPartitions[0].mLanes[mLane].iterator();
+        private HanntoRequest mLast;
+        private Partition mLastPartition;
+        private int mLastLane;
+
+        @Override
+        public boolean hasNext() {
+            while (!mCurrent.hasNext()) {
+                if (mLane > 0) {
+                    mLane--;
+                } else if (mPartition < mPartitions.length - 1) {
+                    mPartition++;
+                    mLane = PRIORITY_COUNT - 1;
+                } else {
+                    return false;
+                }
+                mCurrent = mPartitions[mPartition].mLanes[mLane].iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public HanntoRequest next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            mLast = mCurrent.next();
+            mLastPartition = mPartitions[mPartition];
+            mLastLane = mLane;
+            return mLast;
+        }
+
+        @Override
+        public void remove() {
+            if (mLast == null) {
+                throw new IllegalStateException();
+            }
+            mLastPartition.remove(mLastLane, mLast);
+            mLast = null;
+        }
+    }
+
+    /** What a single dispatcher sees: takes start from its home partition. */
+    private class DispatcherView extends AbstractQueue<HanntoRequest>
+            implements BlockingQueue<HanntoRequest> {
+        private final int mHome;
+
+        DispatcherView(int home) {
+            mHome = home;
+        }
+
+        @Override
+        public HanntoRequest take() throws InterruptedException {
+            return HanntoWorkStealingQueue.this.take(mHome);
+        }
+
+        @Override
+        public HanntoRequest poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return HanntoWorkStealingQueue.this.poll(mHome, unit.toNanos(timeout));
+        }
+
+        @Override
+        public HanntoRequest poll() {
+            return HanntoWorkStealingQueue.this.poll(mHome);
+        }
+
+        @Override
+        public boolean offer(HanntoRequest request) {
+            return HanntoWorkStealingQueue.this.offer(request);
+        }
+
+        @Override
+        public void put(HanntoRequest request) {
+            HanntoWorkStealingQueue.this.offer(request);
+        }
+
+        @Override
+        public boolean offer(HanntoRequest request, long timeout, TimeUnit unit) {
+            return HanntoWorkStealingQueue.this.offer(request);
+        }
+
+        @Override
+        public HanntoRequest peek() {
+            return HanntoWorkStealingQueue.this.peek();
+        }
+
+        @Override
+        public int size() {
+            return HanntoWorkStealingQueue.this.size();
+        }
+
+        @Override
+        public Iterator<HanntoRequest> iterator() {
+            return HanntoWorkStealingQueue.this.iterator();
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return HanntoWorkStealingQueue.this.remove(o);
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public int drainTo(Collection<? super HanntoRequest> c) {
+            return HanntoWorkStealingQueue.this.drainTo(c);
+        }
+
+        @Override
+        public int drainTo(Collection<? super HanntoRequest> c, int maxElements) {
+            return HanntoWorkStealingQueue.this.drainTo(c, maxElements);
+        }
+    }
+}
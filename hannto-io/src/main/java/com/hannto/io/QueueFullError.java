@@ -0,0 +1,12 @@
+package com.hannto.io;
+
+/**
+ * Indicates that a {@link HanntoRequestQueue} had no room for a request under its {@link
+ * HanntoAdmissionPolicy}: either the request was refused when added, or it was evicted from the
+ * queue to make room for a newer one.
+ */
+public class QueueFullError extends HanntoError {
+    public QueueFullError(String exceptionMessage) {
+        super(exceptionMessage);
+    }
+}
@@ -0,0 +1,26 @@
+package com.hannto.io.toolbox;
+
+import com.hannto.io.HanntoRequest;
+
+import java.io.IOException;
+
+/** A {@link HanntoStack} that can execute requests without blocking the calling thread. */
+public interface HanntoAsyncStack extends HanntoStack {
+
+    /** Receives the outcome of one attempt. Exactly one method is called, once. */
+    interface Callback {
+        void onResponse(RawResponse response);
+
+        /**
+         * Called when the attempt failed. A {@link java.net.SocketTimeoutException} marks a timeout
+         * that the retry policy may retry.
+         */
+        void onFailure(IOException e);
+    }
+
+    /**
+     * Starts a single attempt of the request. Implementations enforce the request's current
+     * timeout themselves and report it as a {@link java.net.SocketTimeoutException}.
+     */
+    void executeRequestAsync(HanntoRequest<?> request, Callback callback);
+}
@@ -1,26 +1,33 @@
 package com.hannto.io.toolbox;
 
-import android.support.annotation.GuardedBy;
-import android.support.annotation.Nullable;
-
 import com.hannto.io.HanntoNetworkResponse;
 import com.hannto.io.HanntoRequest;
+import com.hannto.io.HanntoRequestBody;
 import com.hannto.io.HanntoResponse;
 
+/**
+ * A request that delivers the response body as an array. A body read into a pooled buffer is
+ * copied out, since the array outlives the buffer; {@link HanntoBufferRequest} delivers a view of
+ * it instead.
+ */
 public class HanntoBaseRequest extends HanntoRequest<byte[]> {
 
     /** Lock to guard mListener as it is cleared on cancel() and read on delivery. */
     private final Object mLock = new Object();
 
-    @Nullable
-    @GuardedBy("mLock")
+    // Guarded by mLock.
     private HanntoResponse.Listener<byte[]> mListener;
 
-    public HanntoBaseRequest(byte[] data, HanntoResponse.Listener<byte[]> listener, @Nullable HanntoResponse.ErrorListener errorListener) {
+    public HanntoBaseRequest(byte[] data, HanntoResponse.Listener<byte[]> listener, HanntoResponse.ErrorListener errorListener) {
         super(data, errorListener);
         mListener = listener;
     }
 
+    public HanntoBaseRequest(HanntoRequestBody body, HanntoResponse.Listener<byte[]> listener, HanntoResponse.ErrorListener errorListener) {
+        super(body, errorListener);
+        mListener = listener;
+    }
+
     @Override
     public void cancel() {
         super.cancel();
@@ -42,7 +49,7 @@ public class HanntoBaseRequest extends HanntoRequest<byte[]> {
 
     @Override
     protected HanntoResponse parseNetworkResponse(HanntoNetworkResponse response) {
-        return HanntoResponse.success(response.data);
+        return HanntoResponse.success(response.getData(), parseCacheEntry(response));
     }
 
 }
@@ -1,26 +1,31 @@
 package com.hannto.io.toolbox;
 
-import android.os.SystemClock;
-
-import com.android.volley.toolbox.ByteArrayPool;
+import com.hannto.io.CanceledError;
+import com.hannto.io.HanntoAsyncNetwork;
 import com.hannto.io.HanntoError;
 import com.hannto.io.HanntoNetwork;
 import com.hannto.io.HanntoNetworkResponse;
+import com.hannto.io.HanntoPlatform;
 import com.hannto.io.HanntoRequest;
 import com.hannto.io.HanntoRetryPolicy;
+import com.hannto.io.HanntoSpool;
 import com.hannto.io.TimeoutError;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 
-public class HanntoBasicNetwork implements HanntoNetwork {
+public class HanntoBasicNetwork implements HanntoAsyncNetwork {
 
 //    protected static final boolean DEBUG = VolleyLog.DEBUG;
 
-    private static final int SLOW_REQUEST_THRESHOLD_MS = 3000;
+    private static final int DEFAULT_POOL_SIZE = 64 * 1024;
 
-    private static final int DEFAULT_POOL_SIZE = 4096;
+    /** Initial buffer size for a streamed body of unknown length. */
+    private static final int UNKNOWN_LENGTH_BUFFER_SIZE = 1024;
 
     /**
 //     * @deprecated Should never have been exposed in the API. This field may be removed in a future
@@ -30,7 +35,7 @@ public class HanntoBasicNetwork implements HanntoNetwork {
 
     private final HanntoStack mBaseHttpStack;
 
-    protected final ByteArrayPool mPool;
+    protected final HanntoByteArrayPool mPool;
 
 //    /**
 //     * @param httpStack HTTP stack to be used
@@ -41,17 +46,17 @@ public class HanntoBasicNetwork implements HanntoNetwork {
 //    public BasicNetwork(HttpStack httpStack) {
 //        // If a pool isn't passed in, then build a small default pool that will give us a lot of
 //        // benefit and not use too much memory.
-//        this(httpStack, new ByteArrayPool(DEFAULT_POOL_SIZE));
+//        this(httpStack, new HanntoByteArrayPool(DEFAULT_POOL_SIZE));
 //    }
 
 //    /**
 //     * @param httpStack HTTP stack to be used
 //     * @param pool a buffer pool that improves GC performance in copy operations
-//     * @deprecated use {@link #BasicNetwork(BaseHttpStack, ByteArrayPool)} instead to avoid
+//     * @deprecated use {@link #BasicNetwork(BaseHttpStack, HanntoByteArrayPool)} instead to avoid
 //     *     depending on Apache HTTP. This method may be removed in a future release of Volley.
 //     */
 //    @Deprecated
-//    public BasicNetwork(HttpStack httpStack, ByteArrayPool pool) {
+//    public BasicNetwork(HttpStack httpStack, HanntoByteArrayPool pool) {
 //        mHttpStack = httpStack;
 //        mBaseHttpStack = new AdaptedHttpStack(httpStack);
 //        mPool = pool;
@@ -61,14 +66,14 @@ public class HanntoBasicNetwork implements HanntoNetwork {
     public HanntoBasicNetwork(HanntoStack httpStack) {
         // If a pool isn't passed in, then build a small default pool that will give us a lot of
         // benefit and not use too much memory.
-        this(httpStack, new ByteArrayPool(DEFAULT_POOL_SIZE));
+        this(httpStack, new HanntoByteArrayPool(DEFAULT_POOL_SIZE));
     }
 
     /**
      * @param httpStack HTTP stack to be used
      * @param pool a buffer pool that improves GC performance in copy operations
      */
-    public HanntoBasicNetwork(HanntoStack httpStack, ByteArrayPool pool) {
+    public HanntoBasicNetwork(HanntoStack httpStack, HanntoByteArrayPool pool) {
         mBaseHttpStack = httpStack;
         // Populate mHttpStack for backwards compatibility, since it is a protected field. However,
         // we won't use it directly here, so clients which don't access it directly won't need to
@@ -79,8 +84,9 @@ public class HanntoBasicNetwork implements HanntoNetwork {
 
     @Override
     public HanntoNetworkResponse performRequest(HanntoRequest<?> request) throws HanntoError {
-        long requestStart = SystemClock.elapsedRealtime();
+        long requestStart = HanntoPlatform.elapsedRealtime();
         while (true) {
+            throwIfCanceled(request);
             RawResponse rawResponse = null;
             byte[] responseContents = null;
 //            List<Header> responseHeaders = Collections.emptyList();
@@ -100,7 +106,7 @@ public class HanntoBasicNetwork implements HanntoNetwork {
 //                                HttpURLConnection.HTTP_NOT_MODIFIED,
 //                                /* data= */ null,
 //                                /* notModified= */ true,
-//                                SystemClock.elapsedRealtime() - requestStart,
+//                                HanntoPlatform.elapsedRealtime() - requestStart,
 //                                responseHeaders);
 //                    }
 //                    // Combine cached and response headers so the response will be complete.
@@ -109,7 +115,7 @@ public class HanntoBasicNetwork implements HanntoNetwork {
 //                            HttpURLConnection.HTTP_NOT_MODIFIED,
 //                            entry.data,
 //                            /* notModified= */ true,
-//                            SystemClock.elapsedRealtime() - requestStart,
+//                            HanntoPlatform.elapsedRealtime() - requestStart,
 //                            combinedHeaders);
 //                }
 
@@ -124,22 +130,10 @@ public class HanntoBasicNetwork implements HanntoNetwork {
 //                    responseContents = new byte[0];
 //                }
 
-                responseContents = rawResponse.getmData();
-
-                // if the request is slow, log it.
-                long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
-//                logSlowRequests(requestLifetime, request, responseContents, statusCode);
-
 //                if (statusCode < 200 || statusCode > 299) {
 //                    throw new IOException();
 //                }
-                return new HanntoNetworkResponse(
-//                        statusCode,
-                        responseContents,
-//                        /* notModified= */ false,
-                        SystemClock.elapsedRealtime() - requestStart
-//                        responseHeaders
-                );
+                return readResponse(request, rawResponse, mPool, requestStart);
             } catch (SocketTimeoutException e) {
                 attemptRetryOnException("socket", request, new TimeoutError());
             }
@@ -161,7 +155,7 @@ public class HanntoBasicNetwork implements HanntoNetwork {
 //                                    statusCode,
                                     responseContents,
 //                                    /* notModified= */ false,
-                                    SystemClock.elapsedRealtime() - requestStart
+                                    HanntoPlatform.elapsedRealtime() - requestStart
 //                                    responseHeaders
                             );
 
@@ -195,40 +189,291 @@ public class HanntoBasicNetwork implements HanntoNetwork {
         }
     }
 
-//    /** Logs requests that took over SLOW_REQUEST_THRESHOLD_MS to complete. */
-//    private void logSlowRequests(
-//            long requestLifetime, Request<?> request, byte[] responseContents, int statusCode) {
-//        if (DEBUG || requestLifetime > SLOW_REQUEST_THRESHOLD_MS) {
-//            VolleyLog.d(
-//                    "HTTP response for request=<%s> [lifetime=%d], [size=%s], "
-//                            + "[rc=%d], [retryCount=%s]",
-//                    request,
-//                    requestLifetime,
-//                    responseContents != null ? responseContents.length : "null",
-//                    statusCode,
-//                    request.getRetryPolicy().getCurrentRetryCount());
-//        }
-//    }
+    /**
+     * Performs the request without blocking if the stack is a {@link HanntoAsyncStack}. Other
+     * stacks are called synchronously on the calling thread.
+     */
+    @Override
+    public void performRequestAsync(
+            HanntoRequest<?> request, HanntoAsyncNetwork.Callback callback) {
+        if (!(mBaseHttpStack instanceof HanntoAsyncStack)) {
+            HanntoNetworkResponse response;
+            try {
+                response = performRequest(request);
+            } catch (HanntoError e) {
+                callback.onError(e);
+                return;
+            }
+            callback.onSuccess(response);
+            return;
+        }
+        new AsyncAttempt((HanntoAsyncStack) mBaseHttpStack, request, mPool, callback).execute();
+    }
+
+    /**
+     * The retry loop of {@link #performRequest} as a chain of continuations: each failed attempt
+     * consults the retry policy and, if allowed, starts the next one.
+     */
+    private static class AsyncAttempt implements HanntoAsyncStack.Callback {
+        private final HanntoAsyncStack mStack;
+        private final HanntoRequest<?> mRequest;
+        private final HanntoByteArrayPool mPool;
+        private final HanntoAsyncNetwork.Callback mCallback;
+        private final long mRequestStart = HanntoPlatform.elapsedRealtime();
+
+        AsyncAttempt(
+                HanntoAsyncStack stack,
+                HanntoRequest<?> request,
+                HanntoByteArrayPool pool,
+                HanntoAsyncNetwork.Callback callback) {
+            mStack = stack;
+            mRequest = request;
+            mPool = pool;
+            mCallback = callback;
+        }
+
+        void execute() {
+            try {
+                throwIfCanceled(mRequest);
+            } catch (CanceledError error) {
+                mCallback.onError(error);
+                return;
+            }
+            mStack.executeRequestAsync(mRequest, this);
+        }
+
+        @Override
+        public void onResponse(RawResponse rawResponse) {
+            HanntoNetworkResponse response;
+            try {
+                response = readResponse(mRequest, rawResponse, mPool, mRequestStart);
+            } catch (IOException e) {
+                onFailure(e);
+                return;
+            }
+            mCallback.onSuccess(response);
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+            try {
+                if (e instanceof SocketTimeoutException) {
+                    attemptRetryOnException("socket", mRequest, new TimeoutError());
+                } else {
+                    attemptRetryOnException("IOException", mRequest, new HanntoError());
+                }
+            } catch (HanntoError error) {
+                mCallback.onError(error);
+                return;
+            }
+            execute();
+        }
+    }
+
+    /**
+     * Turns the stack's response into the request's network response: written to the request's
+     * spool if the body is over its threshold, otherwise kept in memory or passed through.
+     */
+    private static HanntoNetworkResponse readResponse(
+            HanntoRequest<?> request,
+            RawResponse rawResponse,
+            HanntoByteArrayPool pool,
+            long requestStart)
+            throws IOException {
+        HanntoSpool spool = request.isStreaming() ? null : request.getSpool();
+        if (spool != null) {
+            HanntoNetworkResponse response = spoolIfLarge(spool, rawResponse, pool, requestStart);
+            if (response != null) {
+                return response;
+            }
+        }
+        return toNetworkResponse(
+                bufferBody(request, rawResponse, pool),
+                HanntoPlatform.elapsedRealtime() - requestStart);
+    }
+
+    /**
+     * Writes the body to the spool if it is over the spool's threshold. A body of unknown length
+     * is read up to the threshold first, and kept in memory if it ends there.
+     *
+     * @return The network response, or null if the body is known to be small enough to keep
+     */
+    private static HanntoNetworkResponse spoolIfLarge(
+            HanntoSpool spool, RawResponse rawResponse, HanntoByteArrayPool pool, long requestStart)
+            throws IOException {
+        int threshold = spool.getThresholdBytes();
+        long length = rawResponse.getContentLength();
+        InputStream in = rawResponse.getContent();
+        if (in == null) {
+            if (length <= threshold) {
+                return null;
+            }
+            try {
+                spool.write(rawResponse.getBody(), null);
+            } finally {
+                rawResponse.release();
+            }
+            return new HanntoNetworkResponse(
+                    spool, length, HanntoPlatform.elapsedRealtime() - requestStart);
+        }
+        if (length >= 0 && length <= threshold) {
+            return null;
+        }
+        HanntoByteArrayPool.Lease lease = null;
+        boolean handedOff = false;
+        try {
+            ByteBuffer head = ByteBuffer.allocate(0);
+            if (length < 0) {
+                // Reads one byte past the threshold to learn which side of it the body is on.
+                lease = pool.lease(threshold + 1);
+                byte[] buffer = lease.buffer();
+                int count = 0;
+                while (count <= threshold) {
+                    int read = in.read(buffer, count, threshold + 1 - count);
+                    if (read == -1) {
+                        break;
+                    }
+                    count += read;
+                }
+                head = ByteBuffer.wrap(buffer, 0, count);
+                if (count <= threshold) {
+                    handedOff = true;
+                    return toNetworkResponse(
+                            new RawResponse(head, lease),
+                            HanntoPlatform.elapsedRealtime() - requestStart);
+                }
+            }
+            long written = spool.write(head, in);
+            if (length >= 0 && written != length) {
+                throw new EOFException("Body ended after " + written + " of " + length + " bytes");
+            }
+            return new HanntoNetworkResponse(
+                    spool, written, HanntoPlatform.elapsedRealtime() - requestStart);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // The body has been read as far as it will be.
+            }
+            if (lease != null && !handedOff) {
+                lease.release();
+            }
+        }
+    }
+
+    /**
+     * Wraps the stack's response without copying it: streamed bodies are handed to the request
+     * while they are still arriving, and buffered bodies keep their buffer.
+     */
+    private static HanntoNetworkResponse toNetworkResponse(
+            final RawResponse rawResponse, long networkTimeMs) {
+        if (rawResponse.getContent() != null) {
+            return new HanntoNetworkResponse(
+                    rawResponse.getContent(), rawResponse.getContentLength(), networkTimeMs);
+        }
+        ByteBuffer body = rawResponse.getBody();
+        if (rawResponse.isPooled()) {
+            return new HanntoNetworkResponse(
+                    body,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            rawResponse.release();
+                        }
+                    },
+                    networkTimeMs);
+        }
+        if (body == null) {
+            return new HanntoNetworkResponse((byte[]) null, networkTimeMs);
+        }
+        return new HanntoNetworkResponse(body, networkTimeMs);
+    }
+
+    /**
+     * Reads a streamed body into a pooled buffer if the request is not streaming, since such a
+     * request parses a whole body. Other responses are returned as they are.
+     */
+    private static RawResponse bufferBody(
+            HanntoRequest<?> request, RawResponse rawResponse, HanntoByteArrayPool pool)
+            throws IOException {
+        InputStream in = rawResponse.getContent();
+        if (in == null || request.isStreaming()) {
+            return rawResponse;
+        }
+        long contentLength = rawResponse.getContentLength();
+        HanntoByteArrayPool.Lease lease =
+                pool.lease(
+                        contentLength >= 0
+                                ? (int) Math.min(contentLength, Integer.MAX_VALUE)
+                                : UNKNOWN_LENGTH_BUFFER_SIZE);
+        boolean handedOff = false;
+        try {
+            int count = 0;
+            while (true) {
+                byte[] buffer = lease.buffer();
+                if (count == buffer.length) {
+                    // Probe for the end before growing, since the length is usually exact.
+                    int next = in.read();
+                    if (next == -1) {
+                        break;
+                    }
+                    HanntoByteArrayPool.Lease larger = pool.lease(count * 2);
+                    System.arraycopy(buffer, 0, larger.buffer(), 0, count);
+                    lease.release();
+                    lease = larger;
+                    lease.buffer()[count++] = (byte) next;
+                    continue;
+                }
+                int read = in.read(buffer, count, buffer.length - count);
+                if (read == -1) {
+                    break;
+                }
+                count += read;
+            }
+            handedOff = true;
+            return new RawResponse(ByteBuffer.wrap(lease.buffer(), 0, count), lease);
+        } finally {
+            try {
+                // Close the InputStream and release the resources by "consuming the content".
+                in.close();
+            } catch (IOException e) {
+                // This can happen if there was an exception above that left the stream in
+                // an invalid state.
+            }
+            if (!handedOff) {
+                lease.release();
+            }
+        }
+    }
+
+    /** Abandons a request canceled before or during an attempt, instead of retrying it. */
+    private static void throwIfCanceled(HanntoRequest<?> request) throws CanceledError {
+        if (request.isCanceled()) {
+            request.addMarker("network-cancel-giveup");
+            throw new CanceledError();
+        }
+    }
 
     /**
      * Attempts to prepare the request for a retry. If there are no more attempts remaining in the
-     * request's retry policy, a timeout exception is thrown.
+     * request's retry policy, or the request has been canceled, an exception is thrown.
      *
      * @param request The request to use.
      */
     private static void attemptRetryOnException(
             String logPrefix, HanntoRequest<?> request, HanntoError exception) throws HanntoError {
+        // A failure caused by cancel() aborting the I/O is not worth retrying.
+        throwIfCanceled(request);
         HanntoRetryPolicy retryPolicy = request.getRetryPolicy();
         int oldTimeout = request.getTimeoutMs();
 
         try {
             retryPolicy.retry(exception);
         } catch (HanntoError e) {
-//            request.addMarker(
-//                    String.format("%s-timeout-giveup [timeout=%s]", logPrefix, oldTimeout));
+            request.addMarker(logPrefix + "-timeout-giveup [timeout=" + oldTimeout + "]");
             throw e;
         }
-//        request.addMarker(String.format("%s-retry [timeout=%s]", logPrefix, oldTimeout));
+        request.addMarker(logPrefix + "-retry [timeout=" + oldTimeout + "]");
     }
 
 //    private Map<String, String> getCacheHeaders(Cache.Entry entry) {
@@ -252,7 +497,7 @@ public class HanntoBasicNetwork implements HanntoNetwork {
 //    }
 
 //    protected void logError(String what, String url, long start) {
-//        long now = SystemClock.elapsedRealtime();
+//        long now = HanntoPlatform.elapsedRealtime();
 //        VolleyLog.v("HTTP ERROR(%s) %d ms to fetch %s", what, (now - start), url);
 //    }
 
@@ -0,0 +1,66 @@
+package com.hannto.io.toolbox;
+
+/**
+ * Limits for the batches sent by a {@link HanntoBatchingNetwork}.
+ *
+ * <p>A batch is sent as soon as it holds {@link #getMaxCount()} requests or {@link
+ * #getMaxBytes()} bytes of request data, or once {@link #getLingerMs()} has passed since its first
+ * request arrived, whichever comes first.
+ */
+public class HanntoBatchPolicy {
+    /** The maximum number of requests in one batch. */
+    private final int mMaxCount;
+
+    /** The maximum request data in one batch, in bytes. */
+    private final int mMaxBytes;
+
+    /** How long a batch waits for more requests after its first one. */
+    private final long mLingerMs;
+
+    /** The default maximum number of requests in a batch */
+    public static final int DEFAULT_MAX_COUNT = 32;
+
+    /** The default maximum request data in a batch, in bytes */
+    public static final int DEFAULT_MAX_BYTES = 4096;
+
+    /** The default linger time in milliseconds */
+    public static final long DEFAULT_LINGER_MS = 2;
+
+    /** Constructs a policy using the default limits. */
+    public HanntoBatchPolicy() {
+        this(DEFAULT_MAX_COUNT, DEFAULT_MAX_BYTES, DEFAULT_LINGER_MS);
+    }
+
+    /**
+     * Constructs a new batch policy.
+     *
+     * @param maxCount The maximum number of requests in one batch.
+     * @param maxBytes The maximum request data in one batch. A larger request is sent alone.
+     * @param lingerMs How long to wait for more requests after the first; 0 sends whatever is
+     *     queued at that moment.
+     */
+    public HanntoBatchPolicy(int maxCount, int maxBytes, long lingerMs) {
+        if (maxCount < 1 || maxBytes < 1 || lingerMs < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid batch limits " + maxCount + "/" + maxBytes + "/" + lingerMs);
+        }
+        mMaxCount = maxCount;
+        mMaxBytes = maxBytes;
+        mLingerMs = lingerMs;
+    }
+
+    /** Returns the maximum number of requests in one batch. */
+    public int getMaxCount() {
+        return mMaxCount;
+    }
+
+    /** Returns the maximum request data in one batch, in bytes. */
+    public int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /** Returns how long a batch waits for more requests after its first one. */
+    public long getLingerMs() {
+        return mLingerMs;
+    }
+}
@@ -0,0 +1,420 @@
+package com.hannto.io.toolbox;
+
+import com.hannto.io.CanceledError;
+import com.hannto.io.HanntoAsyncNetwork;
+import com.hannto.io.HanntoDefaultRetryPolicy;
+import com.hannto.io.HanntoError;
+import com.hannto.io.HanntoNetworkResponse;
+import com.hannto.io.HanntoPlatform;
+import com.hannto.io.HanntoRequest;
+import com.hannto.io.HanntoRequestBody;
+import com.hannto.io.TimeoutError;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A network that packs requests into batches and sends each batch to the stack as one transfer,
+ * for links where the cost of a transfer outweighs the cost of its bytes.
+ *
+ * <p>A batch is framed as a 4-byte big-endian request count followed by each request's data as a
+ * 4-byte length and the bytes. The reply must hold one result per request, in the same order: a
+ * 4-byte count followed by, for each, a status byte ({@link #STATUS_OK} or any other value for a
+ * failure), a 4-byte length and the response bytes.
+ *
+ * <p>Each request keeps its own outcome. A failed result, or a failed transfer, is retried
+ * according to that request's retry policy, in a later batch. Works with blocking dispatchers, but
+ * batches only fill up when many requests are in flight at once, such as with the asynchronous
+ * dispatchers of {@link com.hannto.io.HanntoRequestQueue}. A {@link
+ * HanntoRequest#hasStreamedBody() streamed body} is copied into its batch in memory, so large
+ * payloads are better sent through a network that does not batch.
+ *
+ * <p>A request canceled while it waits is left out of its batch, and one canceled while its batch
+ * is in flight gets a {@link CanceledError} at once rather than waiting for the reply. Either way
+ * its callback runs on the thread that canceled it.
+ */
+public class HanntoBatchingNetwork implements HanntoAsyncNetwork, Closeable {
+
+    /** Status byte of a successful result in a batch reply. */
+    public static final int STATUS_OK = 0;
+
+    /** Bytes added to the frame for each request. */
+    private static final int FRAME_OVERHEAD_BYTES = 4;
+
+    private final HanntoStack mStack;
+
+    private final HanntoBatchPolicy mPolicy;
+
+    /** Requests waiting to be batched, including retries. */
+    private final BlockingQueue<Pending> mPending = new LinkedBlockingQueue<>();
+
+    /** The thread that assembles and sends batches, started with the first request. */
+    // Guarded by this.
+    private Thread mBatcher;
+
+    /** Set once {@link #close()} is called. */
+    private volatile boolean mClosed = false;
+
+    /**
+     * @param stack Stack that sends a framed batch and returns the framed reply. A {@link
+     *     HanntoAsyncStack} lets several batches be in flight at once.
+     * @param policy Limits for each batch
+     */
+    public HanntoBatchingNetwork(HanntoStack stack, HanntoBatchPolicy policy) {
+        mStack = stack;
+        mPolicy = policy;
+    }
+
+    /** @param stack Stack that sends a framed batch and returns the framed reply */
+    public HanntoBatchingNetwork(HanntoStack stack) {
+        this(stack, new HanntoBatchPolicy());
+    }
+
+    /** Queues the request for the next batch and blocks until its own result arrives. */
+    @Override
+    public HanntoNetworkResponse performRequest(HanntoRequest<?> request) throws HanntoError {
+        final CountDownLatch done = new CountDownLatch(1);
+        final HanntoNetworkResponse[] response = new HanntoNetworkResponse[1];
+        final HanntoError[] error = new HanntoError[1];
+        performRequestAsync(
+                request,
+                new Callback() {
+                    @Override
+                    public void onSuccess(HanntoNetworkResponse networkResponse) {
+                        response[0] = networkResponse;
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onError(HanntoError hanntoError) {
+                        error[0] = hanntoError;
+                        done.countDown();
+                    }
+                });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HanntoError(e);
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return response[0];
+    }
+
+    @Override
+    public void performRequestAsync(HanntoRequest<?> request, Callback callback) {
+        final Pending pending = new Pending(request, callback);
+        HanntoRequest.AbortHandle abort =
+                new HanntoRequest.AbortHandle() {
+                    @Override
+                    public void abort() {
+                        mPending.remove(pending);
+                        pending.fail(new CanceledError());
+                    }
+                };
+        if (!request.setAbortHandle(abort)) {
+            pending.fail(new CanceledError());
+            return;
+        }
+        startBatcherIfNeeded();
+        enqueue(pending);
+    }
+
+    /**
+     * Stops the batcher thread and fails every request still waiting for a batch. Interrupting the
+     * batcher may also fail a batch it is sending through a blocking stack. Requests made
+     * afterwards fail at once.
+     */
+    @Override
+    public void close() {
+        Thread batcher;
+        synchronized (this) {
+            mClosed = true;
+            batcher = mBatcher;
+        }
+        if (batcher != null) {
+            batcher.interrupt();
+        }
+        failPending();
+    }
+
+    /** Queues a request for a batch, or fails it if this network is closed. */
+    private void enqueue(Pending pending) {
+        mPending.add(pending);
+        // close() may have drained the queue before the request was added.
+        if (mClosed) {
+            failPending();
+        }
+    }
+
+    private void failPending() {
+        Pending pending;
+        while ((pending = mPending.poll()) != null) {
+            pending.fail(new HanntoError("Batching network closed"));
+        }
+    }
+
+    private synchronized void startBatcherIfNeeded() {
+        if (mBatcher != null || mClosed) {
+            return;
+        }
+        mBatcher =
+                new Thread("HanntoBatcher") {
+                    @Override
+                    public void run() {
+                        HanntoPlatform.threadPriority().setBackgroundPriority();
+                        try {
+                            runBatcher();
+                        } catch (InterruptedException e) {
+                            // Closed.
+                        } finally {
+                            failPending();
+                        }
+                    }
+                };
+        mBatcher.setDaemon(true);
+        mBatcher.start();
+    }
+
+    private void runBatcher() throws InterruptedException {
+        long lingerNanos = TimeUnit.MILLISECONDS.toNanos(mPolicy.getLingerMs());
+        Pending carried = null;
+        while (!mClosed) {
+            Pending first = carried != null ? carried : mPending.take();
+            carried = null;
+            if (first.dropIfCanceled()) {
+                continue;
+            }
+            List<Pending> batch = new ArrayList<>();
+            batch.add(first);
+            long bytes = first.frameBytes();
+            long deadline = System.nanoTime() + lingerNanos;
+            while (batch.size() < mPolicy.getMaxCount() && bytes < mPolicy.getMaxBytes()) {
+                long remaining = deadline - System.nanoTime();
+                Pending next;
+                try {
+                    next =
+                            remaining > 0
+                                    ? mPending.poll(remaining, TimeUnit.NANOSECONDS)
+                                    : mPending.poll();
+                } catch (InterruptedException e) {
+                    // Leave the unsent batch to be failed with the rest.
+                    mPending.addAll(batch);
+                    throw e;
+                }
+                if (next == null) {
+                    break;
+                }
+                if (next.dropIfCanceled()) {
+                    continue;
+                }
+                if (bytes + next.frameBytes() > mPolicy.getMaxBytes()) {
+                    // Starts the next batch instead.
+                    carried = next;
+                    break;
+                }
+                batch.add(next);
+                bytes += next.frameBytes();
+            }
+            send(batch);
+        }
+    }
+
+    /** Sends one batch. Blocks the batcher only if the stack is not asynchronous. */
+    private void send(final List<Pending> batch) {
+        HanntoRequest<?> transfer;
+        try {
+            transfer = newTransfer(batch);
+        } catch (IOException e) {
+            complete(batch, null, e);
+            return;
+        }
+        ByteBuffer reply;
+        try {
+            if (mStack instanceof HanntoAsyncStack) {
+                ((HanntoAsyncStack) mStack)
+                        .executeRequestAsync(
+                                transfer,
+                                new HanntoAsyncStack.Callback() {
+                                    @Override
+                                    public void onResponse(RawResponse response) {
+                                        complete(batch, replyOf(response), null);
+                                    }
+
+                                    @Override
+                                    public void onFailure(IOException e) {
+                                        complete(batch, null, e);
+                                    }
+                                });
+                return;
+            }
+            reply = replyOf(mStack.executeRequest(transfer));
+        } catch (IOException e) {
+            complete(batch, null, e);
+            return;
+        } catch (RuntimeException e) {
+            for (Pending pending : batch) {
+                pending.fail(new HanntoError(e));
+            }
+            return;
+        }
+        complete(batch, reply, null);
+    }
+
+    /**
+     * Builds the request that carries a batch to the stack. Its timeout is the longest current
+     * timeout of the requests it carries.
+     */
+    private static HanntoRequest<?> newTransfer(List<Pending> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(batch.size());
+        int timeoutMs = 0;
+        for (Pending pending : batch) {
+            HanntoRequestBody body = pending.mRequest.getBody();
+            if (body.contentLength() > Integer.MAX_VALUE) {
+                throw new IOException("Request body too large for a frame");
+            }
+            out.writeInt((int) body.contentLength());
+            body.writeTo(out);
+            timeoutMs = Math.max(timeoutMs, pending.mRequest.getTimeoutMs());
+        }
+        HanntoRequest<?> transfer = new HanntoBaseRequest(bytes.toByteArray(), null, null);
+        transfer.setRetryPolicy(new HanntoDefaultRetryPolicy(timeoutMs, 0, 0f));
+        return transfer;
+    }
+
+    /**
+     * Returns the body of a batch reply. A pooled body is copied once and released, since the
+     * results outlive the batch.
+     */
+    private static ByteBuffer replyOf(RawResponse response) {
+        if (!response.isPooled()) {
+            return response.getBody();
+        }
+        try {
+            byte[] data = response.getmData();
+            return data != null ? ByteBuffer.wrap(data) : null;
+        } finally {
+            response.release();
+        }
+    }
+
+    /**
+     * Hands each request its result, or queues it again if its retry policy allows. Results are
+     * views of the reply, not copies.
+     */
+    private void complete(List<Pending> batch, ByteBuffer reply, IOException failure) {
+        ByteBuffer replies = null;
+        if (failure == null) {
+            replies = reply != null ? reply : ByteBuffer.allocate(0);
+            try {
+                if (replies.getInt() != batch.size()) {
+                    failure = new IOException("Batch reply does not match its request count");
+                }
+            } catch (BufferUnderflowException e) {
+                failure = new IOException("Truncated batch reply");
+            }
+        }
+        for (Pending pending : batch) {
+            if (failure != null) {
+                retryOrFail(
+                        pending,
+                        failure instanceof SocketTimeoutException
+                                ? new TimeoutError()
+                                : new HanntoError(failure));
+                continue;
+            }
+            try {
+                int status = replies.get();
+                int length = replies.getInt();
+                ByteBuffer data = replies.slice();
+                data.limit(length);
+                replies.position(replies.position() + length);
+                HanntoNetworkResponse response =
+                        new HanntoNetworkResponse(
+                                data, HanntoPlatform.elapsedRealtime() - pending.mStartMs);
+                if (status == STATUS_OK) {
+                    pending.succeed(response);
+                } else {
+                    retryOrFail(pending, new HanntoError(response));
+                }
+            } catch (RuntimeException e) {
+                // A truncated or oversized result leaves the rest of the reply unreadable.
+                failure = new IOException("Malformed batch reply", e);
+                retryOrFail(pending, new HanntoError(failure));
+            }
+        }
+    }
+
+    private void retryOrFail(Pending pending, HanntoError error) {
+        // A canceled request is not worth another batch.
+        if (pending.dropIfCanceled()) {
+            return;
+        }
+        try {
+            pending.mRequest.getRetryPolicy().retry(error);
+        } catch (HanntoError e) {
+            pending.fail(e);
+            return;
+        }
+        enqueue(pending);
+    }
+
+    /**
+     * A request waiting for a batch, with the callback that receives its result. The callback is
+     * called once, by whichever of the reply and a cancel comes first.
+     */
+    private static class Pending {
+        final HanntoRequest<?> mRequest;
+        final Callback mCallback;
+        final long mStartMs = HanntoPlatform.elapsedRealtime();
+        private final AtomicBoolean mCompleted = new AtomicBoolean();
+
+        Pending(HanntoRequest<?> request, Callback callback) {
+            mRequest = request;
+            mCallback = callback;
+        }
+
+        long frameBytes() {
+            return FRAME_OVERHEAD_BYTES + mRequest.getBody().contentLength();
+        }
+
+        void succeed(HanntoNetworkResponse response) {
+            if (mCompleted.compareAndSet(false, true)) {
+                mCallback.onSuccess(response);
+            }
+        }
+
+        void fail(HanntoError error) {
+            if (mCompleted.compareAndSet(false, true)) {
+                mCallback.onError(error);
+            }
+        }
+
+        /**
+         * Returns true if this request needs no batch: it was canceled, and is now failed, or it
+         * has completed already.
+         */
+        boolean dropIfCanceled() {
+            if (mRequest.isCanceled()) {
+                fail(new CanceledError());
+            }
+            return mCompleted.get();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.hannto.io.toolbox;
+
+import com.hannto.io.HanntoNetworkResponse;
+import com.hannto.io.HanntoRequest;
+import com.hannto.io.HanntoRequestBody;
+import com.hannto.io.HanntoResponse;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A request that delivers a read-only view of the response body rather than a copy, for bulk
+ * reads that would otherwise allocate a {@code byte[]} per response.
+ *
+ * <p>A pooled body goes back to its pool once the request finishes, right after delivery, so the
+ * view is only valid until the listener returns. Listeners copy out whatever they keep.
+ */
+public class HanntoBufferRequest extends HanntoRequest<ByteBuffer> {
+
+    /** Lock to guard mListener as it is cleared on cancel() and read on delivery. */
+    private final Object mLock = new Object();
+
+    // Guarded by mLock.
+    private HanntoResponse.Listener<ByteBuffer> mListener;
+
+    public HanntoBufferRequest(
+            byte[] data,
+            HanntoResponse.Listener<ByteBuffer> listener,
+            HanntoResponse.ErrorListener errorListener) {
+        super(data, errorListener);
+        mListener = listener;
+    }
+
+    public HanntoBufferRequest(
+            HanntoRequestBody body,
+            HanntoResponse.Listener<ByteBuffer> listener,
+            HanntoResponse.ErrorListener errorListener) {
+        super(body, errorListener);
+        mListener = listener;
+    }
+
+    @Override
+    public void cancel() {
+        super.cancel();
+        synchronized (mLock) {
+            mListener = null;
+        }
+    }
+
+    @Override
+    protected void deliverResponse(ByteBuffer response) {
+        HanntoResponse.Listener<ByteBuffer> listener;
+        synchronized (mLock) {
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onResponse(response);
+        }
+    }
+
+    @Override
+    protected HanntoResponse<ByteBuffer> parseNetworkResponse(HanntoNetworkResponse response) {
+        ByteBuffer body = response.getBody();
+        if (body == null) {
+            body = ByteBuffer.allocate(0);
+        }
+        return HanntoResponse.success(body, parseCacheEntry(response));
+    }
+}
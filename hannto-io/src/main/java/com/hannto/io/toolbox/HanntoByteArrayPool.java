@@ -0,0 +1,263 @@
+package com.hannto.io.toolbox;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A source of recycled byte[] buffers, used to cut down on heap churn when reading response
+ * bodies.
+ *
+ * <p>Buffers are kept in power-of-two size classes between a minimum and a maximum buffer size,
+ * so a request is served from one class without searching. Requests larger than the maximum are
+ * allocated exactly and never pooled. Once the pool grows beyond its byte limit, buffers are
+ * discarded from the largest classes first.
+ *
+ * <p>Buffers can be taken either with {@link #getBuf(int)} and {@link #returnBuf(byte[])}, or as
+ * a {@link Lease} that must be {@link Lease#release() released}. Leases can be tracked with a
+ * {@link LeakListener}, which is told about any lease that was garbage collected without being
+ * released; this costs a stack trace per lease, so it is meant for debug builds.
+ */
+public class HanntoByteArrayPool {
+
+    /** Default size of the smallest size class. */
+    public static final int DEFAULT_MIN_BUFFER_SIZE = 256;
+
+    /** Default size of the largest size class. */
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 256 * 1024;
+
+    /** Receives leases that were never released. */
+    public interface LeakListener {
+        /**
+         * Called when a lease is found to have been garbage collected without being released.
+         *
+         * @param size Length of the leased buffer
+         * @param leasedAt Stack trace of the call that took the lease
+         */
+        void onLeak(int size, Throwable leasedAt);
+    }
+
+    /** Free buffers by size class. Class i holds buffers of mMinBufferSize << i bytes. */
+    private final List<ArrayDeque<byte[]>> mClasses = new ArrayList<>();
+
+    /** The total size of the buffers in the pool. */
+    private int mCurrentSize = 0;
+
+    /** The maximum aggregate size of the buffers in the pool. */
+    private final int mSizeLimit;
+
+    private final int mMinBufferSize;
+
+    private final int mMaxBufferSize;
+
+    /** Tracks outstanding leases, or null if leak detection is off. */
+    private LeakListener mLeakListener;
+
+    private final Set<LeakTracker> mTrackers = new HashSet<>();
+
+    private final ReferenceQueue<Lease> mCollectedLeases = new ReferenceQueue<>();
+
+    /** @param sizeLimit the maximum size of the pool, in bytes */
+    public HanntoByteArrayPool(int sizeLimit) {
+        this(
+                sizeLimit,
+                DEFAULT_MIN_BUFFER_SIZE,
+                Math.max(DEFAULT_MIN_BUFFER_SIZE, Math.min(sizeLimit, DEFAULT_MAX_BUFFER_SIZE)));
+    }
+
+    /**
+     * @param sizeLimit the maximum size of the pool, in bytes
+     * @param minBufferSize the size of the smallest size class; smaller requests are rounded up
+     * @param maxBufferSize the largest request served from the pool, rounded up to a size class
+     */
+    public HanntoByteArrayPool(int sizeLimit, int minBufferSize, int maxBufferSize) {
+        if (sizeLimit < 0 || minBufferSize < 1 || maxBufferSize < minBufferSize) {
+            throw new IllegalArgumentException("Invalid pool sizes");
+        }
+        mSizeLimit = sizeLimit;
+        mMinBufferSize = minBufferSize;
+        int classSize = minBufferSize;
+        mClasses.add(new ArrayDeque<byte[]>());
+        while (classSize < maxBufferSize) {
+            classSize <<= 1;
+            mClasses.add(new ArrayDeque<byte[]>());
+        }
+        mMaxBufferSize = classSize;
+    }
+
+    /**
+     * Turns leak detection on, or off if the listener is null. Only leases taken while detection
+     * is on are tracked.
+     */
+    public synchronized void setLeakListener(LeakListener listener) {
+        mLeakListener = listener;
+        if (listener == null) {
+            mTrackers.clear();
+        }
+    }
+
+    /**
+     * Returns a buffer from the pool if one is available in the requested size, or allocates a new
+     * one if a pooled one is not available.
+     *
+     * @param len the minimum size, in bytes, of the requested buffer. The returned buffer may be
+     *     larger.
+     * @return a byte[] buffer is always returned.
+     */
+    public synchronized byte[] getBuf(int len) {
+        int index = classFor(len);
+        if (index < 0) {
+            return new byte[len];
+        }
+        byte[] buf = mClasses.get(index).pollLast();
+        if (buf == null) {
+            return new byte[mMinBufferSize << index];
+        }
+        mCurrentSize -= buf.length;
+        return buf;
+    }
+
+    /**
+     * Returns a buffer to the pool, throwing away old buffers if the pool would exceed its allotted
+     * size.
+     *
+     * @param buf the buffer to return to the pool.
+     */
+    public synchronized void returnBuf(byte[] buf) {
+        if (buf == null || buf.length < mMinBufferSize || buf.length > mMaxBufferSize) {
+            return;
+        }
+        // A buffer serves requests up to its length, so it belongs to the class at or below it.
+        int index = 0;
+        while ((mMinBufferSize << (index + 1)) <= buf.length && index + 1 < mClasses.size()) {
+            index++;
+        }
+        mClasses.get(index).addLast(buf);
+        mCurrentSize += buf.length;
+        trim();
+    }
+
+    /**
+     * Leases a buffer of at least the given length. The caller must release the lease once it no
+     * longer uses the buffer, and must not touch the buffer after that.
+     */
+    public Lease lease(int len) {
+        drainLeaks();
+        Lease lease = new Lease(this, getBuf(len));
+        synchronized (this) {
+            if (mLeakListener != null) {
+                lease.mTracker =
+                        new LeakTracker(lease, mCollectedLeases, new Throwable("Leased here"));
+                mTrackers.add(lease.mTracker);
+            }
+        }
+        return lease;
+    }
+
+    /** Returns the total size of the buffers held by the pool. */
+    public synchronized int getPooledBytes() {
+        return mCurrentSize;
+    }
+
+    /** Returns the index of the smallest class that fits len, or -1 if none does. */
+    private int classFor(int len) {
+        if (len > mMaxBufferSize) {
+            return -1;
+        }
+        int index = 0;
+        while ((mMinBufferSize << index) < len) {
+            index++;
+        }
+        return index;
+    }
+
+    /** Removes buffers from the pool, largest first, until it is under its size limit. */
+    private synchronized void trim() {
+        for (int i = mClasses.size() - 1; i >= 0 && mCurrentSize > mSizeLimit; i--) {
+            ArrayDeque<byte[]> sizeClass = mClasses.get(i);
+            while (mCurrentSize > mSizeLimit && !sizeClass.isEmpty()) {
+                mCurrentSize -= sizeClass.pollFirst().length;
+            }
+        }
+    }
+
+    /** Reports leases that were collected without being released. */
+    private void drainLeaks() {
+        LeakTracker tracker;
+        while ((tracker = (LeakTracker) mCollectedLeases.poll()) != null) {
+            LeakListener listener;
+            synchronized (this) {
+                if (!mTrackers.remove(tracker)) {
+                    continue;
+                }
+                listener = mLeakListener;
+            }
+            if (listener != null) {
+                listener.onLeak(tracker.mSize, tracker.mLeasedAt);
+            }
+        }
+    }
+
+    private synchronized void untrack(LeakTracker tracker) {
+        mTrackers.remove(tracker);
+    }
+
+    /** A buffer taken from the pool until it is released. */
+    public static final class Lease {
+        private final HanntoByteArrayPool mPool;
+
+        private byte[] mBuffer;
+
+        private LeakTracker mTracker;
+
+        private Lease(HanntoByteArrayPool pool, byte[] buffer) {
+            mPool = pool;
+            mBuffer = buffer;
+        }
+
+        /**
+         * Returns the leased buffer, which may be longer than requested.
+         *
+         * @throws IllegalStateException if the lease has been released
+         */
+        public synchronized byte[] buffer() {
+            if (mBuffer == null) {
+                throw new IllegalStateException("Lease already released");
+            }
+            return mBuffer;
+        }
+
+        /** Returns the buffer to the pool. Later calls do nothing. */
+        public void release() {
+            byte[] buffer;
+            synchronized (this) {
+                buffer = mBuffer;
+                mBuffer = null;
+            }
+            if (buffer == null) {
+                return;
+            }
+            if (mTracker != null) {
+                mPool.untrack(mTracker);
+                mTracker.clear();
+            }
+            mPool.returnBuf(buffer);
+        }
+    }
+
+    /** Notices when an unreleased lease is collected. */
+    private static class LeakTracker extends WeakReference<Lease> {
+        final int mSize;
+        final Throwable mLeasedAt;
+
+        LeakTracker(Lease lease, ReferenceQueue<Lease> queue, Throwable leasedAt) {
+            super(lease, queue);
+            mSize = lease.mBuffer.length;
+            mLeasedAt = leasedAt;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.hannto.io.toolbox;
+
+import com.hannto.io.HanntoEventLog;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes {@link HanntoEventLog} events in the Chrome trace event format, which chrome://tracing
+ * and Perfetto open as a timeline.
+ *
+ * <p>Each request becomes one row, spanning its first to its last event, split into stages such as
+ * "queue-wait", "network", "parse" and "delivery". Each stage runs from the event that starts it
+ * to the request's next event, and every event is also shown as a mark on the row.
+ */
+public final class HanntoChromeTrace {
+
+    /** Stage names by the event that starts them. Other events start a stage named after them. */
+    private static final Map<String, String> STAGES = new HashMap<>();
+
+    static {
+        STAGES.put("add-to-queue", "queue-wait");
+        STAGES.put("cache-miss", "queue-wait");
+        STAGES.put("cache-hit-expired", "queue-wait");
+        STAGES.put("cache-hit-refresh-needed", "queue-wait");
+        STAGES.put("cache-queue-take", "cache-lookup");
+        STAGES.put("waiting-for-response", "coalesced-wait");
+        STAGES.put("network-queue-take", "network");
+        STAGES.put("network-http-complete", "parse");
+        STAGES.put("post-response", "delivery");
+        STAGES.put("post-error", "delivery");
+    }
+
+    private HanntoChromeTrace() {}
+
+    /** Writes the events recorded so far. */
+    public static void write(Writer out) throws IOException {
+        write(HanntoEventLog.snapshot(), out);
+    }
+
+    /**
+     * Writes the given events.
+     *
+     * @param events Events ordered by time, as returned by {@link HanntoEventLog#snapshot()}
+     * @param out Where to write the trace; not closed
+     */
+    public static void write(List<HanntoEventLog.Event> events, Writer out) throws IOException {
+        long origin = events.isEmpty() ? 0 : events.get(0).timeNanos;
+        Map<Long, String> threads = new LinkedHashMap<>();
+        Map<Long, List<HanntoEventLog.Event>> requests = new LinkedHashMap<>();
+        for (HanntoEventLog.Event event : events) {
+            threads.put(event.threadId, event.threadName);
+            List<HanntoEventLog.Event> requestEvents = requests.get(event.requestId);
+            if (requestEvents == null) {
+                requestEvents = new ArrayList<>();
+                requests.put(event.requestId, requestEvents);
+            }
+            requestEvents.add(event);
+        }
+
+        out.write("{\"traceEvents\":[");
+        boolean first = true;
+        for (Map.Entry<Long, String> thread : threads.entrySet()) {
+            first = separate(out, first);
+            out.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":");
+            out.write(Long.toString(thread.getKey()));
+            out.write(",\"args\":{\"name\":");
+            writeString(out, thread.getValue());
+            out.write("}}");
+        }
+        for (List<HanntoEventLog.Event> requestEvents : requests.values()) {
+            HanntoEventLog.Event start = requestEvents.get(0);
+            HanntoEventLog.Event end = requestEvents.get(requestEvents.size() - 1);
+            first = separate(out, first);
+            writeAsync(out, "request " + start.requestId, "b", start, origin);
+            for (int i = 0; i < requestEvents.size(); i++) {
+                HanntoEventLog.Event event = requestEvents.get(i);
+                out.write(',');
+                writeAsync(out, event.marker, "n", event, origin);
+                if (i + 1 < requestEvents.size()) {
+                    String stage = STAGES.get(event.marker);
+                    if (stage == null) {
+                        stage = event.marker;
+                    }
+                    out.write(',');
+                    writeAsync(out, stage, "b", event, origin);
+                    out.write(',');
+                    writeAsync(out, stage, "e", requestEvents.get(i + 1), origin);
+                }
+            }
+            out.write(',');
+            writeAsync(out, "request " + start.requestId, "e", end, origin);
+        }
+        out.write("]}");
+        out.flush();
+    }
+
+    private static boolean separate(Writer out, boolean first) throws IOException {
+        if (!first) {
+            out.write(',');
+        }
+        return false;
+    }
+
+    /** Writes an async event on the request's row, with a timestamp in microseconds. */
+    private static void writeAsync(
+            Writer out, String name, String phase, HanntoEventLog.Event event, long origin)
+            throws IOException {
+        long nanos = event.timeNanos - origin;
+        out.write("{\"name\":");
+        writeString(out, name);
+        out.write(",\"cat\":\"request\",\"ph\":\"");
+        out.write(phase);
+        out.write("\",\"id\":");
+        out.write(Long.toString(event.requestId));
+        out.write(",\"pid\":1,\"tid\":");
+        out.write(Long.toString(event.threadId));
+        out.write(",\"ts\":");
+        out.write(Long.toString(nanos / 1000));
+        out.write('.');
+        String fraction = Long.toString(nanos % 1000);
+        for (int i = fraction.length(); i < 3; i++) {
+            out.write('0');
+        }
+        out.write(fraction);
+        out.write('}');
+    }
+
+    private static void writeString(Writer out, String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+}
@@ -0,0 +1,842 @@
+package com.hannto.io.toolbox;
+
+import com.hannto.io.HanntoCache;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Cache implementation that persists entries to a directory on disk, so they survive restarts.
+ * The default disk usage size is 5MB, but is configurable.
+ *
+ * <p>Entries are appended to a single data file; removals and invalidations are appended as
+ * small records too. A compact index of the live entries is checkpointed next to it and read back
+ * (memory-mapped where the platform allows) at startup, after which only the records appended
+ * since the checkpoint are replayed. Once more than half of the data file is dead records, it is
+ * rewritten on a background thread.
+ */
+public class HanntoDiskBasedCache implements HanntoCache {
+
+    /** Default maximum disk usage in bytes. */
+    private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
+
+    /** High water mark percentage for the cache */
+    private static final float HYSTERESIS_FACTOR = 0.9f;
+
+    /** Name of the append-only data file. */
+    static final String DATA_FILE = "hannto-cache.data";
+
+    /** Name of the index checkpoint. */
+    static final String INDEX_FILE = "hannto-cache.index";
+
+    private static final int DATA_MAGIC = 0x48434431;
+    private static final int INDEX_MAGIC = 0x48434931;
+    private static final int RECORD_MAGIC = 0x48435231;
+
+    /** Data file header: magic and generation. */
+    private static final int DATA_HEADER_BYTES = 4 + 8;
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_TTL = 2;
+    private static final byte TYPE_REMOVE = 3;
+
+    /** Record bytes besides key and data: magic, type, key length, TTLs, data length, CRC. */
+    private static final int RECORD_OVERHEAD_BYTES = 4 + 1 + 4 + 8 + 8 + 4 + 4;
+
+    /** Appended bytes after which the index is checkpointed again. */
+    private static final long CHECKPOINT_INTERVAL_BYTES = 256 * 1024;
+
+    /** Dead bytes below which the data file is never compacted. */
+    private static final long MIN_COMPACTION_GARBAGE_BYTES = 256 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Map of the Key, CacheHeader pairs, in access order. */
+    private final Map<String, CacheHeader> mEntries =
+            new LinkedHashMap<String, CacheHeader>(16, .75f, true);
+
+    /** Total amount of entry data currently in the cache, in bytes. */
+    private long mTotalSize = 0;
+
+    /** Total size of the records backing live entries, in bytes. */
+    private long mLiveRecordBytes = 0;
+
+    /** The root directory to use for the cache. */
+    private final File mRootDirectory;
+
+    /** The maximum size of the cache in bytes. */
+    private final int mMaxCacheSizeInBytes;
+
+    /** Runs compactions and checkpoints. */
+    private final Executor mMaintenanceExecutor;
+
+    /** Serializes compactions, checkpoints and {@link #clear()}. Taken before this object's lock. */
+    private final Object mMaintenanceLock = new Object();
+
+    /** The open data file, or null if the cache directory is unusable. */
+    private FileChannel mDataChannel;
+
+    /** Identifies the current data file, so a stale index is never applied to it. */
+    private long mGeneration;
+
+    /** Offset at which the next record is appended. */
+    private long mDataEnd;
+
+    /** Data file offset covered by the last index checkpoint. */
+    private long mCheckpointOffset;
+
+    private boolean mInitialized = false;
+
+    private boolean mMaintenanceScheduled = false;
+
+    /**
+     * Constructs an instance of the HanntoDiskBasedCache at the specified directory.
+     *
+     * @param rootDirectory The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     */
+    public HanntoDiskBasedCache(File rootDirectory, int maxCacheSizeInBytes) {
+        mRootDirectory = rootDirectory;
+        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        1,
+                        1,
+                        1,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread thread = new Thread(r, "HanntoDiskCache");
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+        executor.allowCoreThreadTimeOut(true);
+        mMaintenanceExecutor = executor;
+    }
+
+    /**
+     * Constructs an instance of the HanntoDiskBasedCache at the specified directory using the
+     * default maximum cache size of 5MB.
+     *
+     * @param rootDirectory The root directory of the cache.
+     */
+    public HanntoDiskBasedCache(File rootDirectory) {
+        this(rootDirectory, DEFAULT_DISK_USAGE_BYTES);
+    }
+
+    /** Clears the cache. Deletes all cached files from disk. */
+    @Override
+    public void clear() {
+        synchronized (mMaintenanceLock) {
+            synchronized (this) {
+                initialize();
+                if (mDataChannel != null) {
+                    try {
+                        startNewDataFile();
+                    } catch (IOException e) {
+                        closeDataFile();
+                    }
+                }
+            }
+        }
+    }
+
+    /** Returns the cache entry with the specified key if it exists, null otherwise. */
+    @Override
+    public synchronized Entry get(String key) {
+        initialize();
+        CacheHeader header = mEntries.get(key);
+        if (header == null || mDataChannel == null) {
+            return null;
+        }
+        try {
+            Entry entry = new Entry();
+            entry.data = readData(mDataChannel, header);
+            entry.ttl = header.ttl;
+            entry.softTtl = header.softTtl;
+            return entry;
+        } catch (IOException e) {
+            removeEntry(key);
+            return null;
+        }
+    }
+
+    /**
+     * Loads the index checkpoint and replays the records appended after it. Called on the cache
+     * dispatcher thread; any other method initializes the cache first if needed.
+     */
+    @Override
+    public synchronized void initialize() {
+        if (mInitialized) {
+            return;
+        }
+        mInitialized = true;
+        if (!mRootDirectory.exists() && !mRootDirectory.mkdirs()) {
+            return;
+        }
+        try {
+            mDataChannel =
+                    new RandomAccessFile(new File(mRootDirectory, DATA_FILE), "rw").getChannel();
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            if (!readDataHeader()) {
+                startNewDataFile();
+                return;
+            }
+            replay(loadIndex());
+            pruneIfNeeded(0);
+        } catch (IOException e) {
+            // Start over rather than trust a file we cannot read.
+            try {
+                startNewDataFile();
+            } catch (IOException e2) {
+                closeDataFile();
+            }
+        }
+    }
+
+    /**
+     * Invalidates an entry in the cache.
+     *
+     * @param key Cache key
+     * @param fullExpire True to fully expire the entry, false to soft expire
+     */
+    @Override
+    public synchronized void invalidate(String key, boolean fullExpire) {
+        initialize();
+        CacheHeader header = mEntries.get(key);
+        if (header == null) {
+            return;
+        }
+        header.softTtl = 0;
+        if (fullExpire) {
+            header.ttl = 0;
+        }
+        appendQuietly(encodeRecord(TYPE_TTL, header.keyBytes, header.ttl, header.softTtl, null));
+    }
+
+    /** Puts the entry with the specified key into the cache. */
+    @Override
+    public synchronized void put(String key, Entry entry) {
+        initialize();
+        if (mDataChannel == null) {
+            return;
+        }
+        byte[] data = entry.data != null ? entry.data : new byte[0];
+        if (data.length > mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+            remove(key);
+            return;
+        }
+        pruneIfNeeded(data.length);
+        byte[] keyBytes = key.getBytes(UTF_8);
+        try {
+            long offset = append(encodeRecord(TYPE_PUT, keyBytes, entry.ttl, entry.softTtl, data));
+            putEntry(
+                    new CacheHeader(
+                            key,
+                            keyBytes,
+                            offset + dataOffsetInRecord(keyBytes.length),
+                            data.length,
+                            entry.ttl,
+                            entry.softTtl));
+        } catch (IOException e) {
+            removeEntry(key);
+        }
+        maybeScheduleMaintenance();
+    }
+
+    /** Removes the specified key from the cache if it exists. */
+    @Override
+    public synchronized void remove(String key) {
+        initialize();
+        CacheHeader header = removeEntry(key);
+        if (header != null) {
+            appendQuietly(encodeRecord(TYPE_REMOVE, header.keyBytes, 0, 0, null));
+        }
+    }
+
+    /**
+     * Rewrites the data file with only the live entries and checkpoints the index. Runs on a
+     * background thread when enough of the file is dead records; readers and writers are only
+     * blocked while the entries written during the rewrite are carried over.
+     */
+    public void compact() {
+        synchronized (mMaintenanceLock) {
+            List<CacheHeader> snapshot;
+            FileChannel source;
+            synchronized (this) {
+                initialize();
+                if (mDataChannel == null) {
+                    return;
+                }
+                snapshot = new ArrayList<>(mEntries.values());
+                source = mDataChannel;
+            }
+
+            File dataFile = new File(mRootDirectory, DATA_FILE);
+            File tmpFile = new File(mRootDirectory, DATA_FILE + ".tmp");
+            RandomAccessFile out = null;
+            try {
+                out = new RandomAccessFile(tmpFile, "rw");
+                out.setLength(0);
+                FileChannel target = out.getChannel();
+                long generation = new Random().nextLong();
+                long end = writeDataHeader(target, generation);
+                Map<CacheHeader, Long> moved = new IdentityHashMap<>();
+
+                // Regions of the data file never change once written, so the bulk of the copy
+                // can run without the lock.
+                for (CacheHeader header : snapshot) {
+                    byte[] data = readData(source, header);
+                    long ttl;
+                    long softTtl;
+                    synchronized (this) {
+                        ttl = header.ttl;
+                        softTtl = header.softTtl;
+                    }
+                    ByteBuffer record = encodeRecord(TYPE_PUT, header.keyBytes, ttl, softTtl, data);
+                    moved.put(header, end + dataOffsetInRecord(header.keyBytes.length));
+                    end += writeFully(target, record, end);
+                }
+                target.force(false);
+
+                byte[] index;
+                synchronized (this) {
+                    // Carry over entries written since the snapshot.
+                    boolean carried = false;
+                    for (CacheHeader header : mEntries.values()) {
+                        if (!moved.containsKey(header)) {
+                            ByteBuffer record =
+                                    encodeRecord(
+                                            TYPE_PUT,
+                                            header.keyBytes,
+                                            header.ttl,
+                                            header.softTtl,
+                                            readData(source, header));
+                            moved.put(header, end + dataOffsetInRecord(header.keyBytes.length));
+                            end += writeFully(target, record, end);
+                            carried = true;
+                        }
+                    }
+                    if (carried) {
+                        target.force(false);
+                    }
+                    if (!tmpFile.renameTo(dataFile)) {
+                        throw new IOException("Could not replace " + dataFile);
+                    }
+                    out = null;
+
+                    mLiveRecordBytes = 0;
+                    for (CacheHeader header : mEntries.values()) {
+                        header.dataOffset = moved.get(header);
+                        mLiveRecordBytes += header.recordBytes();
+                    }
+                    closeQuietly(source);
+                    mDataChannel = target;
+                    mGeneration = generation;
+                    mDataEnd = end;
+                    mCheckpointOffset = end;
+                    index = encodeIndex();
+                }
+                // A crash before this lands leaves an index from another generation, which is
+                // ignored in favour of replaying the whole compacted file.
+                writeIndexFile(index);
+            } catch (IOException e) {
+                // Keep using the current data file.
+            } finally {
+                if (out != null) {
+                    closeQuietly(out);
+                    tmpFile.delete();
+                }
+            }
+        }
+    }
+
+    /** Writes the index for the records appended so far, bounding the replay at next startup. */
+    private void checkpoint() {
+        synchronized (mMaintenanceLock) {
+            FileChannel channel;
+            synchronized (this) {
+                channel = mDataChannel;
+            }
+            if (channel == null) {
+                return;
+            }
+            try {
+                // The index must not point at data that could still be lost.
+                channel.force(false);
+                byte[] index;
+                synchronized (this) {
+                    if (mDataChannel != channel) {
+                        return;
+                    }
+                    index = encodeIndex();
+                    mCheckpointOffset = mDataEnd;
+                }
+                writeIndexFile(index);
+            } catch (IOException e) {
+                // The next checkpoint will retry.
+            }
+        }
+    }
+
+    /** Schedules a compaction or checkpoint if enough has been appended. Must hold the lock. */
+    private void maybeScheduleMaintenance() {
+        if (mMaintenanceScheduled || mDataChannel == null) {
+            return;
+        }
+        if (!shouldCompact() && mDataEnd - mCheckpointOffset < CHECKPOINT_INTERVAL_BYTES) {
+            return;
+        }
+        mMaintenanceScheduled = true;
+        mMaintenanceExecutor.execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean compact;
+                        synchronized (HanntoDiskBasedCache.this) {
+                            mMaintenanceScheduled = false;
+                            compact = shouldCompact();
+                        }
+                        if (compact) {
+                            compact();
+                        } else {
+                            checkpoint();
+                        }
+                    }
+                });
+    }
+
+    /** True once dead records outweigh live ones. Must hold the lock. */
+    private boolean shouldCompact() {
+        long garbage = mDataEnd - DATA_HEADER_BYTES - mLiveRecordBytes;
+        return garbage >= MIN_COMPACTION_GARBAGE_BYTES && garbage > mLiveRecordBytes;
+    }
+
+    /**
+     * Prunes the cache to fit the maximum size.
+     *
+     * @param neededSpace the amount of space (in bytes) we are attempting to allocate
+     */
+    private void pruneIfNeeded(int neededSpace) {
+        if (mTotalSize + neededSpace < mMaxCacheSizeInBytes) {
+            return;
+        }
+        Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            CacheHeader header = iterator.next().getValue();
+            iterator.remove();
+            mTotalSize -= header.length;
+            mLiveRecordBytes -= header.recordBytes();
+            appendQuietly(encodeRecord(TYPE_REMOVE, header.keyBytes, 0, 0, null));
+            if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+                break;
+            }
+        }
+    }
+
+    /** Adds or replaces an entry in the in-memory index, keeping the size totals current. */
+    private void putEntry(CacheHeader header) {
+        CacheHeader previous = mEntries.put(header.key, header);
+        if (previous != null) {
+            mTotalSize -= previous.length;
+            mLiveRecordBytes -= previous.recordBytes();
+        }
+        mTotalSize += header.length;
+        mLiveRecordBytes += header.recordBytes();
+    }
+
+    /** Removes an entry from the in-memory index, returning it or null if absent. */
+    private CacheHeader removeEntry(String key) {
+        CacheHeader header = mEntries.remove(key);
+        if (header != null) {
+            mTotalSize -= header.length;
+            mLiveRecordBytes -= header.recordBytes();
+        }
+        return header;
+    }
+
+    /** Truncates the data file to an empty one with a fresh generation and drops the index. */
+    private void startNewDataFile() throws IOException {
+        mEntries.clear();
+        mTotalSize = 0;
+        mLiveRecordBytes = 0;
+        new File(mRootDirectory, INDEX_FILE).delete();
+        mDataChannel.truncate(0);
+        mGeneration = new Random().nextLong();
+        mDataEnd = writeDataHeader(mDataChannel, mGeneration);
+        mCheckpointOffset = 0;
+    }
+
+    private void closeDataFile() {
+        if (mDataChannel != null) {
+            closeQuietly(mDataChannel);
+            mDataChannel = null;
+        }
+        mEntries.clear();
+        mTotalSize = 0;
+        mLiveRecordBytes = 0;
+    }
+
+    private static long writeDataHeader(FileChannel channel, long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(DATA_HEADER_BYTES);
+        header.putInt(DATA_MAGIC).putLong(generation).flip();
+        return writeFully(channel, header, 0);
+    }
+
+    /** Reads the data file header, returning false if the file is new or not a cache file. */
+    private boolean readDataHeader() throws IOException {
+        if (mDataChannel.size() < DATA_HEADER_BYTES) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(DATA_HEADER_BYTES);
+        readFully(mDataChannel, header, 0);
+        header.flip();
+        if (header.getInt() != DATA_MAGIC) {
+            return false;
+        }
+        mGeneration = header.getLong();
+        return true;
+    }
+
+    /**
+     * Loads the index checkpoint if it matches the data file.
+     *
+     * @return the data file offset from which records must be replayed
+     */
+    private long loadIndex() throws IOException {
+        File indexFile = new File(mRootDirectory, INDEX_FILE);
+        if (!indexFile.exists()) {
+            return DATA_HEADER_BYTES;
+        }
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        try {
+            ByteBuffer index = mapOrRead(file.getChannel());
+            if (!parseIndex(index)) {
+                mEntries.clear();
+                mTotalSize = 0;
+                mLiveRecordBytes = 0;
+                return DATA_HEADER_BYTES;
+            }
+            return mCheckpointOffset;
+        } catch (RuntimeException e) {
+            // A truncated or corrupt index underflows the buffer.
+            mEntries.clear();
+            mTotalSize = 0;
+            mLiveRecordBytes = 0;
+            return DATA_HEADER_BYTES;
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    /** Maps the whole file read-only, or reads it into memory where mapping is unsupported. */
+    private static ByteBuffer mapOrRead(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Index too large");
+        }
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException | UnsupportedOperationException e) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            readFully(channel, buffer, 0);
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private boolean parseIndex(ByteBuffer index) throws IOException {
+        if (index.remaining() < 4) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        int end = index.limit() - 4;
+        byte[] chunk = new byte[8192];
+        ByteBuffer body = index.duplicate();
+        body.limit(end);
+        while (body.hasRemaining()) {
+            int n = Math.min(chunk.length, body.remaining());
+            body.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        if (index.getInt(end) != (int) crc.getValue()) {
+            return false;
+        }
+        if (index.getInt() != INDEX_MAGIC || index.getLong() != mGeneration) {
+            return false;
+        }
+        long logOffset = index.getLong();
+        if (logOffset < DATA_HEADER_BYTES || logOffset > mDataChannel.size()) {
+            return false;
+        }
+        int count = index.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] keyBytes = new byte[index.getInt()];
+            index.get(keyBytes);
+            long dataOffset = index.getLong();
+            int length = index.getInt();
+            long ttl = index.getLong();
+            long softTtl = index.getLong();
+            if (length < 0 || dataOffset < DATA_HEADER_BYTES || dataOffset + length > logOffset) {
+                return false;
+            }
+            putEntry(
+                    new CacheHeader(
+                            new String(keyBytes, UTF_8), keyBytes, dataOffset, length, ttl, softTtl));
+        }
+        mCheckpointOffset = logOffset;
+        return true;
+    }
+
+    /** Encodes the index of the live entries, least recently used first. Must hold the lock. */
+    private byte[] encodeIndex() {
+        int size = 4 + 8 + 8 + 4 + 4;
+        for (CacheHeader header : mEntries.values()) {
+            size += 4 + header.keyBytes.length + 8 + 4 + 8 + 8;
+        }
+        ByteBuffer index = ByteBuffer.allocate(size);
+        index.putInt(INDEX_MAGIC).putLong(mGeneration).putLong(mDataEnd).putInt(mEntries.size());
+        for (CacheHeader header : mEntries.values()) {
+            index.putInt(header.keyBytes.length).put(header.keyBytes);
+            index.putLong(header.dataOffset).putInt(header.length);
+            index.putLong(header.ttl).putLong(header.softTtl);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(index.array(), 0, index.position());
+        index.putInt((int) crc.getValue());
+        return index.array();
+    }
+
+    private void writeIndexFile(byte[] index) throws IOException {
+        File indexFile = new File(mRootDirectory, INDEX_FILE);
+        File tmpFile = new File(mRootDirectory, INDEX_FILE + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            out.write(index);
+            out.getFD().sync();
+        } finally {
+            closeQuietly(out);
+        }
+        if (!tmpFile.renameTo(indexFile)) {
+            tmpFile.delete();
+            throw new IOException("Could not replace " + indexFile);
+        }
+    }
+
+    /**
+     * Applies the records from the given offset to the end of the data file, truncating a torn
+     * record left by a crash.
+     */
+    private void replay(long from) throws IOException {
+        long size = mDataChannel.size();
+        long position = from;
+        mDataChannel.position(from);
+        // Not closed: that would close the data file.
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(Channels.newInputStream(mDataChannel)));
+        CRC32 crc = new CRC32();
+        while (position < size) {
+            try {
+                if (in.readInt() != RECORD_MAGIC) {
+                    break;
+                }
+                byte type = in.readByte();
+                int keyLength = in.readInt();
+                if (keyLength < 0 || keyLength > size - position) {
+                    break;
+                }
+                byte[] keyBytes = new byte[keyLength];
+                in.readFully(keyBytes);
+                long ttl = in.readLong();
+                long softTtl = in.readLong();
+                int dataLength = in.readInt();
+                if (dataLength < 0 || dataLength > size - position) {
+                    break;
+                }
+                byte[] data = new byte[dataLength];
+                in.readFully(data);
+                if (in.readInt() != recordCrc(crc, type, keyBytes, ttl, softTtl, data)) {
+                    break;
+                }
+
+                String key = new String(keyBytes, UTF_8);
+                if (type == TYPE_PUT) {
+                    putEntry(
+                            new CacheHeader(
+                                    key,
+                                    keyBytes,
+                                    position + dataOffsetInRecord(keyLength),
+                                    dataLength,
+                                    ttl,
+                                    softTtl));
+                } else if (type == TYPE_TTL) {
+                    CacheHeader header = mEntries.get(key);
+                    if (header != null) {
+                        header.ttl = ttl;
+                        header.softTtl = softTtl;
+                    }
+                } else if (type == TYPE_REMOVE) {
+                    removeEntry(key);
+                } else {
+                    break;
+                }
+                position += RECORD_OVERHEAD_BYTES + keyLength + dataLength;
+            } catch (EOFException e) {
+                break;
+            }
+        }
+        if (position < size) {
+            mDataChannel.truncate(position);
+        }
+        mDataEnd = position;
+    }
+
+    private static ByteBuffer encodeRecord(
+            byte type, byte[] keyBytes, long ttl, long softTtl, byte[] data) {
+        if (data == null) {
+            data = new byte[0];
+        }
+        ByteBuffer record =
+                ByteBuffer.allocate(RECORD_OVERHEAD_BYTES + keyBytes.length + data.length);
+        record.putInt(RECORD_MAGIC).put(type).putInt(keyBytes.length).put(keyBytes);
+        record.putLong(ttl).putLong(softTtl).putInt(data.length).put(data);
+        record.putInt(recordCrc(new CRC32(), type, keyBytes, ttl, softTtl, data));
+        record.flip();
+        return record;
+    }
+
+    private static int recordCrc(
+            CRC32 crc, byte type, byte[] keyBytes, long ttl, long softTtl, byte[] data) {
+        crc.reset();
+        crc.update(type);
+        crc.update(keyBytes, 0, keyBytes.length);
+        byte[] ttls = ByteBuffer.allocate(16).putLong(ttl).putLong(softTtl).array();
+        crc.update(ttls, 0, ttls.length);
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    /** Offset of the data within a record whose key has the given length. */
+    private static int dataOffsetInRecord(int keyLength) {
+        return 4 + 1 + 4 + keyLength + 8 + 8 + 4;
+    }
+
+    /** Appends a record, returning its offset in the data file. Must hold the lock. */
+    private long append(ByteBuffer record) throws IOException {
+        long offset = mDataEnd;
+        mDataEnd += writeFully(mDataChannel, record, offset);
+        return offset;
+    }
+
+    /** Appends a bookkeeping record; losing one only lets a stale entry outlive a restart. */
+    private void appendQuietly(ByteBuffer record) {
+        if (mDataChannel == null) {
+            return;
+        }
+        try {
+            append(record);
+            maybeScheduleMaintenance();
+        } catch (IOException e) {
+            // Ignored; see above.
+        }
+    }
+
+    private static byte[] readData(FileChannel channel, CacheHeader header) throws IOException {
+        byte[] data = new byte[header.length];
+        readFully(channel, ByteBuffer.wrap(data), header.dataOffset);
+        return data;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        int length = buffer.remaining();
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, start + buffer.position());
+        }
+        return length;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Ignored.
+        }
+    }
+
+    /** Handy class for holding the location and metadata of an entry in the data file. */
+    static class CacheHeader {
+        /** The key that identifies the cache entry. */
+        final String key;
+
+        /** The key as stored on disk. */
+        final byte[] keyBytes;
+
+        /** Offset of the entry's data in the data file. */
+        long dataOffset;
+
+        /** Size of the entry's data, in bytes. */
+        final int length;
+
+        /** TTL for this record. */
+        long ttl;
+
+        /** Soft TTL for this record. */
+        long softTtl;
+
+        CacheHeader(
+                String key, byte[] keyBytes, long dataOffset, int length, long ttl, long softTtl) {
+            this.key = key;
+            this.keyBytes = keyBytes;
+            this.dataOffset = dataOffset;
+            this.length = length;
+            this.ttl = ttl;
+            this.softTtl = softTtl;
+        }
+
+        /** Size of the record holding this entry in the data file. */
+        int recordBytes() {
+            return RECORD_OVERHEAD_BYTES + keyBytes.length + length;
+        }
+    }
+}
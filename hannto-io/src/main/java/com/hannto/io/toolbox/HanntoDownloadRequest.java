@@ -0,0 +1,103 @@
+package com.hannto.io.toolbox;
+
+import com.hannto.io.HanntoResponse;
+import com.hannto.io.HanntoStreamingRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A streaming request that copies its response body into an {@link OutputStream} as it arrives,
+ * so that large transfers such as scans and logs never sit in memory whole.
+ *
+ * <p>The listener receives the number of bytes written so far as intermediate responses, about
+ * every {@link #getProgressIntervalBytes()} bytes, and the total once the body is complete. The
+ * caller owns the sink and closes it.
+ */
+public class HanntoDownloadRequest extends HanntoStreamingRequest<Long> {
+
+    /** The default number of bytes between progress updates. */
+    public static final int DEFAULT_PROGRESS_INTERVAL_BYTES = 64 * 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Lock to guard mListener as it is cleared on cancel() and read on delivery. */
+    private final Object mLock = new Object();
+
+    // Guarded by mLock.
+    private HanntoResponse.Listener<Long> mListener;
+
+    private final OutputStream mSink;
+
+    private final int mProgressIntervalBytes;
+
+    public HanntoDownloadRequest(
+            byte[] data,
+            OutputStream sink,
+            HanntoResponse.Listener<Long> listener,
+            HanntoResponse.ErrorListener errorListener) {
+        this(data, sink, DEFAULT_PROGRESS_INTERVAL_BYTES, listener, errorListener);
+    }
+
+    public HanntoDownloadRequest(
+            byte[] data,
+            OutputStream sink,
+            int progressIntervalBytes,
+            HanntoResponse.Listener<Long> listener,
+            HanntoResponse.ErrorListener errorListener) {
+        super(data, errorListener);
+        if (progressIntervalBytes < 1) {
+            throw new IllegalArgumentException("progressIntervalBytes must be positive");
+        }
+        mSink = sink;
+        mProgressIntervalBytes = progressIntervalBytes;
+        mListener = listener;
+    }
+
+    /** Returns the number of bytes between progress updates. */
+    public int getProgressIntervalBytes() {
+        return mProgressIntervalBytes;
+    }
+
+    @Override
+    public void cancel() {
+        super.cancel();
+        synchronized (mLock) {
+            mListener = null;
+        }
+    }
+
+    @Override
+    protected HanntoResponse<Long> parseNetworkStream(InputStream body, long contentLength)
+            throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        long lastPosted = 0;
+        int count;
+        while ((count = body.read(buffer)) != -1) {
+            if (isCanceled()) {
+                throw new IOException("Download canceled");
+            }
+            mSink.write(buffer, 0, count);
+            total += count;
+            if (total - lastPosted >= mProgressIntervalBytes && total != contentLength) {
+                postIntermediate(total);
+                lastPosted = total;
+            }
+        }
+        mSink.flush();
+        return HanntoResponse.success(total);
+    }
+
+    @Override
+    protected void deliverResponse(Long response) {
+        HanntoResponse.Listener<Long> listener;
+        synchronized (mLock) {
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onResponse(response);
+        }
+    }
+}
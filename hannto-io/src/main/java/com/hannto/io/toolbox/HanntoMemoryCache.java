@@ -0,0 +1,112 @@
+package com.hannto.io.toolbox;
+
+import com.hannto.io.HanntoCache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache implementation that keeps entries in memory, evicting the least recently used ones once
+ * their data exceeds a byte limit. Entries do not survive the process.
+ */
+public class HanntoMemoryCache implements HanntoCache {
+
+    /** Default maximum cache size in bytes. */
+    private static final int DEFAULT_MAX_CACHE_SIZE_IN_BYTES = 1024 * 1024;
+
+    /** Rough per-entry bookkeeping cost, counted towards the size limit. */
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+    /** Map of the Key, Entry pairs, in access order. */
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, .75f, true);
+
+    /** Total amount of space currently used by the cache in bytes. */
+    private long mTotalSize = 0;
+
+    /** The maximum size of the cache in bytes. */
+    private final int mMaxCacheSizeInBytes;
+
+    /**
+     * Constructs an instance of the HanntoMemoryCache.
+     *
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes
+     */
+    public HanntoMemoryCache(int maxCacheSizeInBytes) {
+        if (maxCacheSizeInBytes <= 0) {
+            throw new IllegalArgumentException("maxCacheSizeInBytes must be positive");
+        }
+        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+    }
+
+    /** Constructs an instance of the HanntoMemoryCache using the default maximum size of 1MB. */
+    public HanntoMemoryCache() {
+        this(DEFAULT_MAX_CACHE_SIZE_IN_BYTES);
+    }
+
+    @Override
+    public synchronized Entry get(String key) {
+        return mEntries.get(key);
+    }
+
+    @Override
+    public synchronized void put(String key, Entry entry) {
+        long size = sizeOf(key, entry);
+        if (size > mMaxCacheSizeInBytes) {
+            // Would evict everything else and still not fit.
+            remove(key);
+            return;
+        }
+        Entry previous = mEntries.put(key, entry);
+        if (previous != null) {
+            mTotalSize -= sizeOf(key, previous);
+        }
+        mTotalSize += size;
+        pruneIfNeeded();
+    }
+
+    /** Nothing to load; the cache starts out empty. */
+    @Override
+    public void initialize() {}
+
+    @Override
+    public synchronized void invalidate(String key, boolean fullExpire) {
+        Entry entry = mEntries.get(key);
+        if (entry != null) {
+            entry.softTtl = 0;
+            if (fullExpire) {
+                entry.ttl = 0;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mTotalSize -= sizeOf(key, entry);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        mEntries.clear();
+        mTotalSize = 0;
+    }
+
+    /** Evicts least recently used entries until the cache fits its size limit. */
+    private void pruneIfNeeded() {
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mTotalSize > mMaxCacheSizeInBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            mTotalSize -= sizeOf(eldest.getKey(), eldest.getValue());
+            iterator.remove();
+        }
+    }
+
+    private static long sizeOf(String key, Entry entry) {
+        int dataLength = entry.data != null ? entry.data.length : 0;
+        return dataLength + 2L * key.length() + ENTRY_OVERHEAD_BYTES;
+    }
+}
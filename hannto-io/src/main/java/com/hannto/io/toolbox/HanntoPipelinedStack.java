@@ -0,0 +1,361 @@
+package com.hannto.io.toolbox;
+
+import com.hannto.io.HanntoRequest;
+import com.hannto.io.HanntoRequestBody;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stack that pipelines requests over one connection: requests are written back to back without
+ * waiting for earlier responses, and a reader thread matches each response to its request, in
+ * whatever order they arrive.
+ *
+ * <p>Every frame in either direction is an 8-byte big-endian correlation id, a 4-byte length and
+ * the payload. The device must echo the id of the request in its response. Ids hold the request's
+ * {@link HanntoRequest#getSequence() sequence} in the upper 32 bits and a per-connection attempt
+ * counter in the lower 32, so a late response to an attempt that timed out is dropped rather than
+ * taken for the retry's.
+ *
+ * <p>Callbacks run on a callback executor rather than on the reader or timer thread, so that
+ * parsing and delivering one response, or retrying a timed-out attempt, holds up neither the
+ * responses behind it nor other timeouts.
+ *
+ * <p>Once the connection fails, every outstanding and later request fails with the same error.
+ */
+public class HanntoPipelinedStack implements HanntoAsyncStack, Closeable {
+
+    /** The default largest response accepted, in bytes. */
+    public static final int DEFAULT_MAX_RESPONSE_BYTES = 1024 * 1024;
+
+    private final InputStream mInput;
+
+    private final DataOutputStream mOutput;
+
+    /** Attempts waiting for a response, by correlation id. Removing one claims its completion. */
+    private final Map<Long, Attempt> mAttempts = new ConcurrentHashMap<>();
+
+    /** Counts attempts on this connection; the lower half of each correlation id. */
+    private final AtomicInteger mAttemptCounter = new AtomicInteger();
+
+    /** Fails attempts that outlive their request's timeout. */
+    private final ScheduledExecutorService mTimer;
+
+    /** Runs callbacks for responses, timeouts, aborts and connection failures. */
+    private final Executor mCallbackExecutor;
+
+    /** The callback executor if this stack created it and shuts it down, otherwise null. */
+    private final ExecutorService mOwnedCallbackExecutor;
+
+    private final int mMaxResponseBytes;
+
+    /** Set once the connection has failed or been closed. */
+    private volatile IOException mFailure;
+
+    /**
+     * @param input Stream the device's responses are read from
+     * @param output Stream requests are written to
+     */
+    public HanntoPipelinedStack(InputStream input, OutputStream output) {
+        this(input, output, DEFAULT_MAX_RESPONSE_BYTES, null);
+    }
+
+    /**
+     * @param input Stream the device's responses are read from
+     * @param output Stream requests are written to
+     * @param maxResponseBytes Largest response accepted; a larger length fails the connection,
+     *     whose framing can no longer be trusted
+     * @param callbackExecutor Executor that runs callbacks, or null for a pool owned by this stack
+     */
+    public HanntoPipelinedStack(
+            InputStream input,
+            OutputStream output,
+            int maxResponseBytes,
+            Executor callbackExecutor) {
+        if (maxResponseBytes < 0) {
+            throw new IllegalArgumentException("maxResponseBytes must not be negative");
+        }
+        mMaxResponseBytes = maxResponseBytes;
+        if (callbackExecutor == null) {
+            mOwnedCallbackExecutor =
+                    Executors.newCachedThreadPool(
+                            new ThreadFactory() {
+                                @Override
+                                public Thread newThread(Runnable r) {
+                                    Thread thread = new Thread(r, "HanntoPipelineCallback");
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            });
+            callbackExecutor = mOwnedCallbackExecutor;
+        } else {
+            mOwnedCallbackExecutor = null;
+        }
+        mCallbackExecutor = callbackExecutor;
+        mInput = input;
+        mOutput = new DataOutputStream(new BufferedOutputStream(output));
+        mTimer =
+                Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread thread = new Thread(r, "HanntoPipelineTimer");
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+        Thread reader =
+                new Thread("HanntoPipelineReader") {
+                    @Override
+                    public void run() {
+                        readResponses();
+                    }
+                };
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /** Performs one attempt, blocking until its response arrives or it times out. */
+    @Override
+    public RawResponse executeRequest(HanntoRequest<?> request) throws IOException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final RawResponse[] response = new RawResponse[1];
+        final IOException[] failure = new IOException[1];
+        executeRequestAsync(
+                request,
+                new Callback() {
+                    @Override
+                    public void onResponse(RawResponse rawResponse) {
+                        response[0] = rawResponse;
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(IOException e) {
+                        failure[0] = e;
+                        done.countDown();
+                    }
+                });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return response[0];
+    }
+
+    @Override
+    public void executeRequestAsync(HanntoRequest<?> request, Callback callback) {
+        IOException failure = mFailure;
+        if (failure != null) {
+            callback.onFailure(failure);
+            return;
+        }
+        HanntoRequestBody body = request.getBody();
+        if (body.contentLength() > Integer.MAX_VALUE) {
+            callback.onFailure(new IOException("Request body too large for a frame"));
+            return;
+        }
+        long sequence = request.hasSequence() ? request.getSequence() : 0;
+        final long id = (sequence << 32) | (mAttemptCounter.incrementAndGet() & 0xffffffffL);
+        Attempt attempt = new Attempt(callback);
+        mAttempts.put(id, attempt);
+        HanntoRequest.AbortHandle abort =
+                new HanntoRequest.AbortHandle() {
+                    @Override
+                    public void abort() {
+                        abortAttempt(id);
+                    }
+                };
+        if (!request.setAbortHandle(abort)) {
+            mAttempts.remove(id);
+            callback.onFailure(new IOException("Request canceled"));
+            return;
+        }
+        try {
+            attempt.mTimeout =
+                    mTimer.schedule(
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    Attempt timedOut = mAttempts.remove(id);
+                                    if (timedOut != null) {
+                                        // A retry writes the whole body; not on this thread.
+                                        complete(timedOut, null, new SocketTimeoutException());
+                                    }
+                                }
+                            },
+                            request.getTimeoutMs(),
+                            TimeUnit.MILLISECONDS);
+
+            synchronized (mOutput) {
+                mOutput.writeLong(id);
+                mOutput.writeInt((int) body.contentLength());
+                // A streamed body holds up other writers until all of it is out.
+                body.writeTo(mOutput);
+                mOutput.flush();
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (RejectedExecutionException e) {
+            // The timer stopped because the connection failed.
+        }
+        // The connection may have failed after fail() swept the outstanding attempts.
+        failure = mFailure;
+        if (failure != null) {
+            Attempt failed = mAttempts.remove(id);
+            if (failed != null) {
+                failed.cancelTimeout();
+                failed.mCallback.onFailure(failure);
+            }
+        }
+    }
+
+    /**
+     * Fails an attempt whose request was canceled, from the timer thread. The connection stays
+     * open for the other requests; a late response to the attempt is dropped.
+     */
+    private void abortAttempt(final long id) {
+        try {
+            mTimer.execute(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            Attempt aborted = mAttempts.remove(id);
+                            if (aborted != null) {
+                                aborted.cancelTimeout();
+                                complete(aborted, null, new IOException("Request canceled"));
+                            }
+                        }
+                    });
+        } catch (RejectedExecutionException e) {
+            // The timer stopped because the connection failed, failing the attempt already.
+        }
+    }
+
+    /** Closes the connection, failing any outstanding requests. */
+    @Override
+    public void close() {
+        fail(new IOException("Pipelined stack closed"));
+    }
+
+    private void readResponses() {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(mInput));
+        try {
+            while (true) {
+                long id = in.readLong();
+                int length = in.readInt();
+                if (length < 0 || length > mMaxResponseBytes) {
+                    throw new IOException("Invalid response length " + length);
+                }
+                byte[] data = new byte[length];
+                in.readFully(data);
+                Attempt attempt = mAttempts.remove(id);
+                if (attempt != null) {
+                    attempt.cancelTimeout();
+                    complete(attempt, new RawResponse(data), null);
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /** Marks the connection failed and fails every outstanding attempt. */
+    private void fail(IOException failure) {
+        synchronized (this) {
+            if (mFailure != null) {
+                return;
+            }
+            mFailure = failure;
+        }
+        closeQuietly(mInput);
+        synchronized (mOutput) {
+            closeQuietly(mOutput);
+        }
+        for (Long id : mAttempts.keySet()) {
+            Attempt attempt = mAttempts.remove(id);
+            if (attempt != null) {
+                attempt.cancelTimeout();
+                complete(attempt, null, failure);
+            }
+        }
+        mTimer.shutdown();
+        if (mOwnedCallbackExecutor != null) {
+            // Callbacks already handed over still run.
+            mOwnedCallbackExecutor.shutdown();
+        }
+    }
+
+    /** Runs an attempt's callback on the callback executor. */
+    private void complete(
+            final Attempt attempt, final RawResponse response, final IOException failure) {
+        Runnable callback =
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        if (failure != null) {
+                            attempt.mCallback.onFailure(failure);
+                        } else {
+                            attempt.mCallback.onResponse(response);
+                        }
+                    }
+                };
+        try {
+            mCallbackExecutor.execute(callback);
+        } catch (RejectedExecutionException e) {
+            // The executor is shut down; the attempt must still complete.
+            callback.run();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Ignored.
+        }
+    }
+
+    /** An attempt waiting for its response. */
+    private static class Attempt {
+        final Callback mCallback;
+        volatile ScheduledFuture<?> mTimeout;
+
+        Attempt(Callback callback) {
+            mCallback = callback;
+        }
+
+        /** Stops the timeout, if it has been scheduled yet. */
+        void cancelTimeout() {
+            ScheduledFuture<?> timeout = mTimeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,620 @@
+package com.hannto.io.toolbox;
+
+import com.hannto.io.HanntoRequest;
+import com.hannto.io.HanntoRequestBody;
+import com.hannto.io.HanntoSpool;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stack that sends each request over TCP, reusing connections from a bounded keep-alive pool.
+ *
+ * <p>Every frame in either direction is a 4-byte big-endian length followed by the payload, one
+ * response per request. Each attempt, from waiting for a connection to reading the last byte of
+ * the response, must finish within the request's {@link HanntoRequest#getTimeoutMs() current
+ * timeout}; otherwise it fails with a {@link SocketTimeoutException}, which the retry policy may
+ * retry, and the connection is discarded.
+ *
+ * <p>A {@link HanntoRequest#isStreaming() streaming} request gets its body as a stream read
+ * straight off the connection; then the timeout applies to each read rather than to the whole
+ * body, and the connection returns to the pool when the stream is closed. So does a body larger
+ * than the threshold of the request's {@link HanntoRequest#getSpool() spool}, which {@link
+ * HanntoBasicNetwork} copies into the spool. Bodies read this way are not limited by the maximum
+ * response size.
+ *
+ * <p>A request with a {@link HanntoRequest#hasStreamedBody() streamed body} is written from its
+ * {@link HanntoRequestBody} without being loaded into memory, and each attempt resends it from
+ * the start.
+ *
+ * <p>Given a {@link HanntoByteArrayPool}, other bodies are read into leased buffers, and the
+ * {@link RawResponse} must be released once consumed; {@link HanntoBasicNetwork} does this after
+ * the request has been delivered.
+ *
+ * <p>An idle connection is checked before reuse and dropped if the peer has closed it or sent
+ * unsolicited data. Connections idle longer than the keep-alive are closed in the background.
+ */
+public class HanntoSocketStack implements HanntoStack, Closeable {
+
+    /** The default maximum number of connections. */
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+    /** The default keep-alive for idle connections in milliseconds. */
+    public static final long DEFAULT_KEEP_ALIVE_MS = 60000;
+
+    /** The default largest response accepted, in bytes. */
+    public static final int DEFAULT_MAX_RESPONSE_BYTES = 1024 * 1024;
+
+    private final InetSocketAddress mAddress;
+
+    private final int mMaxConnections;
+
+    private final long mKeepAliveNanos;
+
+    private final int mMaxResponseBytes;
+
+    /** Pool for response bodies, or null to allocate each one. */
+    private final HanntoByteArrayPool mPool;
+
+    /** Idle connections, most recently used first. Guarded by this. */
+    private final Deque<Connection> mIdle = new ArrayDeque<>();
+
+    /** Connections open or being opened, idle or not. Guarded by this. */
+    private int mConnectionCount = 0;
+
+    /** Guarded by this. */
+    private boolean mCleanupRunning = false;
+
+    /** Guarded by this. */
+    private boolean mClosed = false;
+
+    /**
+     * @param address Address of the device
+     * @param maxConnections Maximum number of connections open at once
+     * @param keepAliveMs How long an idle connection is kept for reuse
+     * @param maxResponseBytes Largest response read into memory; a larger length fails the attempt
+     * @param pool Pool to read response bodies into, or null to allocate each one
+     */
+    public HanntoSocketStack(
+            InetSocketAddress address,
+            int maxConnections,
+            long keepAliveMs,
+            int maxResponseBytes,
+            HanntoByteArrayPool pool) {
+        if (maxConnections < 1 || keepAliveMs <= 0 || maxResponseBytes < 0) {
+            throw new IllegalArgumentException("Invalid pool settings");
+        }
+        mAddress = address;
+        mMaxConnections = maxConnections;
+        mKeepAliveNanos = TimeUnit.MILLISECONDS.toNanos(keepAliveMs);
+        mMaxResponseBytes = maxResponseBytes;
+        mPool = pool;
+    }
+
+    /**
+     * @param address Address of the device
+     * @param maxConnections Maximum number of connections open at once
+     * @param keepAliveMs How long an idle connection is kept for reuse
+     * @param maxResponseBytes Largest response read into memory; a larger length fails the attempt
+     */
+    public HanntoSocketStack(
+            InetSocketAddress address, int maxConnections, long keepAliveMs, int maxResponseBytes) {
+        this(address, maxConnections, keepAliveMs, maxResponseBytes, null);
+    }
+
+    /** @param address Address of the device */
+    public HanntoSocketStack(InetSocketAddress address) {
+        this(address, DEFAULT_MAX_CONNECTIONS, DEFAULT_KEEP_ALIVE_MS, DEFAULT_MAX_RESPONSE_BYTES);
+    }
+
+    @Override
+    public RawResponse executeRequest(HanntoRequest<?> request) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(request.getTimeoutMs());
+        // Registered first, so that a request canceled while it waits for a connection or
+        // connects gives up at once.
+        Abort abort = new Abort();
+        if (!request.setAbortHandle(abort)) {
+            throw new IOException("Request canceled");
+        }
+        Connection connection;
+        try {
+            connection = acquire(deadline, abort);
+        } catch (IOException e) {
+            request.setAbortHandle(null);
+            throw e;
+        }
+        boolean reusable = false;
+        boolean handedOff = false;
+        try {
+            if (request.hasStreamedBody()) {
+                HanntoRequestBody body = request.getBody();
+                if (body.contentLength() > Integer.MAX_VALUE) {
+                    throw new IOException("Request body too large for a frame");
+                }
+                ByteBuffer header = ByteBuffer.allocate(4);
+                header.putInt((int) body.contentLength()).flip();
+                connection.write(header, deadline);
+                connection.write(body, deadline);
+            } else {
+                byte[] data = request.getData() != null ? request.getData() : new byte[0];
+                ByteBuffer frame = ByteBuffer.allocate(4 + data.length);
+                frame.putInt(data.length).put(data).flip();
+                connection.write(frame, deadline);
+            }
+
+            ByteBuffer length = ByteBuffer.allocate(4);
+            connection.read(length, deadline);
+            int responseLength = length.getInt(0);
+            HanntoSpool spool = request.getSpool();
+            boolean streamed =
+                    request.isStreaming()
+                            || (spool != null && responseLength > spool.getThresholdBytes());
+            if (responseLength < 0 || (!streamed && responseLength > mMaxResponseBytes)) {
+                throw new IOException("Bad response length " + responseLength);
+            }
+            if (streamed) {
+                handedOff = true;
+                return new RawResponse(
+                        new BodyStream(
+                                connection, request, abort, responseLength, request.getTimeoutMs()),
+                        responseLength);
+            }
+            if (mPool == null) {
+                ByteBuffer response = ByteBuffer.allocate(responseLength);
+                connection.read(response, deadline);
+                reusable = true;
+                return new RawResponse(response.array());
+            }
+            HanntoByteArrayPool.Lease lease = mPool.lease(responseLength);
+            try {
+                ByteBuffer response = ByteBuffer.wrap(lease.buffer(), 0, responseLength);
+                connection.read(response, deadline);
+                response.flip();
+                reusable = true;
+                return new RawResponse(response, lease);
+            } finally {
+                if (!reusable) {
+                    lease.release();
+                }
+            }
+        } finally {
+            if (!handedOff) {
+                request.setAbortHandle(null);
+                release(connection, abort.finish() && reusable);
+            }
+        }
+    }
+
+    /** Returns the number of open connections, idle or in use. */
+    public synchronized int getConnectionCount() {
+        return mConnectionCount;
+    }
+
+    /** Returns the number of idle connections. */
+    public synchronized int getIdleConnectionCount() {
+        return mIdle.size();
+    }
+
+    /** Closes idle connections now and the rest as they are released. */
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        while (!mIdle.isEmpty()) {
+            closeLocked(mIdle.pollFirst());
+        }
+        notifyAll();
+    }
+
+    /**
+     * Takes a healthy idle connection, or opens a new one if the pool has room, waiting for one to
+     * be released otherwise. The connection is attached to the abort, which ends the wait or the
+     * connect if the request is canceled.
+     */
+    private Connection acquire(long deadline, Abort abort) throws IOException {
+        synchronized (this) {
+            while (true) {
+                if (mClosed) {
+                    throw new IOException("Socket stack closed");
+                }
+                if (abort.isAborted()) {
+                    throw new IOException("Request canceled");
+                }
+                evictIdleLocked(System.nanoTime());
+                Connection idle = mIdle.pollFirst();
+                if (idle != null) {
+                    if (!idle.isHealthy()) {
+                        closeLocked(idle);
+                        continue;
+                    }
+                    if (!abort.attach(idle)) {
+                        mIdle.addFirst(idle);
+                        throw new IOException("Request canceled");
+                    }
+                    return idle;
+                }
+                if (mConnectionCount < mMaxConnections) {
+                    mConnectionCount++;
+                    break;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("No connection available");
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SocketTimeoutException("Interrupted waiting for a connection");
+                }
+            }
+        }
+        Connection connection = Connection.open();
+        boolean connected = false;
+        try {
+            if (!abort.attach(connection)) {
+                throw new IOException("Request canceled");
+            }
+            connection.connect(mAddress, deadline);
+            connected = true;
+            return connection;
+        } finally {
+            if (!connected) {
+                connection.close();
+                synchronized (this) {
+                    mConnectionCount--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /** Returns a connection to the pool, or closes it if its state is unknown. */
+    private synchronized void release(Connection connection, boolean reusable) {
+        if (reusable && !mClosed) {
+            connection.mIdleSince = System.nanoTime();
+            mIdle.addFirst(connection);
+            startCleanupIfNeeded();
+        } else {
+            closeLocked(connection);
+        }
+        notifyAll();
+    }
+
+    private void closeLocked(Connection connection) {
+        connection.close();
+        mConnectionCount--;
+    }
+
+    /**
+     * Closes connections idle past the keep-alive. Returns the nanoseconds until the next idle
+     * connection expires, or -1 if none is idle.
+     */
+    private long evictIdleLocked(long now) {
+        long next = -1;
+        Iterator<Connection> iterator = mIdle.descendingIterator();
+        while (iterator.hasNext()) {
+            Connection connection = iterator.next();
+            long expiresIn = connection.mIdleSince + mKeepAliveNanos - now;
+            if (expiresIn <= 0) {
+                iterator.remove();
+                closeLocked(connection);
+            } else if (next < 0 || expiresIn < next) {
+                next = expiresIn;
+            }
+        }
+        return next;
+    }
+
+    private void startCleanupIfNeeded() {
+        if (mCleanupRunning) {
+            return;
+        }
+        mCleanupRunning = true;
+        Thread cleanup =
+                new Thread("HanntoSocketCleanup") {
+                    @Override
+                    public void run() {
+                        runCleanup();
+                    }
+                };
+        cleanup.setDaemon(true);
+        cleanup.start();
+    }
+
+    /** Evicts idle connections as they expire; exits once none is idle. */
+    private synchronized void runCleanup() {
+        try {
+            while (true) {
+                long next = evictIdleLocked(System.nanoTime());
+                if (next < 0) {
+                    return;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, next);
+            }
+        } catch (InterruptedException e) {
+            // Exit; the next release starts another.
+        } finally {
+            mCleanupRunning = false;
+        }
+    }
+
+    /**
+     * A response body read straight from its connection. Each read must make progress within the
+     * request's timeout; the body as a whole may take longer. Closing it returns the connection to
+     * the pool if the body was read to the end, and closes it otherwise.
+     */
+    private class BodyStream extends InputStream {
+        private final Connection mConnection;
+        private final HanntoRequest<?> mRequest;
+        private final Abort mAbort;
+        private final long mReadTimeoutNanos;
+        private long mRemaining;
+        private boolean mClosed = false;
+
+        BodyStream(
+                Connection connection,
+                HanntoRequest<?> request,
+                Abort abort,
+                long length,
+                int readTimeoutMs) {
+            mConnection = connection;
+            mRequest = request;
+            mAbort = abort;
+            mRemaining = length;
+            mReadTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(readTimeoutMs);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mClosed) {
+                throw new IOException("Stream closed");
+            }
+            if (length == 0) {
+                return 0;
+            }
+            if (mRemaining == 0) {
+                return -1;
+            }
+            ByteBuffer target =
+                    ByteBuffer.wrap(buffer, offset, (int) Math.min(length, mRemaining));
+            try {
+                int read = mConnection.readSome(target, System.nanoTime() + mReadTimeoutNanos);
+                mRemaining -= read;
+                return read;
+            } catch (IOException e) {
+                mClosed = true;
+                mRequest.setAbortHandle(null);
+                mAbort.finish();
+                release(mConnection, false);
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!mClosed) {
+                mClosed = true;
+                mRequest.setAbortHandle(null);
+                release(mConnection, mAbort.finish() && mRemaining == 0);
+            }
+        }
+    }
+
+    /**
+     * Aborts one request's wait for a connection or use of one, until that use is done. An
+     * aborted connection is closed rather than returned to the pool.
+     */
+    private class Abort implements HanntoRequest.AbortHandle {
+        private Connection mConnection;
+        private boolean mDone = false;
+        private boolean mAborted = false;
+
+        @Override
+        public void abort() {
+            synchronized (this) {
+                if (mDone) {
+                    return;
+                }
+                mAborted = true;
+                if (mConnection != null) {
+                    mConnection.abort();
+                }
+            }
+            // Wake a wait for a connection; outside the lock above, which acquire() takes second.
+            synchronized (HanntoSocketStack.this) {
+                HanntoSocketStack.this.notifyAll();
+            }
+        }
+
+        synchronized boolean isAborted() {
+            return mAborted;
+        }
+
+        /** Binds the connection to abort. Returns false if already aborted. */
+        synchronized boolean attach(Connection connection) {
+            if (mAborted) {
+                return false;
+            }
+            mConnection = connection;
+            return true;
+        }
+
+        /** Ends the use. Returns false if it was aborted, leaving the connection unusable. */
+        synchronized boolean finish() {
+            mDone = true;
+            return !mAborted;
+        }
+    }
+
+    /** A non-blocking channel with its own selector for waiting out deadlines. */
+    private static class Connection {
+        private final SocketChannel mChannel;
+        private final Selector mSelector;
+        private final ByteBuffer mProbe = ByteBuffer.allocate(1);
+
+        /** When this connection was last returned to the pool. Guarded by the pool. */
+        long mIdleSince;
+
+        /** Set once a request using this connection is canceled. */
+        private volatile boolean mAborted = false;
+
+        private Connection(SocketChannel channel, Selector selector) {
+            mChannel = channel;
+            mSelector = selector;
+        }
+
+        /** Opens an unconnected channel; see {@link #connect}. */
+        static Connection open() throws IOException {
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                return new Connection(channel, Selector.open());
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /** Connects the channel, failing past the deadline or once aborted. */
+        void connect(InetSocketAddress address, long deadline) throws IOException {
+            if (!mChannel.connect(address)) {
+                while (!mChannel.finishConnect()) {
+                    await(SelectionKey.OP_CONNECT, deadline);
+                }
+            }
+        }
+
+        void write(ByteBuffer buffer, long deadline) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (mChannel.write(buffer) == 0) {
+                    await(SelectionKey.OP_WRITE, deadline);
+                }
+            }
+        }
+
+        /**
+         * Writes a whole request body from its beginning. File regions go straight from the file
+         * to the socket.
+         */
+        void write(HanntoRequestBody body, long deadline) throws IOException {
+            HanntoRequestBody.Writer writer = body.newWriter();
+            try {
+                while (!writer.writeTo(mChannel)) {
+                    await(SelectionKey.OP_WRITE, deadline);
+                }
+            } finally {
+                writer.close();
+            }
+        }
+
+        /** Reads at least one byte into the buffer, which must have room. */
+        int readSome(ByteBuffer buffer, long deadline) throws IOException {
+            while (true) {
+                int read = mChannel.read(buffer);
+                if (read < 0) {
+                    throw new EOFException();
+                } else if (read > 0) {
+                    return read;
+                }
+                await(SelectionKey.OP_READ, deadline);
+            }
+        }
+
+        void read(ByteBuffer buffer, long deadline) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = mChannel.read(buffer);
+                if (read < 0) {
+                    throw new EOFException();
+                } else if (read == 0) {
+                    await(SelectionKey.OP_READ, deadline);
+                }
+            }
+        }
+
+        /**
+         * Makes a pending or later {@link #await} fail, so the request using this connection gives
+         * it up promptly. Safe to call from any thread.
+         */
+        void abort() {
+            mAborted = true;
+            mSelector.wakeup();
+        }
+
+        /**
+         * Waits until the channel is ready for the operation, or throws past the deadline or once
+         * aborted.
+         */
+        private void await(int op, long deadline) throws IOException {
+            if (mAborted) {
+                throw new IOException("Request canceled");
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new SocketTimeoutException();
+            }
+            SelectionKey key = mChannel.register(mSelector, op);
+            int ready;
+            try {
+                // Round up so the last partial millisecond is waited out too.
+                ready = mSelector.select((remaining + 999999) / 1000000);
+                mSelector.selectedKeys().clear();
+            } finally {
+                key.interestOps(0);
+            }
+            if (mAborted) {
+                throw new IOException("Request canceled");
+            }
+            if (ready == 0 && deadline - System.nanoTime() <= 0) {
+                throw new SocketTimeoutException();
+            }
+        }
+
+        /**
+         * Returns true if the peer has neither closed the connection nor sent anything while it
+         * sat idle; either would leave the next response unreadable.
+         */
+        boolean isHealthy() {
+            if (!mChannel.isOpen()) {
+                return false;
+            }
+            try {
+                mProbe.clear();
+                return mChannel.read(mProbe) == 0;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // Ignored.
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                // Ignored.
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.hannto.io.toolbox;
+
+import com.hannto.io.HanntoNetworkResponse;
+import com.hannto.io.HanntoRequest;
+import com.hannto.io.HanntoResponse;
+import com.hannto.io.HanntoSpool;
+
+/**
+ * A request whose response body goes to a {@link HanntoSpool} when it is larger than the spool's
+ * threshold, and stays in memory otherwise, for transfers such as scan-to-file and device log
+ * pulls. The listener gets a {@link Body} saying where the body ended up.
+ */
+public class HanntoSpoolingRequest extends HanntoRequest<HanntoSpoolingRequest.Body> {
+
+    /** Where a response body ended up. */
+    public static class Body {
+        /** The body if it was kept in memory, or null if it was spooled. */
+        public final byte[] data;
+
+        /** The spool holding the body, or null if it was kept in memory. */
+        public final HanntoSpool spool;
+
+        /** The length of the body in bytes. */
+        public final long length;
+
+        Body(byte[] data, HanntoSpool spool, long length) {
+            this.data = data;
+            this.spool = spool;
+            this.length = length;
+        }
+
+        /** Returns true if the body was written to the spool. */
+        public boolean isSpooled() {
+            return spool != null;
+        }
+    }
+
+    /** Lock to guard mListener as it is cleared on cancel() and read on delivery. */
+    private final Object mLock = new Object();
+
+    // Guarded by mLock.
+    private HanntoResponse.Listener<Body> mListener;
+
+    public HanntoSpoolingRequest(
+            byte[] data,
+            HanntoSpool spool,
+            HanntoResponse.Listener<Body> listener,
+            HanntoResponse.ErrorListener errorListener) {
+        super(data, errorListener);
+        setSpool(spool);
+        mListener = listener;
+    }
+
+    @Override
+    public void cancel() {
+        super.cancel();
+        synchronized (mLock) {
+            mListener = null;
+        }
+    }
+
+    @Override
+    protected HanntoResponse<Body> parseNetworkResponse(HanntoNetworkResponse response) {
+        if (response.spool != null) {
+            return HanntoResponse.success(
+                    new Body(null, response.spool, response.contentLength));
+        }
+        byte[] data = response.getData() != null ? response.getData() : new byte[0];
+        return HanntoResponse.success(new Body(data, null, data.length), parseCacheEntry(response));
+    }
+
+    @Override
+    protected void deliverResponse(Body response) {
+        HanntoResponse.Listener<Body> listener;
+        synchronized (mLock) {
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onResponse(response);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.hannto.io.toolbox;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+public class RawResponse {
+
+    /** Body as an array, or null until {@link #getmData()} copies it out of mBody. */
+    // Guarded by this once constructed.
+    private byte[] mData;
+
+    /** Body as a buffer, or null if the body is streamed or absent. */
+    private final ByteBuffer mBody;
+
+    /** Streamed body, or null if the body is in mBody. */
+    private final InputStream mContent;
+
+    private final long mContentLength;
+
+    /** Lease on the buffer behind mBody, or null if the body is not pooled. */
+    // Guarded by this.
+    private HanntoByteArrayPool.Lease mLease;
+
+    public RawResponse(byte[] mData) {
+        this.mData = mData;
+        this.mBody = mData != null ? ByteBuffer.wrap(mData) : null;
+        this.mContent = null;
+        this.mContentLength = mData != null ? mData.length : 0;
+    }
+
+    /**
+     * Creates a response backed by a buffer, which may be on the heap, direct or mapped, so that
+     * the body reaches the request without being copied.
+     *
+     * @param body Body of the response, from its position to its limit. It must not be changed
+     *     afterwards.
+     */
+    public RawResponse(ByteBuffer body) {
+        this.mBody = body.slice();
+        this.mData = wholeArray(mBody);
+        this.mContent = null;
+        this.mContentLength = mBody.remaining();
+    }
+
+    /**
+     * Creates a response backed by a buffer leased from a {@link HanntoByteArrayPool}. The body is
+     * only valid until {@link #release()}; {@link #getmData()} returns a copy.
+     *
+     * @param body Body of the response, from its position to its limit, inside the leased buffer
+     * @param lease Lease to release once the body has been consumed
+     */
+    public RawResponse(ByteBuffer body, HanntoByteArrayPool.Lease lease) {
+        this.mBody = body.slice();
+        this.mData = null;
+        this.mContent = null;
+        this.mContentLength = mBody.remaining();
+        this.mLease = lease;
+    }
+
+    /**
+     * Creates a response whose body is still arriving, for a streaming request.
+     *
+     * @param content Body of the response; closing it releases the underlying connection
+     * @param contentLength Body length in bytes, or -1 if unknown
+     */
+    public RawResponse(InputStream content, long contentLength) {
+        this.mData = null;
+        this.mBody = null;
+        this.mContent = content;
+        this.mContentLength = contentLength;
+    }
+
+    /**
+     * Returns the body, or null if it is streamed. A body backed by a buffer that is not a whole
+     * array is copied out on the first call; prefer {@link #getBody()}.
+     */
+    public synchronized byte[] getmData() {
+        if (mData == null && mBody != null) {
+            mData = new byte[mBody.remaining()];
+            mBody.duplicate().get(mData);
+        }
+        return mData;
+    }
+
+    /**
+     * Returns a read-only view of the body, or null if it is streamed. Each call returns a new
+     * view with its own position, so callers may consume it freely.
+     */
+    public ByteBuffer getBody() {
+        return mBody != null ? mBody.asReadOnlyBuffer() : null;
+    }
+
+    /** Returns whether the body is in a pooled buffer that must be {@link #release() released}. */
+    public synchronized boolean isPooled() {
+        return mLease != null;
+    }
+
+    /**
+     * Returns a pooled body's buffer to its pool. The body must not be read afterwards. Does
+     * nothing for other bodies, or if already released.
+     */
+    public void release() {
+        HanntoByteArrayPool.Lease lease;
+        synchronized (this) {
+            lease = mLease;
+            mLease = null;
+        }
+        if (lease != null) {
+            lease.release();
+        }
+    }
+
+    /** Returns the streamed body, or null if the body is in {@link #getBody()}. */
+    public InputStream getContent() {
+        return mContent;
+    }
+
+    /** Returns the body length in bytes, or -1 if unknown. */
+    public long getContentLength() {
+        return mContentLength;
+    }
+
+    /** Returns the array behind the buffer if the buffer spans all of it, or null. */
+    private static byte[] wholeArray(ByteBuffer buffer) {
+        if (buffer.hasArray()
+                && buffer.arrayOffset() == 0
+                && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,80 @@
+package com.hannto.io;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HanntoEventLogTest {
+
+    @After
+    public void tearDown() {
+        HanntoEventLog.disable();
+    }
+
+    @Test
+    public void keepsTheNewestEventsOfEachThread() throws Exception {
+        HanntoEventLog.record(1, "before-enable");
+        HanntoEventLog.enable(3);
+        for (int i = 0; i < 10; i++) {
+            HanntoEventLog.record(1, "main-" + i);
+        }
+        Thread other =
+                new Thread("other") {
+                    @Override
+                    public void run() {
+                        HanntoEventLog.record(2, "other-0");
+                    }
+                };
+        other.start();
+        other.join();
+
+        List<HanntoEventLog.Event> events = HanntoEventLog.snapshot();
+        assertEquals(4, events.size());
+        assertEquals("main-7", events.get(0).marker);
+        assertEquals("main-9", events.get(2).marker);
+        assertEquals("other-0", events.get(3).marker);
+        assertEquals("other", events.get(3).threadName);
+        assertEquals(2, events.get(3).requestId);
+
+        HanntoEventLog.disable();
+        HanntoEventLog.record(1, "after-disable");
+        assertTrue(HanntoEventLog.snapshot().isEmpty());
+    }
+
+    @Test
+    public void exitedThreadsDoNotKeepTheirRings() throws Exception {
+        HanntoEventLog.enable(3);
+        for (int i = 0; i < 5; i++) {
+            final int id = i;
+            Thread retired =
+                    new Thread("retired-" + i) {
+                        @Override
+                        public void run() {
+                            HanntoEventLog.record(id, "event");
+                        }
+                    };
+            retired.start();
+            retired.join();
+        }
+        // Each thread drops the rings of the ones that exited before it.
+        assertEquals(1, HanntoEventLog.ringCount());
+        assertEquals("retired-4", HanntoEventLog.snapshot().get(0).threadName);
+    }
+
+    @Test
+    public void requestsRecordTheirLifecycle() throws Exception {
+        HanntoEventLog.enable();
+        TestRequest request = new TestRequest(HanntoRequest.Priority.NORMAL, 0);
+        request.addMarker("network-queue-take");
+        request.finish("done");
+
+        List<HanntoEventLog.Event> events = HanntoEventLog.snapshot();
+        assertEquals(2, events.size());
+        assertEquals(request.getTraceId(), events.get(1).requestId);
+        assertEquals("done", events.get(1).marker);
+        assertTrue(events.get(0).timeNanos <= events.get(1).timeNanos);
+    }
+}
@@ -0,0 +1,98 @@
+package com.hannto.io;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HanntoFairQueueTest {
+
+    private static class FakeClock implements HanntoClock {
+        long now;
+
+        @Override
+        public long elapsedRealtime() {
+            return now;
+        }
+    }
+
+    private static TestRequest request(HanntoRequest.Priority priority, Object tag) {
+        TestRequest request = new TestRequest(priority, 0);
+        request.setTag(tag);
+        return request;
+    }
+
+    @Test
+    public void tagsTakeTurnsInProportionToWeight() throws Exception {
+        HanntoFairQueue queue = new HanntoFairQueue(0);
+        queue.setWeight("ui", 2);
+        List<HanntoRequest> bulk = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            bulk.add(request(HanntoRequest.Priority.NORMAL, "bulk"));
+            queue.add(bulk.get(i));
+        }
+        List<HanntoRequest> ui = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            ui.add(request(HanntoRequest.Priority.NORMAL, "ui"));
+            queue.add(ui.get(i));
+        }
+        assertEquals(2, queue.flowCount());
+
+        List<HanntoRequest> taken = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            taken.add(queue.take());
+        }
+        assertEquals(
+                Arrays.asList(
+                        bulk.get(0), ui.get(0), ui.get(1), bulk.get(1),
+                        ui.get(2), ui.get(3), bulk.get(2), bulk.get(3)),
+                taken);
+        assertEquals(0, queue.flowCount());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void waitingRequestsArePromotedOverSteadyHighPriorityTraffic() {
+        FakeClock clock = new FakeClock();
+        HanntoFairQueue queue = new HanntoFairQueue(100, clock);
+        TestRequest low = request(HanntoRequest.Priority.LOW, null);
+        queue.add(low);
+
+        clock.now = 100;
+        TestRequest high1 = request(HanntoRequest.Priority.HIGH, null);
+        queue.add(high1);
+        assertSame(high1, queue.poll());
+
+        // After two intervals the low request has reached HIGH and is older than new arrivals.
+        clock.now = 200;
+        TestRequest high2 = request(HanntoRequest.Priority.HIGH, null);
+        queue.add(high2);
+        assertSame(low, queue.peek());
+        assertSame(low, queue.poll());
+        assertSame(high2, queue.poll());
+    }
+
+    @Test
+    public void removeKeepsSizeConsistent() {
+        HanntoFairQueue queue = new HanntoFairQueue();
+        TestRequest first = request(HanntoRequest.Priority.NORMAL, "a");
+        TestRequest second = request(HanntoRequest.Priority.HIGH, "b");
+        queue.add(first);
+        queue.add(second);
+
+        first.setTag("c");
+        assertTrue(queue.remove(first));
+        assertFalse(queue.remove(first));
+        assertEquals(1, queue.size());
+        assertEquals(1, queue.flowCount());
+
+        List<HanntoRequest> drained = new ArrayList<>();
+        assertEquals(1, queue.drainTo(drained));
+        assertSame(second, drained.get(0));
+        assertEquals(0, queue.size());
+    }
+}
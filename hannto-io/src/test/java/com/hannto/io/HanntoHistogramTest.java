@@ -0,0 +1,53 @@
+package com.hannto.io;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HanntoHistogramTest {
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() {
+        HanntoHistogram histogram = new HanntoHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        HanntoHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1, snapshot.getMin());
+        assertEquals(1000, snapshot.getMax());
+        assertEquals(500.5, snapshot.getMean(), 0.001);
+        assertWithin(500, snapshot.getValueAtPercentile(50));
+        assertWithin(990, snapshot.getValueAtPercentile(99));
+        assertEquals(1000, snapshot.getValueAtPercentile(100));
+
+        long total = 0;
+        for (int i = 0; i < snapshot.getBucketCount(); i++) {
+            total += snapshot.getCountInBucket(i);
+            if (i > 0) {
+                assertTrue(snapshot.getBucketUpperBound(i) > snapshot.getBucketUpperBound(i - 1));
+            }
+        }
+        assertEquals(1000, total);
+    }
+
+    @Test
+    public void outOfRangeValuesAreClamped() {
+        HanntoHistogram histogram = new HanntoHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        HanntoHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(0, snapshot.getMin());
+        assertEquals(HanntoHistogram.MAX_VALUE, snapshot.getMax());
+        assertEquals(
+                HanntoHistogram.MAX_VALUE,
+                snapshot.getBucketUpperBound(snapshot.getBucketCount() - 1));
+        assertEquals(0, new HanntoHistogram().snapshot().getValueAtPercentile(50));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(
+                "expected ~" + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected / HanntoHistogram.SUB_BUCKETS);
+    }
+}
@@ -0,0 +1,92 @@
+package com.hannto.io;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.*;
+
+public class HanntoNetworkResponseTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static final byte[] BODY = {1, 2, 3, 4, 5};
+
+    /** Checks that a response exposes the body {2, 3, 4} through both accessors. */
+    private static void assertMiddleOfBody(HanntoNetworkResponse response) {
+        ByteBuffer body = response.getBody();
+        assertTrue(body.isReadOnly());
+        assertEquals(3, body.remaining());
+        assertEquals(2, body.get());
+        // Each view has its own position.
+        assertEquals(3, response.getBody().remaining());
+        assertEquals(3, response.contentLength);
+        byte[] data = response.getData();
+        assertArrayEquals(new byte[] {2, 3, 4}, data);
+        // The copy is made once.
+        assertSame(data, response.getData());
+    }
+
+    @Test
+    public void heapBodyIsSharedWithData() {
+        HanntoNetworkResponse response = new HanntoNetworkResponse(BODY, 0);
+        assertSame(BODY, response.getData());
+        assertEquals(BODY.length, response.getBody().remaining());
+
+        ByteBuffer slice = ByteBuffer.wrap(BODY, 1, 3);
+        assertMiddleOfBody(new HanntoNetworkResponse(slice, 0));
+    }
+
+    @Test
+    public void directBodyIsCopiedOutOnDemand() {
+        ByteBuffer direct = ByteBuffer.allocateDirect(BODY.length);
+        direct.put(BODY).flip();
+        direct.position(1).limit(4);
+        assertMiddleOfBody(new HanntoNetworkResponse(direct, 0));
+    }
+
+    @Test
+    public void mappedBodyIsCopiedOutOnDemand() throws Exception {
+        File file = temporaryFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(BODY);
+        } finally {
+            out.close();
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer mapped =
+                    raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 1, 3);
+            assertMiddleOfBody(new HanntoNetworkResponse(mapped, 0));
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void pooledBodyIsReleasedOnce() {
+        final int[] releases = new int[1];
+        HanntoNetworkResponse response =
+                new HanntoNetworkResponse(
+                        ByteBuffer.wrap(BODY, 1, 3),
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                releases[0]++;
+                            }
+                        },
+                        0);
+        assertMiddleOfBody(response);
+        response.release();
+        response.release();
+        assertEquals(1, releases[0]);
+    }
+}
@@ -0,0 +1,87 @@
+package com.hannto.io;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HanntoPriorityLaneQueueTest {
+
+    @Test
+    public void takesHigherPrioritiesFirstAndFifoWithinPriority() throws Exception {
+        HanntoPriorityLaneQueue queue = new HanntoPriorityLaneQueue();
+        TestRequest low1 = new TestRequest(HanntoRequest.Priority.LOW, 1);
+        TestRequest normal2 = new TestRequest(HanntoRequest.Priority.NORMAL, 2);
+        TestRequest immediate3 = new TestRequest(HanntoRequest.Priority.IMMEDIATE, 3);
+        TestRequest normal4 = new TestRequest(HanntoRequest.Priority.NORMAL, 4);
+        TestRequest high5 = new TestRequest(HanntoRequest.Priority.HIGH, 5);
+        queue.add(low1);
+        queue.add(normal2);
+        queue.add(immediate3);
+        queue.add(normal4);
+        queue.add(high5);
+
+        assertEquals(5, queue.size());
+        assertSame(immediate3, queue.peek());
+        assertSame(immediate3, queue.take());
+        assertSame(high5, queue.take());
+        assertSame(normal2, queue.take());
+        assertSame(normal4, queue.take());
+        assertSame(low1, queue.take());
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void removeAndDrainKeepSizeConsistent() {
+        HanntoPriorityLaneQueue queue = new HanntoPriorityLaneQueue();
+        TestRequest normal = new TestRequest(HanntoRequest.Priority.NORMAL, 1);
+        TestRequest high = new TestRequest(HanntoRequest.Priority.HIGH, 2);
+        queue.add(normal);
+        queue.add(high);
+
+        assertTrue(queue.remove(normal));
+        assertFalse(queue.remove(normal));
+        assertEquals(1, queue.size());
+
+        List<HanntoRequest> drained = new ArrayList<>();
+        assertEquals(1, queue.drainTo(drained));
+        assertSame(high, drained.get(0));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void parkedConsumersAreWokenByProducers() throws Exception {
+        final HanntoPriorityLaneQueue queue = new HanntoPriorityLaneQueue();
+        final int consumers = 4;
+        final int perConsumer = 1000;
+        final CountDownLatch taken = new CountDownLatch(consumers * perConsumer);
+        for (int c = 0; c < consumers; c++) {
+            Thread consumer =
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                for (int i = 0; i < perConsumer; i++) {
+                                    queue.take();
+                                    taken.countDown();
+                                }
+                            } catch (InterruptedException e) {
+                                // Test is over.
+                            }
+                        }
+                    };
+            consumer.setDaemon(true);
+            consumer.start();
+        }
+        for (int i = 0; i < consumers * perConsumer; i++) {
+            queue.add(new TestRequest(HanntoRequest.Priority.values()[i & 3], i));
+        }
+        assertTrue(taken.await(10, TimeUnit.SECONDS));
+        assertTrue(queue.isEmpty());
+    }
+}
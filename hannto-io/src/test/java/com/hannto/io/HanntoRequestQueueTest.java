@@ -0,0 +1,881 @@
+package com.hannto.io;
+
+import com.hannto.io.toolbox.HanntoAsyncStack;
+import com.hannto.io.toolbox.HanntoBasicNetwork;
+import com.hannto.io.toolbox.HanntoDownloadRequest;
+import com.hannto.io.toolbox.HanntoMemoryCache;
+import com.hannto.io.toolbox.HanntoSpoolingRequest;
+import com.hannto.io.toolbox.RawResponse;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HanntoRequestQueueTest {
+
+    private static final Executor DIRECT =
+            new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    command.run();
+                }
+            };
+
+    /** A network that blocks every request until released. */
+    private static class BlockingNetwork implements HanntoNetwork {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<HanntoRequest<?>> performed = new CopyOnWriteArrayList<>();
+
+        @Override
+        public HanntoNetworkResponse performRequest(HanntoRequest<?> request) throws HanntoError {
+            performed.add(request);
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new HanntoError(e);
+            }
+            return new HanntoNetworkResponse(new byte[0], 0);
+        }
+    }
+
+    private static void awaitPoolSize(HanntoRequestQueue queue, int size) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.getDispatcherPoolSize() != size) {
+            assertTrue(
+                    "pool size " + queue.getDispatcherPoolSize() + ", expected " + size,
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void elasticPoolGrowsUnderLoadAndShrinksWhenIdle() throws Exception {
+        BlockingNetwork network = new BlockingNetwork();
+        HanntoRequestQueue queue =
+                new HanntoRequestQueue(
+                        network,
+                        new HanntoElasticPolicy(0, 3, 50, 1, 1000),
+                        new HanntoExecutorDelivery(DIRECT),
+                        new HanntoPriorityLaneQueue());
+        queue.start();
+        assertEquals(0, queue.getDispatcherPoolSize());
+
+        for (int i = 0; i < 6; i++) {
+            queue.add(new TestRequest(HanntoRequest.Priority.NORMAL, 0));
+            Thread.sleep(20);
+        }
+        awaitPoolSize(queue, 3);
+
+        network.release.countDown();
+        awaitPoolSize(queue, 0);
+        queue.stop();
+    }
+
+    /** Answers every request 50ms later from a timer thread; the first attempt times out. */
+    private static class DelayedAsyncStack implements HanntoAsyncStack {
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        final AtomicInteger attempts = new AtomicInteger();
+
+        @Override
+        public RawResponse executeRequest(HanntoRequest<?> request) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void executeRequestAsync(HanntoRequest<?> request, final Callback callback) {
+            final boolean fail = attempts.getAndIncrement() == 0;
+            timer.schedule(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            if (fail) {
+                                callback.onFailure(new SocketTimeoutException());
+                            } else {
+                                callback.onResponse(new RawResponse(new byte[] {1}));
+                            }
+                        }
+                    },
+                    50,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void asyncDispatcherKeepsManyRequestsInFlight() throws Exception {
+        DelayedAsyncStack stack = new DelayedAsyncStack();
+        HanntoRequestQueue queue =
+                new HanntoRequestQueue(
+                        new HanntoBasicNetwork(stack),
+                        1,
+                        100,
+                        new HanntoExecutorDelivery(DIRECT),
+                        new HanntoPriorityLaneQueue());
+        queue.start();
+        final int count = 100;
+        final CountDownLatch delivered = new CountDownLatch(count);
+        queue.addRequestFinishedListener(
+                new HanntoRequestQueue.RequestFinishedListener<Object>() {
+                    @Override
+                    public void onRequestFinished(HanntoRequest<Object> request) {
+                        delivered.countDown();
+                    }
+                });
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            queue.add(new TestRequest(HanntoRequest.Priority.NORMAL, 0));
+        }
+        // One dispatcher blocking on each request would need at least 100 * 50ms.
+        assertTrue(delivered.await(2, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        // The one timed-out attempt was retried.
+        assertEquals(count + 1, stack.attempts.get());
+        queue.stop();
+        stack.timer.shutdownNow();
+    }
+
+    @Test
+    public void coalescedRequestsShareOneNetworkCall() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final BlockingNetwork blocking = new BlockingNetwork();
+        HanntoNetwork network =
+                new HanntoNetwork() {
+                    @Override
+                    public HanntoNetworkResponse performRequest(HanntoRequest<?> request)
+                            throws HanntoError {
+                        calls.incrementAndGet();
+                        return blocking.performRequest(request);
+                    }
+                };
+        HanntoRequestQueue queue =
+                new HanntoRequestQueue(
+                        network, 4, new HanntoExecutorDelivery(DIRECT), new HanntoPriorityLaneQueue());
+        queue.setCoalescing(true);
+        queue.start();
+        final CountDownLatch finished = new CountDownLatch(6);
+        queue.addRequestFinishedListener(
+                new HanntoRequestQueue.RequestFinishedListener<Object>() {
+                    @Override
+                    public void onRequestFinished(HanntoRequest<Object> request) {
+                        finished.countDown();
+                    }
+                });
+        for (int i = 0; i < 5; i++) {
+            queue.add(new TestRequest(HanntoRequest.Priority.NORMAL, 0));
+        }
+        TestRequest command = new TestRequest(HanntoRequest.Priority.NORMAL, 0);
+        command.setShouldCoalesce(false);
+        queue.add(command);
+        Thread.sleep(50);
+        blocking.release.countDown();
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(2, calls.get());
+        queue.stop();
+    }
+
+    /** A request that reads the first byte of its body while it is delivered. */
+    private static class ViewRequest extends HanntoRequest<ByteBuffer> {
+        final List<Byte> delivered = new CopyOnWriteArrayList<>();
+
+        ViewRequest() {
+            super(new byte[] {1}, null);
+        }
+
+        @Override
+        protected HanntoResponse<ByteBuffer> parseNetworkResponse(HanntoNetworkResponse response) {
+            return HanntoResponse.success(response.getBody());
+        }
+
+        @Override
+        protected void deliverResponse(ByteBuffer response) {
+            delivered.add(response.get(0));
+        }
+    }
+
+    @Test
+    public void coalescedRequestsKeepAPooledBodyUntilDelivered() throws Exception {
+        final byte[] pooled = {7, 7, 7};
+        final AtomicInteger releases = new AtomicInteger();
+        final BlockingNetwork blocking = new BlockingNetwork();
+        HanntoNetwork network =
+                new HanntoNetwork() {
+                    @Override
+                    public HanntoNetworkResponse performRequest(HanntoRequest<?> request)
+                            throws HanntoError {
+                        blocking.performRequest(request);
+                        return new HanntoNetworkResponse(
+                                ByteBuffer.wrap(pooled),
+                                new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        // Stands in for the buffer being leased again.
+                                        java.util.Arrays.fill(pooled, (byte) 0);
+                                        releases.incrementAndGet();
+                                    }
+                                },
+                                0);
+                    }
+                };
+        ExecutorService deliveryThread = Executors.newSingleThreadExecutor();
+        HanntoRequestQueue queue =
+                new HanntoRequestQueue(
+                        network,
+                        1,
+                        new HanntoExecutorDelivery(deliveryThread),
+                        new HanntoPriorityLaneQueue());
+        queue.setCoalescing(true);
+        final CountDownLatch finished = new CountDownLatch(2);
+        queue.addRequestFinishedListener(
+                new HanntoRequestQueue.RequestFinishedListener<Object>() {
+                    @Override
+                    public void onRequestFinished(HanntoRequest<Object> request) {
+                        finished.countDown();
+                    }
+                });
+        queue.start();
+        ViewRequest leader = new ViewRequest();
+        ViewRequest waiter = new ViewRequest();
+        queue.add(leader);
+        queue.add(waiter);
+        blocking.release.countDown();
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(java.util.Arrays.asList((byte) 7), leader.delivered);
+        assertEquals(java.util.Arrays.asList((byte) 7), waiter.delivered);
+        assertEquals(1, releases.get());
+        queue.stop();
+        deliveryThread.shutdown();
+    }
+
+    @Test
+    public void laneRequestsDoNotWaitBehindTheMainPool() throws Exception {
+        final BlockingNetwork blocking = new BlockingNetwork();
+        HanntoNetwork network =
+                new HanntoNetwork() {
+                    @Override
+                    public HanntoNetworkResponse performRequest(HanntoRequest<?> request)
+                            throws HanntoError {
+                        if (request.getLane() == null) {
+                            return blocking.performRequest(request);
+                        }
+                        return new HanntoNetworkResponse(new byte[0], 0);
+                    }
+                };
+        HanntoRequestQueue queue =
+                new HanntoRequestQueue(
+                        network, 1, new HanntoExecutorDelivery(DIRECT), new HanntoPriorityLaneQueue());
+        queue.addLane(new HanntoLane("control", 1, 1));
+        queue.start();
+        final List<HanntoRequest<?>> finished = new CopyOnWriteArrayList<>();
+        queue.addRequestFinishedListener(
+                new HanntoRequestQueue.RequestFinishedListener<Object>() {
+                    @Override
+                    public void onRequestFinished(HanntoRequest<Object> request) {
+                        finished.add(request);
+                    }
+                });
+        TestRequest bulk = new TestRequest(HanntoRequest.Priority.NORMAL, 0);
+        queue.add(bulk);
+        TestRequest command = new TestRequest(HanntoRequest.Priority.NORMAL, 0);
+        command.setLane("control");
+        queue.add(command);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!finished.contains(command)) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertFalse(finished.contains(bulk));
+
+        try {
+            queue.add(new TestRequest(HanntoRequest.Priority.NORMAL, 0).setLane("bulk"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        blocking.release.countDown();
+        queue.stop();
+    }
+
+    /** A request that records the errors delivered to it. */
+    private static class RecordingRequest extends TestRequest {
+        final List<HanntoError> errors = new CopyOnWriteArrayList<>();
+
+        RecordingRequest(HanntoRequest.Priority priority, Object tag) {
+            super(priority, 0);
+            setTag(tag);
+        }
+
+        @Override
+        public void deliverError(HanntoError error) {
+            errors.add(error);
+        }
+    }
+
+    private static HanntoRequestQueue boundedQueue(HanntoAdmissionPolicy policy) {
+        // Never started, so admitted requests stay queued.
+        HanntoRequestQueue queue =
+                new HanntoRequestQueue(
+                        new BlockingNetwork(),
+                        1,
+                        new HanntoExecutorDelivery(DIRECT),
+                        new HanntoPriorityLaneQueue());
+        queue.setAdmissionPolicy(policy);
+        return queue;
+    }
+
+    @Test
+    public void admissionPolicyRejectsOrEvictsWhenFull() throws Exception {
+        HanntoRequestQueue rejecting =
+                boundedQueue(
+                        new HanntoAdmissionPolicy(
+                                2, 1024, HanntoAdmissionPolicy.Overflow.REJECT));
+        rejecting.add(new RecordingRequest(HanntoRequest.Priority.NORMAL, null));
+        rejecting.add(new RecordingRequest(HanntoRequest.Priority.NORMAL, null));
+        RecordingRequest refused = new RecordingRequest(HanntoRequest.Priority.HIGH, null);
+        rejecting.add(refused);
+        assertTrue(refused.errors.get(0) instanceof QueueFullError);
+        RecordingRequest tried = new RecordingRequest(HanntoRequest.Priority.HIGH, null);
+        assertFalse(rejecting.tryAdd(tried));
+        assertTrue(tried.errors.isEmpty());
+
+        HanntoRequestQueue dropping =
+                boundedQueue(
+                        new HanntoAdmissionPolicy(
+                                2, 1024, HanntoAdmissionPolicy.Overflow.DROP_OLDEST_LOW));
+        RecordingRequest low = new RecordingRequest(HanntoRequest.Priority.LOW, null);
+        dropping.add(low);
+        dropping.add(new RecordingRequest(HanntoRequest.Priority.NORMAL, null));
+        RecordingRequest admitted = new RecordingRequest(HanntoRequest.Priority.NORMAL, null);
+        assertTrue(dropping.tryAdd(admitted));
+        assertTrue(low.errors.get(0) instanceof QueueFullError);
+        RecordingRequest noRoom = new RecordingRequest(HanntoRequest.Priority.NORMAL, null);
+        dropping.add(noRoom);
+        assertTrue(noRoom.errors.get(0) instanceof QueueFullError);
+
+        HanntoRequestQueue shedding =
+                boundedQueue(
+                        new HanntoAdmissionPolicy(
+                                3, 1024, HanntoAdmissionPolicy.Overflow.SHED_BY_TAG));
+        RecordingRequest noisy1 = new RecordingRequest(HanntoRequest.Priority.HIGH, "noisy");
+        RecordingRequest quiet = new RecordingRequest(HanntoRequest.Priority.HIGH, "quiet");
+        RecordingRequest noisy2 = new RecordingRequest(HanntoRequest.Priority.HIGH, "noisy");
+        shedding.add(quiet);
+        shedding.add(noisy1);
+        shedding.add(noisy2);
+        shedding.add(new RecordingRequest(HanntoRequest.Priority.HIGH, "quiet"));
+        assertEquals(1, noisy1.errors.size());
+        assertTrue(quiet.errors.isEmpty());
+        assertTrue(noisy2.errors.isEmpty());
+    }
+
+    @Test
+    public void evictionSparesSentRequestsAndEvictedOnesAreNeverSent() throws Exception {
+        BlockingNetwork network = new BlockingNetwork();
+        HanntoRequestQueue queue =
+                new HanntoRequestQueue(
+                        network,
+                        1,
+                        new HanntoExecutorDelivery(DIRECT),
+                        new HanntoPriorityLaneQueue());
+        queue.setAdmissionPolicy(
+                new HanntoAdmissionPolicy(3, 1024, HanntoAdmissionPolicy.Overflow.DROP_OLDEST_LOW));
+        final CountDownLatch finished = new CountDownLatch(4);
+        queue.addRequestFinishedListener(
+                new HanntoRequestQueue.RequestFinishedListener<Object>() {
+                    @Override
+                    public void onRequestFinished(HanntoRequest<Object> request) {
+                        finished.countDown();
+                    }
+                });
+        queue.start();
+        RecordingRequest sent = new RecordingRequest(HanntoRequest.Priority.LOW, null);
+        queue.add(sent);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (network.performed.isEmpty()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+
+        RecordingRequest waiting = new RecordingRequest(HanntoRequest.Priority.LOW, null);
+        queue.add(waiting);
+        queue.add(new RecordingRequest(HanntoRequest.Priority.NORMAL, null));
+        queue.add(new RecordingRequest(HanntoRequest.Priority.NORMAL, null));
+        assertTrue(waiting.errors.get(0) instanceof QueueFullError);
+        assertTrue(sent.errors.isEmpty());
+
+        network.release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        // A request added after the evicted one is served while the evicted one never is.
+        RecordingRequest late = new RecordingRequest(HanntoRequest.Priority.LOW, null);
+        final CountDownLatch lateFinished = new CountDownLatch(1);
+        queue.addRequestFinishedListener(
+                new HanntoRequestQueue.RequestFinishedListener<Object>() {
+                    @Override
+                    public void onRequestFinished(HanntoRequest<Object> request) {
+                        lateFinished.countDown();
+                    }
+                });
+        queue.add(late);
+        assertTrue(lateFinished.await(5, TimeUnit.SECONDS));
+        queue.stop();
+        assertEquals(4, network.performed.size());
+        assertFalse(network.performed.contains(waiting));
+        assertSame(late, network.performed.get(3));
+        assertEquals(0, queue.getCurrentRequests().size());
+    }
+
+    @Test
+    public void evictedRequestsLeaveTheQueueWhileTheNetworkStalls() throws Exception {
+        BlockingNetwork network = new BlockingNetwork();
+        HanntoRequestQueue queue =
+                new HanntoRequestQueue(
+                        network,
+                        1,
+                        new HanntoExecutorDelivery(DIRECT),
+                        new HanntoPriorityLaneQueue());
+        queue.setAdmissionPolicy(
+                new HanntoAdmissionPolicy(4, 1024, HanntoAdmissionPolicy.Overflow.DROP_OLDEST_LOW));
+        queue.start();
+        queue.add(new RecordingRequest(HanntoRequest.Priority.LOW, null));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (network.performed.isEmpty()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+
+        List<RecordingRequest> added = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            RecordingRequest request = new RecordingRequest(HanntoRequest.Priority.LOW, null);
+            queue.add(request);
+            added.add(request);
+            // One request is on the stalled network; the rest of the cap may wait.
+            assertTrue(queue.getMetrics().snapshot().getQueueDepth() <= 3);
+            assertTrue(queue.getCurrentRequests().size() <= 4);
+        }
+        for (int i = 0; i < added.size() - 3; i++) {
+            assertTrue(added.get(i).errors.get(0) instanceof QueueFullError);
+        }
+        network.release.countDown();
+        queue.stop();
+    }
+
+    @Test
+    public void admissionPolicyBlocksUntilRoomOrTimeout() throws Exception {
+        HanntoRequestQueue queue =
+                boundedQueue(
+                        new HanntoAdmissionPolicy(
+                                2, 100, HanntoAdmissionPolicy.Overflow.BLOCK, 200));
+        final TestRequest first = new TestRequest(HanntoRequest.Priority.NORMAL, 0);
+        queue.add(first);
+        queue.add(new TestRequest(HanntoRequest.Priority.NORMAL, 0));
+
+        Thread finisher =
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(50);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        first.finish("done");
+                    }
+                };
+        finisher.start();
+        RecordingRequest waited = new RecordingRequest(HanntoRequest.Priority.NORMAL, null);
+        queue.add(waited);
+        assertTrue(waited.errors.isEmpty());
+        finisher.join();
+
+        long start = System.currentTimeMillis();
+        RecordingRequest timedOut = new RecordingRequest(HanntoRequest.Priority.NORMAL, null);
+        queue.add(timedOut);
+        assertTrue(System.currentTimeMillis() - start >= 150);
+        assertTrue(timedOut.errors.get(0) instanceof QueueFullError);
+    }
+
+    @Test
+    public void admissionPolicyCapsQueuedPayloadBytes() {
+        HanntoRequestQueue queue =
+                boundedQueue(
+                        new HanntoAdmissionPolicy(
+                                10, 100, HanntoAdmissionPolicy.Overflow.REJECT));
+        // A request over the cap is admitted into an empty queue so that it can be sent at all.
+        TestRequest huge = new TestRequest(HanntoRequest.Priority.NORMAL, 0, new byte[150]);
+        assertTrue(queue.tryAdd(huge));
+        assertFalse(queue.tryAdd(new TestRequest(HanntoRequest.Priority.NORMAL, 0, new byte[1])));
+        huge.finish("done");
+
+        assertTrue(queue.tryAdd(new TestRequest(HanntoRequest.Priority.NORMAL, 0, new byte[60])));
+        assertFalse(queue.tryAdd(new TestRequest(HanntoRequest.Priority.NORMAL, 0, new byte[60])));
+        assertTrue(queue.tryAdd(new TestRequest(HanntoRequest.Priority.NORMAL, 0, new byte[40])));
+    }
+
+    @Test
+    public void metricsRecordStagesAndLoad() throws Exception {
+        BlockingNetwork network = new BlockingNetwork();
+        HanntoRequestQueue queue =
+                new HanntoRequestQueue(
+                        network, 1, new HanntoExecutorDelivery(DIRECT), new HanntoPriorityLaneQueue());
+        queue.start();
+        final CountDownLatch finished = new CountDownLatch(2);
+        queue.addRequestFinishedListener(
+                new HanntoRequestQueue.RequestFinishedListener<Object>() {
+                    @Override
+                    public void onRequestFinished(HanntoRequest<Object> request) {
+                        finished.countDown();
+                    }
+                });
+        queue.getMetrics().trackTag("printer");
+        queue.add(new TestRequest(HanntoRequest.Priority.HIGH, 0).setTag("printer"));
+        queue.add(new TestRequest(HanntoRequest.Priority.NORMAL, 0).setTag("scanner"));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        HanntoMetrics.Snapshot loaded;
+        while ((loaded = queue.getMetrics().snapshot()).getBusyDispatchers() == 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertEquals(1, loaded.getInFlight());
+        assertEquals(1, loaded.getQueueDepth());
+
+        network.release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        HanntoMetrics.Snapshot snapshot = queue.getMetrics().snapshot();
+        for (HanntoMetrics.Stage stage : HanntoMetrics.Stage.values()) {
+            assertEquals(stage.name(), 2, snapshot.get(stage).getCount());
+            assertEquals(1, snapshot.get(stage, HanntoRequest.Priority.HIGH).getCount());
+            assertEquals(1, snapshot.getForTag(stage, "printer").getCount());
+            assertNull(snapshot.getForTag(stage, "scanner"));
+            assertEquals(0, snapshot.get(stage, HanntoRequest.Priority.LOW).getCount());
+        }
+        assertEquals(0, snapshot.getQueueDepth());
+        queue.getMetrics().untrackTag("printer");
+        assertFalse(queue.getMetrics().snapshot().getTags().iterator().hasNext());
+        // The dispatcher is done with the request once it returns from delivering it.
+        while (queue.getMetrics().snapshot().getInFlight() != 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        queue.stop();
+    }
+
+    @Test
+    public void slowRequestSamplerKeepsTheNewestSlowRequests() throws Exception {
+        HanntoNetwork network =
+                new HanntoNetwork() {
+                    @Override
+                    public HanntoNetworkResponse performRequest(HanntoRequest<?> request) {
+                        return new HanntoNetworkResponse(new byte[3], 40);
+                    }
+                };
+        HanntoRequestQueue queue =
+                new HanntoRequestQueue(
+                        network, 1, new HanntoExecutorDelivery(DIRECT), new HanntoPriorityLaneQueue());
+        HanntoSlowRequestSampler sampler = new HanntoSlowRequestSampler(0, 1, 2);
+        queue.setSlowRequestSampler(sampler);
+        queue.start();
+        final CountDownLatch finished = new CountDownLatch(3);
+        queue.addRequestFinishedListener(
+                new HanntoRequestQueue.RequestFinishedListener<Object>() {
+                    @Override
+                    public void onRequestFinished(HanntoRequest<Object> request) {
+                        finished.countDown();
+                    }
+                });
+        for (int i = 0; i < 3; i++) {
+            queue.add(new TestRequest(HanntoRequest.Priority.HIGH, i, new byte[i]).setTag(i));
+        }
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        queue.stop();
+
+        List<HanntoSlowRequestSampler.Sample> samples = sampler.getSamples();
+        assertEquals(2, samples.size());
+        for (int i = 0; i < samples.size(); i++) {
+            HanntoSlowRequestSampler.Sample sample = samples.get(i);
+            assertEquals(i + 1, sample.getTag());
+            assertEquals(i + 1, sample.getPayloadBytes());
+            assertEquals(3, sample.getResponseBytes());
+            assertEquals(0, sample.getRetryCount());
+            assertEquals(HanntoRequest.Priority.HIGH, sample.getPriority());
+            assertEquals(40000, sample.getStageUs(HanntoMetrics.Stage.NETWORK));
+            assertEquals("done", sample.getFinishTag());
+            assertNull(sample.getError());
+        }
+
+        // Nothing is kept for requests under the threshold.
+        HanntoSlowRequestSampler slowOnly = new HanntoSlowRequestSampler(60000, 1, 2);
+        queue.setSlowRequestSampler(slowOnly);
+        queue.start();
+        final CountDownLatch finishedFast = new CountDownLatch(1);
+        queue.addRequestFinishedListener(
+                new HanntoRequestQueue.RequestFinishedListener<Object>() {
+                    @Override
+                    public void onRequestFinished(HanntoRequest<Object> request) {
+                        finishedFast.countDown();
+                    }
+                });
+        queue.add(new TestRequest(HanntoRequest.Priority.NORMAL, 0));
+        assertTrue(finishedFast.await(5, TimeUnit.SECONDS));
+        queue.stop();
+        assertTrue(slowOnly.getSamples().isEmpty());
+    }
+
+    @Test
+    public void requestCanceledOnTheNetworkIsNotParsed() throws Exception {
+        HanntoNetwork network =
+                new HanntoNetwork() {
+                    @Override
+                    public HanntoNetworkResponse performRequest(HanntoRequest<?> request) {
+                        request.cancel();
+                        return new HanntoNetworkResponse(new byte[1], 0);
+                    }
+                };
+        HanntoRequestQueue queue =
+                new HanntoRequestQueue(
+                        network, 1, new HanntoExecutorDelivery(DIRECT), new HanntoPriorityLaneQueue());
+        queue.start();
+        final CountDownLatch finished = new CountDownLatch(1);
+        queue.addRequestFinishedListener(
+                new HanntoRequestQueue.RequestFinishedListener<Object>() {
+                    @Override
+                    public void onRequestFinished(HanntoRequest<Object> request) {
+                        finished.countDown();
+                    }
+                });
+        final AtomicInteger parsed = new AtomicInteger();
+        queue.add(
+                new TestRequest(HanntoRequest.Priority.NORMAL, 0) {
+                    @Override
+                    protected HanntoResponse<Object> parseNetworkResponse(
+                            HanntoNetworkResponse response) {
+                        parsed.incrementAndGet();
+                        return super.parseNetworkResponse(response);
+                    }
+                });
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        queue.stop();
+        assertEquals(0, parsed.get());
+    }
+
+    /** A request whose payload is a body, with an optional cache key. */
+    private static class BodyRequest extends HanntoRequest<Object> {
+        private final String mKey;
+
+        BodyRequest(String key) {
+            super(HanntoRequestBody.create(new byte[] {1, 2}), null);
+            mKey = key;
+        }
+
+        @Override
+        public String getCacheKey() {
+            return mKey != null ? mKey : super.getCacheKey();
+        }
+
+        @Override
+        protected HanntoResponse<Object> parseNetworkResponse(HanntoNetworkResponse response) {
+            return HanntoResponse.<Object>success(response.getData(), null);
+        }
+
+        @Override
+        protected void deliverResponse(Object response) {}
+    }
+
+    @Test
+    public void bodyRequestsAreNeitherCachedNorCoalescedWithoutAKey() {
+        HanntoRequest<?> unkeyed = new BodyRequest(null);
+        assertFalse(unkeyed.shouldCoalesce());
+        unkeyed.setShouldCoalesce(true).setCacheTtl(1000, 1000);
+        assertNull(unkeyed.getCacheKey());
+        assertFalse(unkeyed.shouldCoalesce());
+        assertFalse(unkeyed.shouldCache());
+
+        HanntoRequest<?> keyed = new BodyRequest("job-7");
+        keyed.setShouldCoalesce(true).setCacheTtl(1000, 1000);
+        assertTrue(keyed.shouldCoalesce());
+        assertTrue(keyed.shouldCache());
+    }
+
+    @Test
+    public void cachedResponsesSkipTheNetworkUntilSoftExpired() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        HanntoNetwork network =
+                new HanntoNetwork() {
+                    @Override
+                    public HanntoNetworkResponse performRequest(HanntoRequest<?> request) {
+                        return new HanntoNetworkResponse(
+                                new byte[] {(byte) calls.incrementAndGet()}, 0);
+                    }
+                };
+        HanntoCache cache = new HanntoMemoryCache();
+        HanntoRequestQueue queue =
+                new HanntoRequestQueue(
+                        network, 1, new HanntoExecutorDelivery(DIRECT), new HanntoPriorityLaneQueue());
+        queue.setCache(cache);
+        queue.start();
+        final AtomicInteger finished = new AtomicInteger();
+        queue.addRequestFinishedListener(
+                new HanntoRequestQueue.RequestFinishedListener<Object>() {
+                    @Override
+                    public void onRequestFinished(HanntoRequest<Object> request) {
+                        synchronized (finished) {
+                            finished.incrementAndGet();
+                            finished.notifyAll();
+                        }
+                    }
+                });
+
+        queue.add(new TestRequest(HanntoRequest.Priority.NORMAL, 0).setCacheTtl(60000, 60000));
+        awaitFinished(finished, 1);
+        queue.add(new TestRequest(HanntoRequest.Priority.NORMAL, 0).setCacheTtl(60000, 60000));
+        awaitFinished(finished, 2);
+        assertEquals(1, calls.get());
+
+        // A soft-expired entry is delivered at once, then refreshed from the network.
+        cache.invalidate(new TestRequest(HanntoRequest.Priority.NORMAL, 0).getCacheKey(), false);
+        final List<Object> delivered = new CopyOnWriteArrayList<>();
+        TestRequest refreshed =
+                new TestRequest(HanntoRequest.Priority.NORMAL, 0) {
+                    @Override
+                    protected void deliverResponse(Object response) {
+                        delivered.add(response);
+                    }
+                };
+        queue.add(refreshed.setCacheTtl(60000, 60000));
+        awaitFinished(finished, 3);
+        assertEquals(2, calls.get());
+        assertEquals(2, delivered.size());
+        assertArrayEquals(new byte[] {1}, (byte[]) delivered.get(0));
+        assertArrayEquals(new byte[] {2}, (byte[]) delivered.get(1));
+        assertArrayEquals(new byte[] {2}, cache.get(refreshed.getCacheKey()).data);
+        queue.stop();
+    }
+
+    @Test
+    public void streamingRequestGetsProgressThenTotal() throws Exception {
+        final byte[] body = new byte[200000];
+        HanntoNetwork network =
+                new HanntoNetwork() {
+                    @Override
+                    public HanntoNetworkResponse performRequest(HanntoRequest<?> request) {
+                        return new HanntoNetworkResponse(
+                                new ByteArrayInputStream(body), body.length, 0);
+                    }
+                };
+        HanntoRequestQueue queue =
+                new HanntoRequestQueue(
+                        network, 1, new HanntoExecutorDelivery(DIRECT), new HanntoPriorityLaneQueue());
+        queue.start();
+        final List<Long> progress = new CopyOnWriteArrayList<>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        queue.addRequestFinishedListener(
+                new HanntoRequestQueue.RequestFinishedListener<Long>() {
+                    @Override
+                    public void onRequestFinished(HanntoRequest<Long> request) {
+                        finished.countDown();
+                    }
+                });
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        queue.add(
+                new HanntoDownloadRequest(
+                        new byte[] {1},
+                        sink,
+                        65536,
+                        new HanntoResponse.Listener<Long>() {
+                            @Override
+                            public void onResponse(Long response) {
+                                progress.add(response);
+                            }
+                        },
+                        null));
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(
+                java.util.Arrays.asList(65536L, 131072L, 196608L, 200000L), progress);
+        assertEquals(body.length, sink.size());
+        queue.stop();
+    }
+
+    @Test
+    public void spooledRequestsAreNotCoalesced() {
+        HanntoRequest<?> plain = new HanntoSpoolingRequest(new byte[] {1}, null, null, null);
+        assertTrue(plain.shouldCoalesce());
+        HanntoRequest<?> spooled =
+                new HanntoSpoolingRequest(
+                        new byte[] {1}, new HanntoSpool(new File("unused"), 16), null, null);
+        spooled.setShouldCoalesce(true);
+        assertFalse(spooled.shouldCoalesce());
+    }
+
+    @Test
+    public void streamingRequestsAreNotCoalesced() throws Exception {
+        final byte[] body = new byte[1000];
+        final BlockingNetwork blocking = new BlockingNetwork();
+        HanntoNetwork network =
+                new HanntoNetwork() {
+                    @Override
+                    public HanntoNetworkResponse performRequest(HanntoRequest<?> request)
+                            throws HanntoError {
+                        blocking.performRequest(request);
+                        return new HanntoNetworkResponse(
+                                new ByteArrayInputStream(body), body.length, 0);
+                    }
+                };
+        HanntoRequestQueue queue =
+                new HanntoRequestQueue(
+                        network, 2, new HanntoExecutorDelivery(DIRECT), new HanntoPriorityLaneQueue());
+        queue.setCoalescing(true);
+        queue.start();
+        final CountDownLatch finished = new CountDownLatch(2);
+        queue.addRequestFinishedListener(
+                new HanntoRequestQueue.RequestFinishedListener<Long>() {
+                    @Override
+                    public void onRequestFinished(HanntoRequest<Long> request) {
+                        finished.countDown();
+                    }
+                });
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        HanntoDownloadRequest download =
+                new HanntoDownloadRequest(new byte[] {1}, first, null, null);
+        download.setShouldCoalesce(true);
+        queue.add(download);
+        queue.add(new HanntoDownloadRequest(new byte[] {1}, second, null, null));
+        blocking.release.countDown();
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(2, blocking.performed.size());
+        assertEquals(body.length, first.size());
+        assertEquals(body.length, second.size());
+        queue.stop();
+    }
+
+    private static void awaitFinished(AtomicInteger finished, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        synchronized (finished) {
+            while (finished.get() < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                assertTrue("finished " + finished.get() + ", expected " + count, remaining > 0);
+                finished.wait(remaining);
+            }
+        }
+    }
+}
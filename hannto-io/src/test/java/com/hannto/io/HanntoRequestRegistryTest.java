@@ -0,0 +1,112 @@
+package com.hannto.io;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HanntoRequestRegistryTest {
+
+    /** Indexes requests by the first byte of their payload, standing in for a device ID. */
+    private static final HanntoRequestRegistry.Index DEVICE =
+            new HanntoRequestRegistry.Index() {
+                @Override
+                public Object keyOf(HanntoRequest<?> request) {
+                    byte[] data = request.getData();
+                    return data.length > 0 ? (int) data[0] : null;
+                }
+            };
+
+    @Test
+    public void indexesFollowAddAndRemove() {
+        HanntoRequestRegistry registry = new HanntoRequestRegistry();
+        registry.addIndex(DEVICE);
+        HanntoRequest<?> first = new TestRequest(HanntoRequest.Priority.NORMAL, 0, new byte[] {7});
+        HanntoRequest<?> second = new TestRequest(HanntoRequest.Priority.NORMAL, 1, new byte[2]);
+        HanntoRequest<?> untagged = new TestRequest(HanntoRequest.Priority.NORMAL, 2);
+        first.setTag("screen");
+        second.setTag("screen");
+
+        assertTrue(registry.add(first));
+        assertFalse(registry.add(first));
+        assertTrue(registry.add(second));
+        assertTrue(registry.add(untagged));
+        assertEquals(3, registry.size());
+        assertEquals(3, registry.getPayloadBytes());
+        assertEquals(2, registry.get(HanntoRequestRegistry.TAG, "screen").size());
+        assertEquals(1, registry.get(DEVICE, 7).size());
+        assertEquals(1, registry.get(DEVICE, 0).size());
+        assertTrue(registry.get(DEVICE, 3).isEmpty());
+
+        assertTrue(registry.remove(first));
+        assertFalse(registry.remove(first));
+        assertEquals(1, registry.get(HanntoRequestRegistry.TAG, "screen").size());
+        assertTrue(registry.get(DEVICE, 7).isEmpty());
+        assertTrue(registry.remove(second));
+        assertTrue(registry.remove(untagged));
+        assertEquals(0, registry.size());
+        assertEquals(0, registry.getPayloadBytes());
+        // Emptied keys are dropped rather than kept for the life of the queue.
+        assertEquals(0, registry.keyCount(HanntoRequestRegistry.TAG));
+        assertEquals(0, registry.keyCount(DEVICE));
+    }
+
+    @Test
+    public void cancelAllByIndexCancelsOnlyMatches() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        HanntoNetwork network =
+                new HanntoNetwork() {
+                    @Override
+                    public HanntoNetworkResponse performRequest(HanntoRequest<?> request)
+                            throws HanntoError {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new HanntoError(e);
+                        }
+                        return new HanntoNetworkResponse(new byte[0], 0);
+                    }
+                };
+        HanntoRequestQueue queue =
+                new HanntoRequestQueue(
+                        network,
+                        1,
+                        new HanntoExecutorDelivery(
+                                new Executor() {
+                                    @Override
+                                    public void execute(Runnable command) {
+                                        command.run();
+                                    }
+                                }),
+                        new HanntoPriorityLaneQueue());
+        queue.addIndex(DEVICE);
+        HanntoRequest<?>[] requests = new HanntoRequest<?>[6];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = new TestRequest(HanntoRequest.Priority.NORMAL, i, new byte[] {(byte) i});
+            requests[i].setTag(i % 2 == 0 ? "even" : "odd");
+            queue.add(requests[i]);
+        }
+        queue.cancelAll(DEVICE, 3);
+        queue.cancelAll("even");
+        for (int i = 0; i < requests.length; i++) {
+            assertEquals("request " + i, i % 2 == 0 || i == 3, requests[i].isCanceled());
+        }
+
+        final CountDownLatch finished = new CountDownLatch(requests.length);
+        queue.addRequestFinishedListener(
+                new HanntoRequestQueue.RequestFinishedListener<Object>() {
+                    @Override
+                    public void onRequestFinished(HanntoRequest<Object> request) {
+                        finished.countDown();
+                    }
+                });
+        queue.start();
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        queue.stop();
+        assertEquals(0, queue.getCurrentRequests().size());
+    }
+}
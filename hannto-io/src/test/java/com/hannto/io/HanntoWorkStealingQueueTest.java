@@ -0,0 +1,72 @@
+package com.hannto.io;
+
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HanntoWorkStealingQueueTest {
+
+    @Test
+    public void dispatcherTakesHigherPriorityFromOtherPartitionsFirst() throws Exception {
+        HanntoWorkStealingQueue queue = new HanntoWorkStealingQueue(4);
+        TestRequest low = new TestRequest(HanntoRequest.Priority.LOW, 1);
+        TestRequest immediate = new TestRequest(HanntoRequest.Priority.IMMEDIATE, 2);
+        TestRequest normal1 = new TestRequest(HanntoRequest.Priority.NORMAL, 3);
+        TestRequest normal2 = new TestRequest(HanntoRequest.Priority.NORMAL, 4);
+        queue.add(low);
+        queue.add(immediate);
+        queue.add(normal1);
+        queue.add(normal2);
+        assertEquals(4, queue.size());
+
+        BlockingQueue<HanntoRequest> view = queue.dispatcherQueue(3);
+        assertSame(immediate, view.take());
+        HanntoRequest first = view.take();
+        HanntoRequest second = view.take();
+        assertEquals(HanntoRequest.Priority.NORMAL, first.getPriority());
+        assertEquals(HanntoRequest.Priority.NORMAL, second.getPriority());
+        assertSame(low, view.take());
+        assertNull(view.poll(10, TimeUnit.MILLISECONDS));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void idleDispatchersStealFromUnownedPartitions() throws Exception {
+        final HanntoWorkStealingQueue queue = new HanntoWorkStealingQueue(8);
+        final int total = 4000;
+        final CountDownLatch taken = new CountDownLatch(total);
+        final AtomicInteger count = new AtomicInteger();
+        // Only two dispatchers for eight partitions: the other six are drained by stealing.
+        for (int d = 0; d < 2; d++) {
+            final BlockingQueue<HanntoRequest> view = queue.dispatcherQueue(d);
+            Thread dispatcher =
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                while (true) {
+                                    view.take();
+                                    count.incrementAndGet();
+                                    taken.countDown();
+                                }
+                            } catch (InterruptedException e) {
+                                // Test is over.
+                            }
+                        }
+                    };
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+        }
+        for (int i = 0; i < total; i++) {
+            queue.add(new TestRequest(HanntoRequest.Priority.values()[i & 3], i));
+        }
+        assertTrue(taken.await(10, TimeUnit.SECONDS));
+        assertEquals(total, count.get());
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,29 @@
+package com.hannto.io;
+
+/** A request with a fixed priority and sequence, for queue tests. */
+class TestRequest extends HanntoRequest<Object> {
+    private final Priority mPriority;
+
+    TestRequest(Priority priority, int sequence) {
+        this(priority, sequence, new byte[0]);
+    }
+
+    TestRequest(Priority priority, int sequence, byte[] data) {
+        super(data, null);
+        mPriority = priority;
+        setSequence(sequence);
+    }
+
+    @Override
+    public Priority getPriority() {
+        return mPriority;
+    }
+
+    @Override
+    protected HanntoResponse<Object> parseNetworkResponse(HanntoNetworkResponse response) {
+        return HanntoResponse.<Object>success(response.getData(), parseCacheEntry(response));
+    }
+
+    @Override
+    protected void deliverResponse(Object response) {}
+}
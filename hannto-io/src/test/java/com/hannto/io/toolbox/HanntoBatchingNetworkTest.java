@@ -0,0 +1,207 @@
+package com.hannto.io.toolbox;
+
+import com.hannto.io.CanceledError;
+import com.hannto.io.HanntoAsyncNetwork;
+import com.hannto.io.HanntoDefaultRetryPolicy;
+import com.hannto.io.HanntoError;
+import com.hannto.io.HanntoNetworkResponse;
+import com.hannto.io.HanntoRequest;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HanntoBatchingNetworkTest {
+
+    /**
+     * Echoes each request in a batch. A payload starting with 8 always fails; one starting with
+     * 9 fails the first time only.
+     */
+    private static class EchoBatchStack implements HanntoStack {
+        final List<Integer> batchSizes = new ArrayList<>();
+        private boolean mFailedNine = false;
+
+        @Override
+        public synchronized RawResponse executeRequest(HanntoRequest<?> request)
+                throws IOException {
+            ByteBuffer batch = ByteBuffer.wrap(request.getData());
+            int count = batch.getInt();
+            batchSizes.add(count);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream reply = new DataOutputStream(bytes);
+            reply.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                byte[] data = new byte[batch.getInt()];
+                batch.get(data);
+                boolean fail = data[0] == 8 || (data[0] == 9 && !mFailedNine);
+                if (data[0] == 9) {
+                    mFailedNine = true;
+                }
+                reply.writeByte(fail ? 1 : HanntoBatchingNetwork.STATUS_OK);
+                reply.writeInt(data.length);
+                reply.write(data);
+            }
+            return new RawResponse(bytes.toByteArray());
+        }
+    }
+
+    /** Echoes every request, holding up the first batch until released. */
+    private static class HeldEchoStack extends EchoBatchStack {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public RawResponse executeRequest(HanntoRequest<?> request) throws IOException {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return super.executeRequest(request);
+        }
+    }
+
+    private static class Results implements HanntoAsyncNetwork.Callback {
+        final CountDownLatch done = new CountDownLatch(1);
+        HanntoNetworkResponse response;
+        HanntoError error;
+
+        @Override
+        public void onSuccess(HanntoNetworkResponse response) {
+            this.response = response;
+            done.countDown();
+        }
+
+        @Override
+        public void onError(HanntoError error) {
+            this.error = error;
+            done.countDown();
+        }
+    }
+
+    private static HanntoRequest<?> request(int first, int maxRetries) {
+        HanntoRequest<?> request = new HanntoBaseRequest(new byte[] {(byte) first, 1}, null, null);
+        request.setRetryPolicy(new HanntoDefaultRetryPolicy(1000, maxRetries, 1f));
+        return request;
+    }
+
+    @Test
+    public void requestsShareOneTransfer() throws Exception {
+        EchoBatchStack stack = new EchoBatchStack();
+        HanntoBatchingNetwork network =
+                new HanntoBatchingNetwork(stack, new HanntoBatchPolicy(8, 1024, 200));
+        List<Results> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Results result = new Results();
+            network.performRequestAsync(request(i, 0), result);
+            results.add(result);
+        }
+        for (int i = 0; i < 8; i++) {
+            assertTrue(results.get(i).done.await(5, TimeUnit.SECONDS));
+            HanntoNetworkResponse response = results.get(i).response;
+            ByteBuffer body = response.getBody();
+            assertTrue(body.isReadOnly());
+            assertEquals(2, body.remaining());
+            assertEquals((byte) i, body.get(0));
+            assertArrayEquals(new byte[] {(byte) i, 1}, response.getData());
+        }
+        assertEquals(1, stack.batchSizes.size());
+        assertEquals(8, (int) stack.batchSizes.get(0));
+    }
+
+    @Test
+    public void canceledRequestsAreFailedAtOnceAndLeftOutOfBatches() throws Exception {
+        HeldEchoStack stack = new HeldEchoStack();
+        HanntoBatchingNetwork network =
+                new HanntoBatchingNetwork(stack, new HanntoBatchPolicy(1, 1024, 0));
+        HanntoRequest<?> inFlight = request(1, 0);
+        Results inFlightResult = new Results();
+        network.performRequestAsync(inFlight, inFlightResult);
+        assertTrue(stack.entered.await(5, TimeUnit.SECONDS));
+        HanntoRequest<?> queued = request(2, 3);
+        Results queuedResult = new Results();
+        network.performRequestAsync(queued, queuedResult);
+
+        inFlight.cancel();
+        queued.cancel();
+        assertTrue(inFlightResult.done.await(0, TimeUnit.SECONDS));
+        assertTrue(inFlightResult.error instanceof CanceledError);
+        assertTrue(queuedResult.done.await(0, TimeUnit.SECONDS));
+        assertTrue(queuedResult.error instanceof CanceledError);
+
+        HanntoRequest<?> canceledFirst = request(3, 0);
+        canceledFirst.cancel();
+        Results canceledFirstResult = new Results();
+        network.performRequestAsync(canceledFirst, canceledFirstResult);
+        assertTrue(canceledFirstResult.error instanceof CanceledError);
+
+        stack.release.countDown();
+        Results later = new Results();
+        network.performRequestAsync(request(4, 0), later);
+        assertTrue(later.done.await(5, TimeUnit.SECONDS));
+        assertNotNull(later.response);
+        // Only the in-flight batch and the later one were sent.
+        assertEquals(2, stack.batchSizes.size());
+        assertNull(inFlightResult.response);
+    }
+
+    @Test
+    public void closeStopsTheBatcherAndFailsWaitingRequests() throws Exception {
+        HeldEchoStack stack = new HeldEchoStack();
+        HanntoBatchingNetwork network =
+                new HanntoBatchingNetwork(stack, new HanntoBatchPolicy(1, 1024, 0));
+        Results inFlight = new Results();
+        network.performRequestAsync(request(1, 0), inFlight);
+        assertTrue(stack.entered.await(5, TimeUnit.SECONDS));
+        Results queued = new Results();
+        network.performRequestAsync(request(2, 3), queued);
+
+        network.close();
+        assertTrue(queued.done.await(0, TimeUnit.SECONDS));
+        assertNotNull(queued.error);
+        // The held batch is interrupted rather than left blocking the batcher.
+        assertTrue(inFlight.done.await(5, TimeUnit.SECONDS));
+
+        Results later = new Results();
+        network.performRequestAsync(request(3, 0), later);
+        assertTrue(later.done.await(0, TimeUnit.SECONDS));
+        assertNotNull(later.error);
+        assertTrue(stack.batchSizes.isEmpty());
+    }
+
+    @Test
+    public void failedResultsRetryAlone() throws Exception {
+        EchoBatchStack stack = new EchoBatchStack();
+        HanntoBatchingNetwork network =
+                new HanntoBatchingNetwork(stack, new HanntoBatchPolicy(3, 1024, 200));
+        Results ok = new Results();
+        Results retried = new Results();
+        Results failed = new Results();
+        network.performRequestAsync(request(1, 0), ok);
+        network.performRequestAsync(request(9, 1), retried);
+        network.performRequestAsync(request(8, 0), failed);
+
+        assertTrue(ok.done.await(5, TimeUnit.SECONDS));
+        assertTrue(retried.done.await(5, TimeUnit.SECONDS));
+        assertTrue(failed.done.await(5, TimeUnit.SECONDS));
+        assertNotNull(ok.response);
+        assertNotNull(retried.response);
+        assertNotNull(failed.error);
+        assertArrayEquals(new byte[] {8, 1}, failed.error.networkResponse.getData());
+        synchronized (stack) {
+            assertEquals(2, stack.batchSizes.size());
+            assertEquals(1, (int) stack.batchSizes.get(1));
+        }
+    }
+}
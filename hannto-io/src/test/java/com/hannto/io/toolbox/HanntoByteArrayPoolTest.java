@@ -0,0 +1,80 @@
+package com.hannto.io.toolbox;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class HanntoByteArrayPoolTest {
+
+    @Test
+    public void servesRequestsFromSizeClasses() {
+        HanntoByteArrayPool pool = new HanntoByteArrayPool(4096, 256, 2048);
+        byte[] small = pool.getBuf(100);
+        assertEquals(256, small.length);
+        byte[] medium = pool.getBuf(300);
+        assertEquals(512, medium.length);
+        assertEquals(3000, pool.getBuf(3000).length);
+
+        pool.returnBuf(small);
+        pool.returnBuf(medium);
+        assertSame(medium, pool.getBuf(257));
+        assertSame(small, pool.getBuf(1));
+        assertEquals(0, pool.getPooledBytes());
+
+        // A buffer between classes serves the class below it.
+        byte[] odd = new byte[700];
+        pool.returnBuf(odd);
+        assertSame(odd, pool.getBuf(512));
+    }
+
+    @Test
+    public void trimsLargestClassesFirst() {
+        HanntoByteArrayPool pool = new HanntoByteArrayPool(1024, 256, 1024);
+        byte[] small = pool.getBuf(256);
+        byte[] large = pool.getBuf(1024);
+        pool.returnBuf(large);
+        pool.returnBuf(small);
+        assertEquals(256, pool.getPooledBytes());
+        assertSame(small, pool.getBuf(256));
+    }
+
+    @Test
+    public void leaseIsReleasedOnce() {
+        HanntoByteArrayPool pool = new HanntoByteArrayPool(4096);
+        HanntoByteArrayPool.Lease lease = pool.lease(10);
+        byte[] buffer = lease.buffer();
+        lease.release();
+        lease.release();
+        assertEquals(buffer.length, pool.getPooledBytes());
+        try {
+            lease.buffer();
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void reportsLeasesThatAreNeverReleased() throws Exception {
+        HanntoByteArrayPool pool = new HanntoByteArrayPool(4096);
+        final List<Throwable> leaks = new CopyOnWriteArrayList<>();
+        pool.setLeakListener(
+                new HanntoByteArrayPool.LeakListener() {
+                    @Override
+                    public void onLeak(int size, Throwable leasedAt) {
+                        leaks.add(leasedAt);
+                    }
+                });
+        pool.lease(10).release();
+        pool.lease(10);
+        for (int i = 0; i < 50 && leaks.isEmpty(); i++) {
+            System.gc();
+            Thread.sleep(10);
+            pool.lease(10).release();
+        }
+        assertEquals(1, leaks.size());
+    }
+}
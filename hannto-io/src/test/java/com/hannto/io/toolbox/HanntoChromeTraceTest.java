@@ -0,0 +1,42 @@
+package com.hannto.io.toolbox;
+
+import com.hannto.io.HanntoEventLog;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class HanntoChromeTraceTest {
+
+    @After
+    public void tearDown() {
+        HanntoEventLog.disable();
+    }
+
+    @Test
+    public void writesOneRowOfStagesPerRequest() throws Exception {
+        HanntoEventLog.enable();
+        HanntoEventLog.record(7, "add-to-queue");
+        HanntoEventLog.record(7, "network-queue-take");
+        HanntoEventLog.record(7, "network-http-complete");
+        HanntoEventLog.record(7, "post-response");
+        HanntoEventLog.record(7, "done \"quoted\"");
+
+        StringWriter out = new StringWriter();
+        HanntoChromeTrace.write(out);
+        String trace = out.toString();
+
+        assertTrue(trace.startsWith("{\"traceEvents\":[{\"name\":\"thread_name\""));
+        assertTrue(trace.endsWith("]}"));
+        assertTrue(trace.contains("{\"name\":\"request 7\",\"cat\":\"request\",\"ph\":\"b\",\"id\":7"));
+        for (String stage : new String[] {"queue-wait", "network", "parse", "delivery"}) {
+            assertTrue(stage, trace.contains("{\"name\":\"" + stage + "\",\"cat\":\"request\",\"ph\":\"b\""));
+            assertTrue(stage, trace.contains("{\"name\":\"" + stage + "\",\"cat\":\"request\",\"ph\":\"e\""));
+        }
+        assertTrue(trace.contains("\"done \\\"quoted\\\"\""));
+        assertTrue(trace.contains("\"ts\":0.000}"));
+    }
+}
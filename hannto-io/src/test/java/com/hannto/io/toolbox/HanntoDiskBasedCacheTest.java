@@ -0,0 +1,102 @@
+package com.hannto.io.toolbox;
+
+import com.hannto.io.HanntoCache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class HanntoDiskBasedCacheTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static HanntoCache.Entry entry(int size, int fill) {
+        HanntoCache.Entry entry = new HanntoCache.Entry();
+        entry.data = new byte[size];
+        java.util.Arrays.fill(entry.data, (byte) fill);
+        entry.ttl = System.currentTimeMillis() + 60000;
+        entry.softTtl = entry.ttl;
+        return entry;
+    }
+
+    @Test
+    public void entriesSurviveReopen() throws Exception {
+        File dir = temporaryFolder.newFolder();
+        HanntoDiskBasedCache cache = new HanntoDiskBasedCache(dir);
+        cache.initialize();
+        cache.put("a", entry(10, 1));
+        cache.put("b", entry(20, 2));
+        cache.put("c", entry(30, 3));
+        cache.invalidate("b", false);
+        cache.remove("c");
+
+        HanntoDiskBasedCache reopened = new HanntoDiskBasedCache(dir);
+        reopened.initialize();
+        assertArrayEquals(entry(10, 1).data, reopened.get("a").data);
+        assertFalse(reopened.get("a").refreshNeeded());
+        assertTrue(reopened.get("b").refreshNeeded());
+        assertFalse(reopened.get("b").isExpired());
+        assertNull(reopened.get("c"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOverCap() throws Exception {
+        File dir = temporaryFolder.newFolder();
+        HanntoDiskBasedCache cache = new HanntoDiskBasedCache(dir, 1100);
+        cache.put("k1", entry(300, 1));
+        cache.put("k2", entry(300, 2));
+        cache.put("k3", entry(300, 3));
+        assertNotNull(cache.get("k1"));
+        cache.put("k4", entry(300, 4));
+
+        assertNull(cache.get("k2"));
+        HanntoDiskBasedCache reopened = new HanntoDiskBasedCache(dir, 1100);
+        assertNull(reopened.get("k2"));
+        assertNotNull(reopened.get("k1"));
+        assertNotNull(reopened.get("k3"));
+        assertNotNull(reopened.get("k4"));
+    }
+
+    @Test
+    public void compactionDropsDeadRecords() throws Exception {
+        File dir = temporaryFolder.newFolder();
+        HanntoDiskBasedCache cache = new HanntoDiskBasedCache(dir);
+        for (int i = 0; i < 50; i++) {
+            cache.put("key", entry(1000, i));
+        }
+        File dataFile = new File(dir, HanntoDiskBasedCache.DATA_FILE);
+        assertTrue(dataFile.length() > 50 * 1000);
+
+        cache.compact();
+        assertTrue(dataFile.length() < 2 * 1000);
+        // Written after the index checkpoint, so only found by replay.
+        cache.put("later", entry(10, 7));
+
+        HanntoDiskBasedCache reopened = new HanntoDiskBasedCache(dir);
+        assertArrayEquals(entry(1000, 49).data, reopened.get("key").data);
+        assertArrayEquals(entry(10, 7).data, reopened.get("later").data);
+    }
+
+    @Test
+    public void tornRecordIsDiscarded() throws Exception {
+        File dir = temporaryFolder.newFolder();
+        HanntoDiskBasedCache cache = new HanntoDiskBasedCache(dir);
+        cache.put("a", entry(10, 1));
+        cache.put("b", entry(10, 2));
+        File dataFile = new File(dir, HanntoDiskBasedCache.DATA_FILE);
+        RandomAccessFile file = new RandomAccessFile(dataFile, "rw");
+        file.setLength(dataFile.length() - 3);
+        file.close();
+
+        HanntoDiskBasedCache reopened = new HanntoDiskBasedCache(dir);
+        assertNotNull(reopened.get("a"));
+        assertNull(reopened.get("b"));
+        reopened.put("c", entry(10, 3));
+        assertArrayEquals(entry(10, 3).data, new HanntoDiskBasedCache(dir).get("c").data);
+    }
+}
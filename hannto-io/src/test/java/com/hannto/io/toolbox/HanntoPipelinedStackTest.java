@@ -0,0 +1,206 @@
+package com.hannto.io.toolbox;
+
+import com.hannto.io.HanntoDefaultRetryPolicy;
+import com.hannto.io.HanntoRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HanntoPipelinedStackTest {
+
+    private ServerSocket mServer;
+    private Socket mClient;
+    private Socket mDevice;
+
+    @Before
+    public void connect() throws IOException {
+        mServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        mClient = new Socket(InetAddress.getLoopbackAddress(), mServer.getLocalPort());
+        mDevice = mServer.accept();
+    }
+
+    @After
+    public void disconnect() throws IOException {
+        mClient.close();
+        mDevice.close();
+        mServer.close();
+    }
+
+    private static class Result implements HanntoAsyncStack.Callback {
+        final CountDownLatch done = new CountDownLatch(1);
+        RawResponse response;
+        IOException failure;
+
+        @Override
+        public void onResponse(RawResponse response) {
+            this.response = response;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+            failure = e;
+            done.countDown();
+        }
+    }
+
+    private static HanntoRequest<?> request(int sequence, int timeoutMs) {
+        HanntoRequest<?> request = new HanntoBaseRequest(new byte[] {(byte) sequence}, null, null);
+        request.setSequence(sequence);
+        request.setRetryPolicy(new HanntoDefaultRetryPolicy(timeoutMs, 0, 1f));
+        return request;
+    }
+
+    @Test
+    public void responsesMatchRequestsOutOfOrder() throws Exception {
+        HanntoPipelinedStack stack =
+                new HanntoPipelinedStack(mClient.getInputStream(), mClient.getOutputStream());
+        List<Result> results = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            Result result = new Result();
+            stack.executeRequestAsync(request(i, 5000), result);
+            results.add(result);
+        }
+
+        // All three arrive before any response is sent; answer them in reverse.
+        DataInputStream in = new DataInputStream(mDevice.getInputStream());
+        long[] ids = new long[3];
+        for (int i = 0; i < 3; i++) {
+            ids[i] = in.readLong();
+            in.readFully(new byte[in.readInt()]);
+            assertEquals(i + 1, ids[i] >>> 32);
+        }
+        DataOutputStream out = new DataOutputStream(mDevice.getOutputStream());
+        for (int i = 2; i >= 0; i--) {
+            out.writeLong(ids[i]);
+            out.writeInt(1);
+            out.writeByte(10 * (i + 1));
+        }
+        out.flush();
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(results.get(i).done.await(5, TimeUnit.SECONDS));
+            assertArrayEquals(new byte[] {(byte) (10 * (i + 1))}, results.get(i).response.getmData());
+        }
+        stack.close();
+    }
+
+    @Test
+    public void lateResponseToTimedOutAttemptIsDropped() throws Exception {
+        HanntoPipelinedStack stack =
+                new HanntoPipelinedStack(mClient.getInputStream(), mClient.getOutputStream());
+        DataInputStream in = new DataInputStream(mDevice.getInputStream());
+        DataOutputStream out = new DataOutputStream(mDevice.getOutputStream());
+        HanntoRequest<?> request = request(7, 50);
+
+        Result first = new Result();
+        stack.executeRequestAsync(request, first);
+        long firstId = in.readLong();
+        in.readFully(new byte[in.readInt()]);
+        assertTrue(first.done.await(5, TimeUnit.SECONDS));
+        assertTrue(first.failure instanceof SocketTimeoutException);
+
+        Result retry = new Result();
+        stack.executeRequestAsync(request, retry);
+        long retryId = in.readLong();
+        in.readFully(new byte[in.readInt()]);
+        assertNotEquals(firstId, retryId);
+        out.writeLong(firstId);
+        out.writeInt(1);
+        out.writeByte(1);
+        out.writeLong(retryId);
+        out.writeInt(1);
+        out.writeByte(2);
+        out.flush();
+
+        assertTrue(retry.done.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[] {2}, retry.response.getmData());
+
+        // Losing the connection fails whatever is still outstanding.
+        Result pending = new Result();
+        stack.executeRequestAsync(request(8, 5000), pending);
+        mDevice.close();
+        assertTrue(pending.done.await(5, TimeUnit.SECONDS));
+        assertNotNull(pending.failure);
+    }
+
+    @Test
+    public void slowCallbackDoesNotHoldUpOtherResponses() throws Exception {
+        HanntoPipelinedStack stack =
+                new HanntoPipelinedStack(mClient.getInputStream(), mClient.getOutputStream());
+        final CountDownLatch unblock = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        stack.executeRequestAsync(
+                request(1, 5000),
+                new Result() {
+                    @Override
+                    public void onResponse(RawResponse response) {
+                        blocked.countDown();
+                        try {
+                            unblock.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+        Result second = new Result();
+        stack.executeRequestAsync(request(2, 5000), second);
+
+        DataInputStream in = new DataInputStream(mDevice.getInputStream());
+        DataOutputStream out = new DataOutputStream(mDevice.getOutputStream());
+        for (int i = 0; i < 2; i++) {
+            long id = in.readLong();
+            in.readFully(new byte[in.readInt()]);
+            out.writeLong(id);
+            out.writeInt(1);
+            out.writeByte(i);
+            out.flush();
+            if (i == 0) {
+                assertTrue(blocked.await(5, TimeUnit.SECONDS));
+            }
+        }
+        assertTrue(second.done.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[] {1}, second.response.getmData());
+        unblock.countDown();
+        stack.close();
+    }
+
+    @Test
+    public void oversizedResponseFailsTheConnection() throws Exception {
+        HanntoPipelinedStack stack =
+                new HanntoPipelinedStack(
+                        mClient.getInputStream(), mClient.getOutputStream(), 16, null);
+        Result result = new Result();
+        stack.executeRequestAsync(request(1, 5000), result);
+
+        DataInputStream in = new DataInputStream(mDevice.getInputStream());
+        long id = in.readLong();
+        in.readFully(new byte[in.readInt()]);
+        DataOutputStream out = new DataOutputStream(mDevice.getOutputStream());
+        out.writeLong(id);
+        out.writeInt(Integer.MAX_VALUE);
+        out.flush();
+
+        assertTrue(result.done.await(5, TimeUnit.SECONDS));
+        assertNotNull(result.failure);
+        Result later = new Result();
+        stack.executeRequestAsync(request(2, 5000), later);
+        assertTrue(later.done.await(5, TimeUnit.SECONDS));
+        assertNotNull(later.failure);
+    }
+}
@@ -0,0 +1,390 @@
+package com.hannto.io.toolbox;
+
+import com.hannto.io.CanceledError;
+import com.hannto.io.HanntoDefaultRetryPolicy;
+import com.hannto.io.HanntoNetworkResponse;
+import com.hannto.io.HanntoRequest;
+import com.hannto.io.HanntoRequestBody;
+import com.hannto.io.HanntoSpool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HanntoSocketStackTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /** Echoes each frame back, except that a payload starting with 0 gets no reply. */
+    private static class EchoServer extends Thread {
+        final ServerSocket server;
+        final AtomicInteger accepted = new AtomicInteger();
+        final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+        EchoServer() throws IOException {
+            server = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+            setDaemon(true);
+        }
+
+        InetSocketAddress address() {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = server.accept();
+                    accepted.incrementAndGet();
+                    sockets.add(socket);
+                    Thread echo =
+                            new Thread() {
+                                @Override
+                                public void run() {
+                                    echo(socket);
+                                }
+                            };
+                    echo.setDaemon(true);
+                    echo.start();
+                }
+            } catch (IOException e) {
+                // Closed.
+            }
+        }
+
+        private static void echo(Socket socket) {
+            try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                while (true) {
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    if (data.length > 0 && data[0] == 0) {
+                        continue;
+                    }
+                    out.writeInt(data.length);
+                    out.write(data);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // Closed.
+            }
+        }
+
+        void dropConnections() throws IOException {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private EchoServer mServer;
+
+    @Before
+    public void startServer() throws IOException {
+        mServer = new EchoServer();
+        mServer.start();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        mServer.server.close();
+        mServer.dropConnections();
+    }
+
+    private static HanntoRequest<?> request(int first, int timeoutMs) {
+        HanntoRequest<?> request = new HanntoBaseRequest(new byte[] {(byte) first, 2, 3}, null, null);
+        request.setRetryPolicy(new HanntoDefaultRetryPolicy(timeoutMs, 0, 1f));
+        return request;
+    }
+
+    @Test
+    public void reusesOneConnection() throws Exception {
+        HanntoSocketStack stack = new HanntoSocketStack(mServer.address());
+        for (int i = 1; i <= 5; i++) {
+            assertArrayEquals(
+                    new byte[] {(byte) i, 2, 3},
+                    stack.executeRequest(request(i, 1000)).getmData());
+        }
+        assertEquals(1, mServer.accepted.get());
+        assertEquals(1, stack.getIdleConnectionCount());
+        stack.close();
+        assertEquals(0, stack.getConnectionCount());
+    }
+
+    @Test
+    public void attemptTimesOutAndDiscardsItsConnection() throws Exception {
+        HanntoSocketStack stack = new HanntoSocketStack(mServer.address());
+        long start = System.nanoTime();
+        try {
+            stack.executeRequest(request(0, 100));
+            fail("Expected a timeout");
+        } catch (SocketTimeoutException expected) {
+        }
+        assertTrue(System.nanoTime() - start < 2000000000L);
+        assertEquals(0, stack.getConnectionCount());
+        stack.close();
+    }
+
+    @Test
+    public void cancelAbortsTheAttemptWithoutRetrying() throws Exception {
+        HanntoSocketStack stack = new HanntoSocketStack(mServer.address());
+        final HanntoRequest<?> request = request(0, 10000);
+        request.setRetryPolicy(new HanntoDefaultRetryPolicy(10000, 3, 1f));
+        Thread canceler =
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(100);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        request.cancel();
+                    }
+                };
+        long start = System.nanoTime();
+        canceler.start();
+        try {
+            new HanntoBasicNetwork(stack).performRequest(request);
+            fail("Expected the request to be canceled");
+        } catch (CanceledError expected) {
+        }
+        assertTrue(System.nanoTime() - start < 2000000000L);
+        assertEquals(0, request.getRetryPolicy().getCurrentRetryCount());
+        assertEquals(1, mServer.accepted.get());
+        assertEquals(0, stack.getConnectionCount());
+        stack.close();
+    }
+
+    @Test
+    public void cancelEndsTheWaitForAPooledConnection() throws Exception {
+        final HanntoSocketStack stack =
+                new HanntoSocketStack(
+                        mServer.address(), 1, 60000, HanntoSocketStack.DEFAULT_MAX_RESPONSE_BYTES);
+        final HanntoRequest<?> holder = request(0, 10000);
+        final HanntoRequest<?> waiter = request(1, 10000);
+        final List<IOException> failures = new CopyOnWriteArrayList<>();
+        Thread[] threads = new Thread[2];
+        final HanntoRequest<?>[] requests = {holder, waiter};
+        for (int i = 0; i < threads.length; i++) {
+            final HanntoRequest<?> request = requests[i];
+            threads[i] =
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                stack.executeRequest(request);
+                            } catch (IOException e) {
+                                failures.add(e);
+                            }
+                        }
+                    };
+        }
+        threads[0].start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stack.getConnectionCount() == 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        threads[1].start();
+        Thread.sleep(100);
+
+        long start = System.nanoTime();
+        waiter.cancel();
+        threads[1].join(2000);
+        assertFalse(threads[1].isAlive());
+        assertTrue(System.nanoTime() - start < 2000000000L);
+        assertEquals(1, failures.size());
+        assertEquals(1, mServer.accepted.get());
+
+        holder.cancel();
+        threads[0].join(2000);
+        assertFalse(threads[0].isAlive());
+        assertEquals(0, stack.getConnectionCount());
+        stack.close();
+    }
+
+    @Test
+    public void closedIdleConnectionIsReplaced() throws Exception {
+        HanntoSocketStack stack = new HanntoSocketStack(mServer.address());
+        stack.executeRequest(request(1, 1000));
+        mServer.dropConnections();
+        Thread.sleep(100);
+
+        assertArrayEquals(new byte[] {2, 2, 3}, stack.executeRequest(request(2, 1000)).getmData());
+        assertEquals(2, mServer.accepted.get());
+        assertEquals(1, stack.getConnectionCount());
+        stack.close();
+    }
+
+    @Test
+    public void streamedBodyIsReadOffTheConnection() throws Exception {
+        HanntoSocketStack stack = new HanntoSocketStack(mServer.address());
+        byte[] data = new byte[300000];
+        data[0] = 1;
+        data[data.length - 1] = 2;
+        HanntoRequest<?> request =
+                new HanntoDownloadRequest(data, new ByteArrayOutputStream(), null, null);
+        request.setRetryPolicy(new HanntoDefaultRetryPolicy(1000, 0, 1f));
+
+        RawResponse response = stack.executeRequest(request);
+        assertNull(response.getmData());
+        assertEquals(data.length, response.getContentLength());
+        InputStream body = response.getContent();
+        byte[] read = new byte[data.length];
+        int offset = 0;
+        int count;
+        while ((count = body.read(read, offset, read.length - offset)) > 0) {
+            offset += count;
+        }
+        assertEquals(-1, body.read());
+        assertArrayEquals(data, read);
+        assertEquals(0, stack.getIdleConnectionCount());
+        body.close();
+        assertEquals(1, stack.getIdleConnectionCount());
+        stack.close();
+    }
+
+    @Test
+    public void pooledBodiesGoBackToThePoolOnRelease() throws Exception {
+        HanntoByteArrayPool pool = new HanntoByteArrayPool(64 * 1024);
+        HanntoSocketStack stack =
+                new HanntoSocketStack(
+                        mServer.address(),
+                        HanntoSocketStack.DEFAULT_MAX_CONNECTIONS,
+                        HanntoSocketStack.DEFAULT_KEEP_ALIVE_MS,
+                        HanntoSocketStack.DEFAULT_MAX_RESPONSE_BYTES,
+                        pool);
+        HanntoBasicNetwork network = new HanntoBasicNetwork(stack, pool);
+
+        HanntoNetworkResponse response = network.performRequest(request(3, 1000));
+        assertEquals(3, response.getBody().remaining());
+        byte[] data = response.getData();
+        assertArrayEquals(new byte[] {3, 2, 3}, data);
+        assertEquals(0, pool.getPooledBytes());
+
+        response.release();
+        response.release();
+        assertEquals(HanntoByteArrayPool.DEFAULT_MIN_BUFFER_SIZE, pool.getPooledBytes());
+        network.performRequest(request(4, 1000)).release();
+        assertEquals(HanntoByteArrayPool.DEFAULT_MIN_BUFFER_SIZE, pool.getPooledBytes());
+        // The array was copied out of the pooled buffer, which has been reused since.
+        assertArrayEquals(new byte[] {3, 2, 3}, data);
+        stack.close();
+    }
+
+    @Test
+    public void streamedBodiesAreResentWholeOnEachAttempt() throws Exception {
+        final byte[] data = new byte[200000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 251 + 1);
+        }
+        File file = temporaryFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] {9, 9});
+        out.write(data);
+        out.close();
+        final AtomicInteger opened = new AtomicInteger();
+        HanntoRequestBody generated =
+                HanntoRequestBody.create(
+                        data.length,
+                        new HanntoRequestBody.Source() {
+                            @Override
+                            public InputStream open() {
+                                opened.incrementAndGet();
+                                return new ByteArrayInputStream(data);
+                            }
+                        });
+        HanntoSocketStack stack = new HanntoSocketStack(mServer.address());
+
+        for (HanntoRequestBody body :
+                new HanntoRequestBody[] {
+                    HanntoRequestBody.create(file, 2, data.length), generated
+                }) {
+            HanntoRequest<?> request = new HanntoBaseRequest(body, null, null);
+            request.setRetryPolicy(new HanntoDefaultRetryPolicy(5000, 0, 1f));
+            assertArrayEquals(data, stack.executeRequest(request).getmData());
+            assertArrayEquals(data, stack.executeRequest(request).getmData());
+        }
+        assertEquals(2, opened.get());
+        stack.close();
+    }
+
+    @Test
+    public void largeBodiesAreSpooledToFile() throws Exception {
+        HanntoSocketStack stack =
+                new HanntoSocketStack(
+                        mServer.address(),
+                        HanntoSocketStack.DEFAULT_MAX_CONNECTIONS,
+                        HanntoSocketStack.DEFAULT_KEEP_ALIVE_MS,
+                        1024,
+                        null);
+        HanntoBasicNetwork network = new HanntoBasicNetwork(stack);
+        File file = temporaryFolder.newFile();
+        HanntoSpool spool = new HanntoSpool(file, 1024);
+        byte[] large = new byte[300000];
+        large[0] = 1;
+        large[large.length - 1] = 7;
+
+        HanntoSpoolingRequest request = new HanntoSpoolingRequest(large, spool, null, null);
+        HanntoNetworkResponse response = network.performRequest(request);
+        assertSame(spool, response.spool);
+        assertNull(response.getData());
+        HanntoSpoolingRequest.Body body = request.parseNetworkResponse(response).result;
+        assertTrue(body.isSpooled());
+        assertEquals(large.length, body.length);
+        assertEquals(large.length, file.length());
+        byte[] spooled = new byte[large.length];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        in.readFully(spooled);
+        in.close();
+        assertArrayEquals(large, spooled);
+        assertEquals(1, stack.getIdleConnectionCount());
+
+        HanntoSpoolingRequest small =
+                new HanntoSpoolingRequest(new byte[] {1, 2, 3}, spool, null, null);
+        body = small.parseNetworkResponse(network.performRequest(small)).result;
+        assertFalse(body.isSpooled());
+        assertArrayEquals(new byte[] {1, 2, 3}, body.data);
+        assertEquals(large.length, file.length());
+        stack.close();
+    }
+
+    @Test
+    public void idleConnectionsAreEvicted() throws Exception {
+        HanntoSocketStack stack =
+                new HanntoSocketStack(
+                        mServer.address(), 2, 50, HanntoSocketStack.DEFAULT_MAX_RESPONSE_BYTES);
+        stack.executeRequest(request(1, 1000));
+        assertEquals(1, stack.getIdleConnectionCount());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stack.getConnectionCount() > 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        stack.close();
+    }
+}